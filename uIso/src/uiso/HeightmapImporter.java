@@ -0,0 +1,196 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso;
+
+/**
+ * Builds the heights and the slopes of the whole map from a heightmap. First, the heights are lowered where necessary so the height difference between neighbours is
+ * at most 1: each height becomes min(height of q + distance to q) over all the tiles q, where the distance is the number of king moves. Two sweeps (the first one from the
+ * top-left corner, the second one from the bottom-right corner) are enough to compute it. After that, the slopes do not depend on each other, so the rows are divided in
+ * bands that are computed by several threads.
+ *
+ * @author luis
+ */
+class HeightmapImporter implements Runnable {
+	/* Package: */
+	final static int BAND_HEIGHT = 64;
+
+	byte[] z, slopes; /* Indexed by y * stride + x (map coordinates). */
+	int stride;
+
+	/**
+	 * The tiles (0..last_x, 0..last_y) are imported. The ones at last_x + 1 and last_y + 1 are only read.
+	 */
+	HeightmapImporter(int last_x, int last_y) {
+		this.last_x = last_x;
+		this.last_y = last_y;
+		this.stride = last_x + 2;
+		this.z = new byte[this.stride * (last_y + 2)];
+		this.slopes = new byte[this.z.length];
+	}
+
+	void constrainHeights() {
+		byte[] z = this.z;
+		int stride = this.stride;
+
+		/* From the top-left corner: the neighbours above and the one on the left. */
+		for (int y = 0; y <= this.last_y; y++) {
+			for (int x = 0, i = y * stride; x <= this.last_x; x++, i++) {
+				int min = z[i];
+
+				if (x > 0)
+					min = Math.min(min, z[i - 1] + 1);
+				if (y > 0) {
+					min = Math.min(min, z[i - stride] + 1);
+					if (x > 0)
+						min = Math.min(min, z[i - stride - 1] + 1);
+					if (x < this.last_x)
+						min = Math.min(min, z[i - stride + 1] + 1);
+				}
+				z[i] = (byte) min;
+			}
+		}
+		/* From the bottom-right corner: the neighbours below and the one on the right. */
+		for (int y = this.last_y; y >= 0; y--) {
+			for (int x = this.last_x, i = y * stride + x; x >= 0; x--, i--) {
+				int min = z[i];
+
+				if (x < this.last_x)
+					min = Math.min(min, z[i + 1] + 1);
+				if (y < this.last_y) {
+					min = Math.min(min, z[i + stride] + 1);
+					if (x < this.last_x)
+						min = Math.min(min, z[i + stride + 1] + 1);
+					if (x > 0)
+						min = Math.min(min, z[i + stride - 1] + 1);
+				}
+				z[i] = (byte) min;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the heights of the margins (the tiles less than margin tiles away from the border) by the lowest ones that keep the height difference between
+	 * neighbours at most 1, as {@link UIsoEngine#setTileZ(Tile, int)} does: each height becomes max(height of q - distance to q) over the other tiles q, or 0. It is
+	 * computed by two sweeps too.
+	 */
+	void lowerMargins(int margin) {
+		byte[] z = this.z;
+		int stride = this.stride;
+
+		for (int y = 0; y <= this.last_y; y++) {
+			for (int x = 0, i = y * stride; x <= this.last_x; x++, i++) {
+				if (x < margin || y < margin || x > this.last_x - margin || y > this.last_y - margin)
+					z[i] = 0;
+			}
+		}
+		for (int y = 0; y <= this.last_y; y++) {
+			for (int x = 0, i = y * stride; x <= this.last_x; x++, i++) {
+				int max = z[i];
+
+				if (x > 0)
+					max = Math.max(max, z[i - 1] - 1);
+				if (y > 0) {
+					max = Math.max(max, z[i - stride] - 1);
+					if (x > 0)
+						max = Math.max(max, z[i - stride - 1] - 1);
+					if (x < this.last_x)
+						max = Math.max(max, z[i - stride + 1] - 1);
+				}
+				z[i] = (byte) max;
+			}
+		}
+		for (int y = this.last_y; y >= 0; y--) {
+			for (int x = this.last_x, i = y * stride + x; x >= 0; x--, i--) {
+				int max = z[i];
+
+				if (x < this.last_x)
+					max = Math.max(max, z[i + 1] - 1);
+				if (y < this.last_y) {
+					max = Math.max(max, z[i + stride] - 1);
+					if (x < this.last_x)
+						max = Math.max(max, z[i + stride + 1] - 1);
+					if (x > 0)
+						max = Math.max(max, z[i + stride - 1] - 1);
+				}
+				z[i] = (byte) max;
+			}
+		}
+	}
+
+	void computeSlopes(int n_threads) {
+		Thread[] threads = new Thread[n_threads - 1];
+		boolean interrupted = false;
+
+		this.next_band = 0;
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(this, "uIso heightmap importer");
+			threads[i].start();
+		}
+		this.run();
+		for (int i = 0; i < threads.length; i++) {
+			while (true) {
+				try {
+					threads[i].join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	public void run() {
+		int band;
+
+		while ((band = this.takeBand()) >= 0) {
+			int last_y = Math.min((band + 1) * BAND_HEIGHT - 1, this.last_y);
+
+			for (int y = band * BAND_HEIGHT; y <= last_y; y++)
+				this.computeRowSlopes(y);
+		}
+	}
+
+	/* Private: */
+	private int last_x, last_y, next_band;
+
+	private synchronized int takeBand() {
+		if (this.next_band * BAND_HEIGHT > this.last_y)
+			return -1;
+		return this.next_band++;
+	}
+
+	/*
+	 * The heights of the corners of a tile differ by at most 1, so its slope is made of the corners that are above the lowest one (the same bits used by the
+	 * Tile.corner_*_z_relative_to_min_z tables). It has no branches.
+	 */
+	private void computeRowSlopes(int y) {
+		byte[] z = this.z, slopes = this.slopes;
+		int stride = this.stride;
+
+		for (int x = 0, i = y * stride; x <= this.last_x; x++, i++) {
+			int n_z = z[i], w_z = z[i + 1], e_z = z[i + stride], s_z = z[i + stride + 1];
+			int min_z = Math.min(Math.min(n_z, w_z), Math.min(e_z, s_z));
+
+			slopes[i] = (byte) ((n_z - min_z) * Tile.CORNER_N | (s_z - min_z) * Tile.CORNER_S | (w_z - min_z) * Tile.CORNER_W | (e_z - min_z) * Tile.CORNER_E);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso;
+
+/**
+ * Builds map chunks in a background thread. The thread that draws asks for the chunks it is going to need soon ({@link #request(int)}) and later takes the chunks
+ * built ({@link #installChunks()}). A chunk that is needed before it is built is built by the thread that draws and the one built here is discarded.
+ *
+ * @author luis
+ */
+class MapChunkLoader implements Runnable {
+	/* Package: */
+	MapChunkLoader(UIsoMap map) {
+		this.map = map;
+		this.requests = new int[16];
+		this.built_chunks = new int[16];
+		this.built_data = new int[16][];
+		this.built_columns = new int[16][][];
+		this.built_tiles = new Tile[16][];
+		this.current_chunk = -1;
+		this.thread = new Thread(this, "uIso map chunk loader");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	public void run() {
+		while (true) {
+			int chunk;
+
+			synchronized (this) {
+				while (!this.stopped && this.n_requests == 0) {
+					try {
+						this.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (this.stopped)
+					return;
+				/* The first requests are the most important ones. */
+				chunk = this.requests[this.first_request];
+				this.first_request++;
+				this.n_requests--;
+				this.current_chunk = chunk;
+			}
+
+			int[] data = new int[UIsoMap.CHUNK_SIZE * UIsoMap.CHUNK_SIZE];
+			int[][] columns = this.map.newChunkColumns();
+			Tile[] tiles = this.map.newChunkTiles();
+			this.map.buildChunk(chunk, data, columns, tiles);
+
+			synchronized (this) {
+				if (this.n_built == this.built_chunks.length) {
+					this.built_chunks = grow(this.built_chunks);
+					this.built_data = grow(this.built_data);
+					this.built_columns = grow(this.built_columns);
+					this.built_tiles = grow(this.built_tiles);
+				}
+				this.built_chunks[this.n_built] = chunk;
+				this.built_data[this.n_built] = data;
+				this.built_columns[this.n_built] = columns;
+				this.built_tiles[this.n_built] = tiles;
+				this.n_built++;
+				this.current_chunk = -1;
+			}
+		}
+	}
+
+	/**
+	 * Discards the requests that have not been started. They are made again each frame, so the ones that are not needed anymore are forgotten.
+	 */
+	synchronized void clearRequests() {
+		this.first_request = this.n_requests = 0;
+	}
+
+	synchronized void request(int chunk) {
+		for (int i = this.first_request; i < this.first_request + this.n_requests; i++) {
+			if (this.requests[i] == chunk)
+				return;
+		}
+		if (chunk == this.current_chunk)
+			return;
+		if (this.first_request + this.n_requests == this.requests.length) {
+			if (this.first_request > 0) {
+				System.arraycopy(this.requests, this.first_request, this.requests, 0, this.n_requests);
+				this.first_request = 0;
+			} else {
+				this.requests = grow(this.requests);
+			}
+		}
+		this.requests[this.first_request + this.n_requests++] = chunk;
+		this.notify();
+	}
+
+	/**
+	 * A chunk that is pending can not be discarded by the map: the chunk built would replace the newer data.
+	 * 
+	 * @return {@code true} if the chunk has been requested, is being built or has been built but not installed
+	 */
+	synchronized boolean isPending(int chunk) {
+		if (chunk == this.current_chunk)
+			return true;
+		for (int i = this.first_request; i < this.first_request + this.n_requests; i++) {
+			if (this.requests[i] == chunk)
+				return true;
+		}
+		for (int i = 0; i < this.n_built; i++) {
+			if (this.built_chunks[i] == chunk)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gives the chunks built to the map.
+	 */
+	synchronized void installChunks() {
+		for (int i = 0; i < this.n_built; i++) {
+			this.map.installChunk(this.built_chunks[i], this.built_data[i], this.built_columns[i], this.built_tiles[i]);
+			this.built_data[i] = null;
+			this.built_columns[i] = null;
+			this.built_tiles[i] = null;
+		}
+		this.n_built = 0;
+	}
+
+	synchronized void stop() {
+		this.stopped = true;
+		this.notify();
+	}
+
+	/* Private: */
+	private int first_request, n_requests, n_built, current_chunk;
+	private int[] requests, built_chunks;
+	private int[][] built_data;
+	private int[][][] built_columns;
+	private Tile[][] built_tiles;
+	private boolean stopped;
+	private Thread thread;
+	private UIsoMap map;
+
+	private static int[] grow(int[] array) {
+		int[] new_array = new int[array.length << 1];
+		System.arraycopy(array, 0, new_array, 0, array.length);
+		return new_array;
+	}
+
+	private static int[][] grow(int[][] array) {
+		int[][] new_array = new int[array.length << 1][];
+		System.arraycopy(array, 0, new_array, 0, array.length);
+		return new_array;
+	}
+
+	private static Tile[][] grow(Tile[][] array) {
+		Tile[][] new_array = new Tile[array.length << 1][];
+		System.arraycopy(array, 0, new_array, 0, array.length);
+		return new_array;
+	}
+
+	private static int[][][] grow(int[][][] array) {
+		int[][][] new_array = new int[array.length << 1][][];
+		System.arraycopy(array, 0, new_array, 0, array.length);
+		return new_array;
+	}
+}
@@ -22,8 +22,10 @@ package uiso;
 class MapingHelper {
 	/* Public: */
 	public MapingHelper(int tile_w, int tile_h, int virtual_world_tile_size, int slope_height) {
-		this.a = new float[Tile.N_SLOPES][];
-		this.b = new float[Tile.N_SLOPES][];
+		this.line_x = new int[Tile.N_SLOPES][];
+		this.line_y = new int[Tile.N_SLOPES][];
+		this.line_dx = new int[Tile.N_SLOPES][];
+		this.line_dy = new int[Tile.N_SLOPES][];
 
 		Point[] points = new Point[4];
 		for (int i = 0; i < points.length; i++) {
@@ -41,8 +43,10 @@ class MapingHelper {
 			s_z = Tile.corner_s_z_relative_to_min_z[i];
 			w_z = Tile.corner_w_z_relative_to_min_z[i];
 
-			this.a[i] = new float[4];
-			this.b[i] = new float[4];
+			this.line_x[i] = new int[4];
+			this.line_y[i] = new int[4];
+			this.line_dx[i] = new int[4];
+			this.line_dy[i] = new int[4];
 			points[POINT_N].y = ((-n_z) * slope_height);
 			points[POINT_E].y = ((-e_z) * slope_height + virtual_world_tile_size);
 			points[POINT_S].y = ((-s_z) * slope_height + (virtual_world_tile_size << 1));
@@ -55,9 +59,8 @@ class MapingHelper {
 	}
 
 	/**
-	 * This function gets the position of the point relative to the polygon that defines tile slope boundaries. It is not exactly and has an error of +/- 2 pixels. There
-	 * are two main reasons: the approximation in the calculations that does not employ floating point numbers and the usage of equations to represent the polygon that
-	 * defines tile slope boundaries.
+	 * This function gets the position of the point relative to the polygon that defines tile slope boundaries. The polygon is an approximation of the tile sprite
+	 * outline, so the result can have an error of +/- 2 pixels. The calculations are exact: they only use integers.
 	 * 
 	 * @param point
 	 *           the point coordinates relative to rectangle around tile
@@ -67,7 +70,7 @@ class MapingHelper {
 	 */
 	public int getPositionRelativeToSlopePolygon(Point point, int slope_index) {
 		int position = UIsoConstants.INSIDE_POLYGON;
-		float point_position;
+		int point_position;
 		point_position = this.getPointPositionRelativeLine(point, slope_index, NE_LINE);
 		if (point_position <= 0) {
 
@@ -93,10 +96,14 @@ class MapingHelper {
 		return position;
 	}
 
-	public float getPointPositionRelativeLine(Point point, int slope_index, int line) {
-		float a = this.a[slope_index][line], b = this.b[slope_index][line], y = 0;
-		y = b + a * point.x;
-		return y - point.y;
+	/**
+	 * @return a value whose sign is the sign of (line y-coordinate at point.x) - point.y
+	 */
+	public int getPointPositionRelativeLine(Point point, int slope_index, int line) {
+		int dx = this.line_dx[slope_index][line];
+		int position = (this.line_y[slope_index][line] - point.y) * dx + this.line_dy[slope_index][line] * (point.x - this.line_x[slope_index][line]);
+
+		return dx < 0 ? -position : position;
 	}
 
 	/* Private: */
@@ -121,13 +128,14 @@ class MapingHelper {
 
 	private static int[][] LINE_POINTS = {{POINT_N, POINT_E}, {POINT_E, POINT_S}, {POINT_S, POINT_W}, {POINT_W, POINT_N}};
 
-	private float[][] a, b;
+	/* Each line goes through (line_x, line_y) and its slope is line_dy / line_dx. */
+	private int[][] line_x, line_y, line_dx, line_dy;
 
 	private void computeLineConstants(Point line_point_a, Point line_point_b, int slope_index, int line) {
 		assert (line_point_a.x - line_point_b.x != 0);
-		float a = (float) (line_point_a.y - line_point_b.y) / (float) (line_point_a.x - line_point_b.x);
-		float b = (line_point_b.y) - (a * (line_point_b.x));
-		this.a[slope_index][line] = a;
-		this.b[slope_index][line] = b;
+		this.line_x[slope_index][line] = line_point_b.x;
+		this.line_y[slope_index][line] = line_point_b.y;
+		this.line_dx[slope_index][line] = line_point_a.x - line_point_b.x;
+		this.line_dy[slope_index][line] = line_point_a.y - line_point_b.y;
 	}
 }
\ No newline at end of file
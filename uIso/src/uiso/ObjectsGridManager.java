@@ -104,17 +104,10 @@ class ObjectsGridManager {
 			this.es_point.x = e_point.x - this.isometric_engine.viewport_w_half + this.viewport_w - 1;
 		}
 
-		/* Creates the necessary cells. */
-		int h_length = (this.es_point.y - this.nw_point.y + 1) / this.objects_grid_cell_size + 1;
-		int w_length = (this.es_point.x - this.nw_point.x + 1) / this.objects_grid_cell_size + 1;
-
-		this.grid = new UIsoObjectsGridCell[h_length][w_length];
-
-		for (int y = 0; y < h_length; y++) {
-			for (int x = 0; x < this.grid[y].length; x++) {
-				this.grid[y][x] = new UIsoObjectsGridCell();
-			}
-		}
+		/* The rows and the cells are only created when they are used since a large map has a huge number of them. */
+		this.grid_h = (this.es_point.y - this.nw_point.y + 1) / this.objects_grid_cell_size + 1;
+		this.grid_w = (this.es_point.x - this.nw_point.x + 1) / this.objects_grid_cell_size + 1;
+		this.grid = new UIsoObjectsGridCell[this.grid_h][];
 	}
 
 	public void drawObjectsGrid() {
@@ -193,9 +186,18 @@ class ObjectsGridManager {
 	}
 
 	public UIsoObjectsGridCell getObjectsGridCell(int cell_x, int cell_y) {
-		if (0 <= cell_y && cell_y < this.grid.length && 0 <= cell_x && cell_x < this.grid[cell_y].length)
-			return this.grid[cell_y][cell_x];
-		return null;
+		UIsoObjectsGridCell[] row;
+		UIsoObjectsGridCell cell;
+
+		if (!(0 <= cell_y && cell_y < this.grid_h && 0 <= cell_x && cell_x < this.grid_w))
+			return null;
+		row = this.grid[cell_y];
+		if (row == null)
+			row = this.grid[cell_y] = new UIsoObjectsGridCell[this.grid_w];
+		cell = row[cell_x];
+		if (cell == null)
+			cell = row[cell_x] = new UIsoObjectsGridCell();
+		return cell;
 	}
 
 	public void checkObjectLimits(int w, int h) {
@@ -231,7 +233,7 @@ class ObjectsGridManager {
 
 	private IDrawer drawer;
 	private UIsoEngine isometric_engine;
-	private int objects_grid_cell_size, viewport_h, viewport_w;
+	private int objects_grid_cell_size, viewport_h, viewport_w, grid_w, grid_h;
 	private UIsoObjectsGridCell grid[][];
 	private Point es_point, nw_point;
 	private Rectangle string_bounds;
@@ -26,4 +26,6 @@ abstract class SceneObject {
 	}
 
 	Point real_coordinates;
+
+	abstract UIsoObject getObject();
 }
@@ -21,12 +21,13 @@ package uiso;
 
 import uiso.interfaces.IDrawer;
 import uiso.interfaces.IUIsoObjectComparator;
+import uiso.interfaces.IUIsoObjectDepthKeyProvider;
 
 class SceneObjectsManager {
 	/* Package: */
 	SceneObjectsManager(UIsoEngine isometric_engine, int max_sprite_objects_in_the_scene, int max_string_objects_in_the_scene,
-			IUIsoObjectComparator sprite_object_comparator, IUIsoObjectComparator string_object_comparator) {
-		int i;
+			IUIsoObjectComparator sprite_object_comparator, IUIsoObjectComparator string_object_comparator,
+			IUIsoObjectDepthKeyProvider sprite_object_depth_key_provider, IUIsoObjectDepthKeyProvider string_object_depth_key_provider) {
 
 		this.isometric_engine = isometric_engine;
 		this.debug = isometric_engine.debug;
@@ -35,86 +36,101 @@ class SceneObjectsManager {
 		this.string_bounds = isometric_engine.string_bounds;
 		this.virtual_world_tile_size = isometric_engine.virtual_world_tile_size;
 		this.tile_max_z = isometric_engine.tile_max_z;
-		this.sprites = isometric_engine.sprites;
 		this.drawer = isometric_engine.drawer;
-		this.viewport_w = isometric_engine.viewport_w;
-		this.viewport_h = isometric_engine.viewport_h;
 		this.sprite_object_comparator = sprite_object_comparator;
 		this.string_object_comparator = string_object_comparator;
+		this.sprite_object_depth_key_provider = sprite_object_depth_key_provider;
+		this.string_object_depth_key_provider = string_object_depth_key_provider;
 
-		this.sprite_scene_objects = new SpriteSceneObject[max_sprite_objects_in_the_scene];
-		for (i = 0; i < this.sprite_scene_objects.length; i++) {
-			this.sprite_scene_objects[i] = new SpriteSceneObject();
-		}
-		this.string_scene_objects = new StringSceneObject[max_string_objects_in_the_scene];
-		for (i = 0; i < this.string_scene_objects.length; i++) {
-			this.string_scene_objects[i] = new StringSceneObject();
-		}
+		/* The scene objects arrays grow when necessary. Their objects are reused from one scene to the next. */
+		this.sprite_scene_objects = new SpriteSceneObject[0];
+		this.string_scene_objects = new StringSceneObject[0];
+		this.growSpriteSceneObjects(max_sprite_objects_in_the_scene);
+		this.growStringSceneObjects(max_string_objects_in_the_scene);
+		if (sprite_object_depth_key_provider != null || string_object_depth_key_provider != null)
+			this.counts = new int[256];
+	}
+
+	int getSpriteSceneObjectsHighWaterMark() {
+		return this.sprite_scene_objects_high_water_mark;
+	}
+
+	int getStringSceneObjectsHighWaterMark() {
+		return this.string_scene_objects_high_water_mark;
+	}
+
+	/* A frame may have one scene for each dirty rectangle. */
+	void startFrame() {
+		this.scene_stamp++;
 	}
 
-	void startScene() {
+	/* The area (relative to viewport) is the one being drawn. Objects outside it are not inserted in the scene. */
+	void startScene(int area_x, int area_y, int area_w, int area_h) {
 		this.n_sprite_scene_objects = this.n_string_scene_objects = 0;
+		this.full_scene = area_x == 0 && area_y == 0 && area_w == this.isometric_engine.viewport_w && area_h == this.isometric_engine.viewport_h;
 		this.viewport_offset_x = this.isometric_engine.viewport_offset_x;
 		this.viewport_offset_y = this.isometric_engine.viewport_offset_y;
+		this.area_x = area_x;
+		this.area_y = area_y;
+		this.area_w = area_w;
+		this.area_h = area_h;
 	}
 
 	void insertObjectInScene(UIsoObject object) {
 		if (!object.isSelected() && object.isVisible()) {
-			this.virtual_coordinates.x = object.getX() + this.tile_max_z * this.virtual_world_tile_size;
-			this.virtual_coordinates.y = object.getY() + this.tile_max_z * this.virtual_world_tile_size;
-			this.virtual_coordinates.z = object.getZ();
-
-			UIsoEngine.toRealCoordinates(this.virtual_coordinates, this.real_coordinates);
-			this.real_coordinates.x -= this.viewport_offset_x;
-			this.real_coordinates.y -= this.viewport_offset_y;
-
 			if (object instanceof SpriteObject) {
-				Sprite sprite;
+				Sprite sprite = ((SpriteObject) object).sprite;
 				UIsoImage image;
 
-				this.drawer.getObjectSprite((SpriteObject) object, this.sprites);
-				sprite = this.sprites[0];
 				if (sprite == null)
 					return;
 				image = sprite.image;
 
-				this.real_coordinates.x -= sprite.getAnchorX();
-				this.real_coordinates.y -= sprite.getAnchorY();
+				/* The bounds were computed when the object was placed on the objects grid. */
+				this.real_coordinates.x = object.bounds_x - this.viewport_offset_x;
+				this.real_coordinates.y = object.bounds_y - this.viewport_offset_y;
 
 				/* Check the rectangles intersection. */
-				if (this.real_coordinates.y + image.getH() < 0 || this.real_coordinates.y >= this.viewport_h || this.real_coordinates.x + image.getW() < 0
-						|| this.real_coordinates.x >= this.viewport_w)
+				if (this.real_coordinates.y + image.getH() < this.area_y || this.real_coordinates.y >= this.area_y + this.area_h
+						|| this.real_coordinates.x + image.getW() < this.area_x || this.real_coordinates.x >= this.area_x + this.area_w)
 					return;
 
-				if (this.n_sprite_scene_objects < this.sprite_scene_objects.length) {
-					object.setSelected(true);
-					this.sprite_scene_objects[this.n_sprite_scene_objects].image = image;
-					this.sprite_scene_objects[this.n_sprite_scene_objects].sprite_object = (SpriteObject) object;
-					this.sprite_scene_objects[this.n_sprite_scene_objects].real_coordinates.copyFrom(this.real_coordinates);
-					this.n_sprite_scene_objects++;
+				if (this.n_sprite_scene_objects == this.sprite_scene_objects.length)
+					this.growSpriteSceneObjects();
 
-				} else if (this.debug) {
-					System.err.println("[WARN] There was no sufficient space to draw this object in the scene. " + "Try to increase \"max_sprite_objects_in_the_scene\".");
-				}
+				object.setSelected(true);
+				this.sprite_scene_objects[this.n_sprite_scene_objects].image = image;
+				this.sprite_scene_objects[this.n_sprite_scene_objects].sprite_object = (SpriteObject) object;
+				this.sprite_scene_objects[this.n_sprite_scene_objects].real_coordinates.copyFrom(this.real_coordinates);
+				this.n_sprite_scene_objects++;
+				if (this.n_sprite_scene_objects > this.sprite_scene_objects_high_water_mark)
+					this.sprite_scene_objects_high_water_mark = this.n_sprite_scene_objects;
 			} else if (object instanceof StringObject) {
 				StringObject stringObject = (StringObject) object;
-				this.drawer.getStringBounds(stringObject.getString(), this.string_bounds, stringObject.getFont());
+				this.virtual_coordinates.x = object.getX() + this.tile_max_z * this.virtual_world_tile_size;
+				this.virtual_coordinates.y = object.getY() + this.tile_max_z * this.virtual_world_tile_size;
+				this.virtual_coordinates.z = object.getZ();
+				UIsoEngine.toRealCoordinates(this.virtual_coordinates, this.real_coordinates);
+				this.real_coordinates.x -= this.viewport_offset_x;
+				this.real_coordinates.y -= this.viewport_offset_y;
+				this.isometric_engine.getStringObjectBounds(stringObject, this.string_bounds);
 				this.real_coordinates.x -= (this.string_bounds.w >> 1);
 				this.real_coordinates.y -= (this.string_bounds.h >> 1);
 
 				/* Check the rectangles intersection. */
-				if (this.real_coordinates.y + this.string_bounds.h < 0 || this.real_coordinates.y >= this.viewport_h || this.real_coordinates.x + this.string_bounds.w < 0
-						|| this.real_coordinates.x >= this.viewport_w)
+				if (this.real_coordinates.y + this.string_bounds.h < this.area_y || this.real_coordinates.y >= this.area_y + this.area_h
+						|| this.real_coordinates.x + this.string_bounds.w < this.area_x || this.real_coordinates.x >= this.area_x + this.area_w)
 					return;
 
-				if (this.n_string_scene_objects < this.string_scene_objects.length) {
-					object.setSelected(true);
-					this.string_scene_objects[this.n_string_scene_objects].string_object = (StringObject) object;
-					this.string_scene_objects[this.n_string_scene_objects].real_coordinates.copyFrom(this.real_coordinates);
-					this.n_string_scene_objects++;
-				} else if (this.debug) {
-					System.err.println("[WARN] There was no sufficient space to draw this object in the scene. " + "Try to increase \"max_string_objects_in_the_scene\".");
-				}
+				if (this.n_string_scene_objects == this.string_scene_objects.length)
+					this.growStringSceneObjects();
+
+				object.setSelected(true);
+				this.string_scene_objects[this.n_string_scene_objects].string_object = (StringObject) object;
+				this.string_scene_objects[this.n_string_scene_objects].real_coordinates.copyFrom(this.real_coordinates);
+				this.n_string_scene_objects++;
+				if (this.n_string_scene_objects > this.string_scene_objects_high_water_mark)
+					this.string_scene_objects_high_water_mark = this.n_string_scene_objects;
 			}
 		}
 	}
@@ -148,24 +164,75 @@ class SceneObjectsManager {
 				this.drawStringSceneObjectBounds(string_scene_object);
 		}
 
+		if (this.full_scene)
+			this.ranked_scene_stamp = this.scene_stamp;
 	}
 
 	/* Private: */
-	private boolean debug;
-	private int n_sprite_scene_objects, n_string_scene_objects, virtual_world_tile_size, tile_max_z, viewport_offset_x, viewport_offset_y, viewport_w, viewport_h;
+	private boolean debug, full_scene;
+	private int n_sprite_scene_objects, n_string_scene_objects, virtual_world_tile_size, tile_max_z, viewport_offset_x, viewport_offset_y, area_x, area_y, area_w, area_h;
 	private IDrawer drawer;
 	private UIsoEngine isometric_engine;
 	private StringSceneObject[] string_scene_objects;
 	private SpriteSceneObject[] sprite_scene_objects;
-	private Sprite[] sprites;
 	private Point virtual_coordinates, real_coordinates;
 	private Rectangle string_bounds;
 	private IUIsoObjectComparator sprite_object_comparator, string_object_comparator;
+	private IUIsoObjectDepthKeyProvider sprite_object_depth_key_provider, string_object_depth_key_provider;
+	private long[] keys, keys_aux;
+	private int[] indices, indices_aux, counts;
+	private SceneObject[] scene_objects_aux, new_scene_objects_aux;
+	private int scene_stamp, ranked_scene_stamp, previous_n_sprite_scene_objects, previous_n_string_scene_objects;
+	private int sprite_scene_objects_high_water_mark, string_scene_objects_high_water_mark;
+
+	private void growSpriteSceneObjects() {
+		this.growSpriteSceneObjects(Math.max(this.sprite_scene_objects.length << 1, 1));
+	}
+
+	private void growSpriteSceneObjects(int capacity) {
+		SpriteSceneObject[] sprite_scene_objects = new SpriteSceneObject[capacity];
+
+		System.arraycopy(this.sprite_scene_objects, 0, sprite_scene_objects, 0, this.sprite_scene_objects.length);
+		for (int i = this.sprite_scene_objects.length; i < capacity; i++)
+			sprite_scene_objects[i] = new SpriteSceneObject();
+		this.sprite_scene_objects = sprite_scene_objects;
+		this.growSortArrays(capacity);
+	}
+
+	private void growStringSceneObjects() {
+		this.growStringSceneObjects(Math.max(this.string_scene_objects.length << 1, 1));
+	}
+
+	private void growStringSceneObjects(int capacity) {
+		StringSceneObject[] string_scene_objects = new StringSceneObject[capacity];
+
+		System.arraycopy(this.string_scene_objects, 0, string_scene_objects, 0, this.string_scene_objects.length);
+		for (int i = this.string_scene_objects.length; i < capacity; i++)
+			string_scene_objects[i] = new StringSceneObject();
+		this.string_scene_objects = string_scene_objects;
+		this.growSortArrays(capacity);
+	}
+
+	/* The arrays used by the sort algorithms are shared by both kinds of scene objects. */
+	private void growSortArrays(int capacity) {
+		if (this.scene_objects_aux != null && this.scene_objects_aux.length >= capacity)
+			return;
+
+		this.scene_objects_aux = new SceneObject[capacity];
+		if (this.sprite_object_comparator != null || this.string_object_comparator != null)
+			this.new_scene_objects_aux = new SceneObject[capacity];
+		if (this.sprite_object_depth_key_provider != null || this.string_object_depth_key_provider != null) {
+			this.keys = new long[capacity];
+			this.keys_aux = new long[capacity];
+			this.indices = new int[capacity];
+			this.indices_aux = new int[capacity];
+		}
+	}
 
 	private void drawStringSceneObjectBounds(StringSceneObject string_scene_object) {
 		Point real_coordinates = string_scene_object.real_coordinates;
 
-		this.drawer.getStringBounds(string_scene_object.string_object.getString(), this.string_bounds, string_scene_object.string_object.getFont());
+		this.isometric_engine.getStringObjectBounds(string_scene_object.string_object, this.string_bounds);
 		this.drawer.drawLine(real_coordinates.x, real_coordinates.y, real_coordinates.x, real_coordinates.y + this.string_bounds.h);
 		this.drawer.drawLine(real_coordinates.x, real_coordinates.y, real_coordinates.x + this.string_bounds.w, real_coordinates.y);
 		this.drawer.drawLine(real_coordinates.x + this.string_bounds.w, real_coordinates.y + this.string_bounds.h, real_coordinates.x, real_coordinates.y
@@ -175,48 +242,190 @@ class SceneObjectsManager {
 	}
 
 	private void sortSpriteSceneObjects() {
-		this.sortSceneObjectsArray(this.sprite_scene_objects, this.n_sprite_scene_objects, true);
+		if (this.sprite_object_depth_key_provider != null) {
+			for (int i = 0; i < this.n_sprite_scene_objects; i++)
+				this.keys[i] = this.sprite_object_depth_key_provider.getDepthKey(this.isometric_engine, this.sprite_scene_objects[i].sprite_object);
+			this.radixSort(this.sprite_scene_objects, this.n_sprite_scene_objects);
+		} else {
+			this.sortSceneObjectsArray(this.sprite_scene_objects, this.n_sprite_scene_objects, true);
+		}
 	}
 
 	private void sortStringSceneObjects() {
-		this.sortSceneObjectsArray(this.string_scene_objects, this.n_string_scene_objects, false);
+		if (this.string_object_depth_key_provider != null) {
+			for (int i = 0; i < this.n_string_scene_objects; i++)
+				this.keys[i] = this.string_object_depth_key_provider.getDepthKey(this.isometric_engine, this.string_scene_objects[i].string_object);
+			this.radixSort(this.string_scene_objects, this.n_string_scene_objects);
+		} else {
+			this.sortSceneObjectsArray(this.string_scene_objects, this.n_string_scene_objects, false);
+		}
 	}
 
 	/*
-	 * Insertion sort implementation methods:
+	 * Radix sort implementation methods:
 	 */
-	private void swap(SceneObject[] array, int a, int b) {
-		SceneObject aux = array[a];
-		array[a] = array[b];
-		array[b] = aux;
-	}
-
-	private void sortSceneObjectsArray(SceneObject[] array, int n_sprite_scene_objects, boolean sprite_scene_object) {
-		for (int i = 0; i < n_sprite_scene_objects; i++) {
-			int smallest = i;
-			for (int j = i + 1; j < n_sprite_scene_objects; j++) {
-				if (sprite_scene_object) {
-					UIsoObject a = ((SpriteSceneObject) array[smallest]).sprite_object;
-					UIsoObject b = ((SpriteSceneObject) array[j]).sprite_object;
-
-					if (this.sprite_object_comparator.doesBMustBeDrawnBeforeA(this.isometric_engine, a, b)) {
-						smallest = j;
-					}
-
-				} else {
-					UIsoObject a = ((StringSceneObject) array[smallest]).string_object;
-					UIsoObject b = ((StringSceneObject) array[j]).string_object;
-
-					if (this.string_object_comparator.doesBMustBeDrawnBeforeA(this.isometric_engine, a, b)) {
-						smallest = j;
-					}
-				}
+	/* Sorts the first n elements of the array using the keys already stored in this.keys. It is a LSD radix sort (one byte per pass) so it is stable. */
+	private void radixSort(SceneObject[] array, int n) {
+		long[] keys = this.keys, keys_aux = this.keys_aux, swap_keys;
+		int[] indices = this.indices, indices_aux = this.indices_aux, counts = this.counts, swap_indices;
+		int i;
+
+		for (i = 0; i < n; i++) {
+			/* Flipping the sign bit makes the unsigned order of the keys equal to their signed order. */
+			keys[i] ^= Long.MIN_VALUE;
+			indices[i] = i;
+		}
+
+		for (int shift = 0; shift < 64; shift += 8) {
+			for (i = 0; i < 256; i++)
+				counts[i] = 0;
+			for (i = 0; i < n; i++)
+				counts[(int) (keys[i] >>> shift) & 0xFF]++;
+			/* All keys have the same byte: the pass would not change anything. */
+			if (n == 0 || counts[(int) (keys[0] >>> shift) & 0xFF] == n)
+				continue;
+
+			for (i = 1; i < 256; i++)
+				counts[i] += counts[i - 1];
+			for (i = n - 1; i >= 0; i--) {
+				int position = --counts[(int) (keys[i] >>> shift) & 0xFF];
+				keys_aux[position] = keys[i];
+				indices_aux[position] = indices[i];
 			}
-			this.swap(array, i, smallest);
+
+			swap_keys = keys;
+			keys = keys_aux;
+			keys_aux = swap_keys;
+			swap_indices = indices;
+			indices = indices_aux;
+			indices_aux = swap_indices;
+		}
+
+		for (i = 0; i < n; i++)
+			this.scene_objects_aux[i] = array[indices[i]];
+		for (i = 0; i < n; i++) {
+			array[i] = this.scene_objects_aux[i];
+			this.scene_objects_aux[i] = null;
+		}
+	}
+
+	/*
+	 * End of radix sort implementation methods.
+	 */
+
+	/*
+	 * Comparator sort implementation methods:
+	 */
+	/*
+	 * The objects usually keep the same order from one frame to the next. So the order of the last scene that covered the whole viewport is used as a starting
+	 * point and the insertion sort does little work. A dirty rectangle scene only sees some of the objects, so it uses that order but does not replace it. The
+	 * objects that were not in that scene (all of them in the first frame) are sorted apart with a merge sort and then merged.
+	 */
+	private void sortSceneObjectsArray(SceneObject[] array, int n, boolean sprite_scene_object) {
+		IUIsoObjectComparator comparator = sprite_scene_object ? this.sprite_object_comparator : this.string_object_comparator;
+		int previous_n = sprite_scene_object ? this.previous_n_sprite_scene_objects : this.previous_n_string_scene_objects;
+		SceneObject[] slots = this.scene_objects_aux, new_scene_objects = this.new_scene_objects_aux;
+		int i, n_known = 0, n_new = 0;
+
+		/* Restore the order of the ranked scene. */
+		for (i = 0; i < n; i++) {
+			UIsoObject object = array[i].getObject();
+			if (object.scene_stamp == this.ranked_scene_stamp && object.scene_rank < previous_n && slots[object.scene_rank] == null)
+				slots[object.scene_rank] = array[i];
+			else
+				new_scene_objects[n_new++] = array[i];
+		}
+		for (i = 0; i < previous_n; i++) {
+			if (slots[i] != null) {
+				array[n_known++] = slots[i];
+				slots[i] = null;
+			}
+		}
+
+		this.insertionSort(array, n_known, comparator);
+		this.mergeSort(new_scene_objects, 0, n_new, slots, comparator);
+		this.merge(array, n_known, new_scene_objects, n_new, comparator);
+
+		if (!this.full_scene)
+			return;
+
+		/* Remember the order. */
+		for (i = 0; i < n; i++) {
+			UIsoObject object = array[i].getObject();
+			object.scene_stamp = this.scene_stamp;
+			object.scene_rank = i;
+		}
+		if (sprite_scene_object)
+			this.previous_n_sprite_scene_objects = n;
+		else
+			this.previous_n_string_scene_objects = n;
+	}
+
+	/* a must be drawn before b. Objects that the comparator considers to be equivalent keep their relative order. */
+	private boolean mustBeDrawnBefore(SceneObject a, SceneObject b, IUIsoObjectComparator comparator) {
+		return comparator.doesBMustBeDrawnBeforeA(this.isometric_engine, b.getObject(), a.getObject())
+				&& !comparator.doesBMustBeDrawnBeforeA(this.isometric_engine, a.getObject(), b.getObject());
+	}
+
+	private void insertionSort(SceneObject[] array, int n, IUIsoObjectComparator comparator) {
+		for (int i = 1; i < n; i++) {
+			SceneObject scene_object = array[i];
+			int j = i - 1;
+
+			while (j >= 0 && this.mustBeDrawnBefore(scene_object, array[j], comparator)) {
+				array[j + 1] = array[j];
+				j--;
+			}
+			array[j + 1] = scene_object;
+		}
+	}
+
+	/* Sorts the elements in [from, to). It is stable. The auxiliary array must be able to hold them and is left filled with null. */
+	private void mergeSort(SceneObject[] array, int from, int to, SceneObject[] aux, IUIsoObjectComparator comparator) {
+		int middle, i, j, k;
+
+		if (to - from < 2)
+			return;
+		middle = (from + to) >>> 1;
+		this.mergeSort(array, from, middle, aux, comparator);
+		this.mergeSort(array, middle, to, aux, comparator);
+
+		/* The two halves are already in order. */
+		if (!this.mustBeDrawnBefore(array[middle], array[middle - 1], comparator))
+			return;
+
+		System.arraycopy(array, from, aux, from, middle - from);
+		i = from;
+		j = middle;
+		k = from;
+		while (i < middle && j < to) {
+			if (this.mustBeDrawnBefore(array[j], aux[i], comparator))
+				array[k++] = array[j++];
+			else
+				array[k++] = aux[i++];
+		}
+		while (i < middle)
+			array[k++] = aux[i++];
+		for (i = from; i < middle; i++)
+			aux[i] = null;
+	}
+
+	/* Merges the second array into the first one. Both are sorted. */
+	private void merge(SceneObject[] array, int n, SceneObject[] other_array, int other_n, IUIsoObjectComparator comparator) {
+		int i = n - 1, j = other_n - 1, k = n + other_n - 1;
+
+		/* From the end, so no extra space is needed. */
+		while (j >= 0) {
+			if (i >= 0 && this.mustBeDrawnBefore(other_array[j], array[i], comparator))
+				array[k--] = array[i--];
+			else
+				array[k--] = other_array[j--];
 		}
+		for (j = 0; j < other_n; j++)
+			other_array[j] = null;
 	}
 
 	/*
-	 * End of insertion sort implementation methods.
+	 * End of comparator sort implementation methods.
 	 */
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso;
+
+/**
+ * Keeps the areas of the scene (dirty rectangles) that must be redrawn on the next frame. The rectangles are stored using real coordinates (not relative to the
+ * viewport) and they are merged as they are added, so only a small set of rectangles is kept. When the damaged area is large enough, the whole viewport is redrawn.
+ *
+ * @author luis
+ */
+class SceneRectangleManager {
+	/* Package: */
+	SceneRectangleManager(UIsoConfiguration configuration) {
+		this.viewport_w = configuration.viewport_w;
+		this.viewport_h = configuration.viewport_h;
+		this.x = new int[MAX_RECTANGLES];
+		this.y = new int[MAX_RECTANGLES];
+		this.w = new int[MAX_RECTANGLES];
+		this.h = new int[MAX_RECTANGLES];
+		/* Nothing has been drawn yet. */
+		this.must_redraw_all = true;
+	}
+
+	/**
+	 * Adds a damaged area. Areas that are outside both the viewport used to draw the last frame and the current one are ignored as they will be redrawn anyway if they
+	 * become visible.
+	 */
+	void addRectangle(int x, int y, int w, int h, int viewport_offset_x, int viewport_offset_y) {
+		if (this.must_redraw_all || w <= 0 || h <= 0)
+			return;
+
+		if (!intersects(x, y, w, h, viewport_offset_x, viewport_offset_y, this.viewport_w, this.viewport_h)
+				&& !intersects(x, y, w, h, this.last_viewport_offset_x, this.last_viewport_offset_y, this.viewport_w, this.viewport_h))
+			return;
+
+		/* Try to merge it with an existing rectangle without increasing the area to be redrawn. */
+		for (int i = 0; i < this.n_rectangles; i++) {
+			if (this.getUnionArea(i, x, y, w, h) <= (long) this.w[i] * this.h[i] + (long) w * h) {
+				this.mergeInto(i, x, y, w, h);
+				this.mergeOverlappedRectangles(i);
+				return;
+			}
+		}
+
+		if (this.n_rectangles < MAX_RECTANGLES) {
+			this.x[this.n_rectangles] = x;
+			this.y[this.n_rectangles] = y;
+			this.w[this.n_rectangles] = w;
+			this.h[this.n_rectangles] = h;
+			this.n_rectangles++;
+
+		} else {
+			/* There is no space left. So merge it with the rectangle whose area grows less. */
+			int best = 0;
+			long best_growth = Long.MAX_VALUE;
+			for (int i = 0; i < this.n_rectangles; i++) {
+				long growth = this.getUnionArea(i, x, y, w, h) - (long) this.w[i] * this.h[i];
+				if (growth < best_growth) {
+					best_growth = growth;
+					best = i;
+				}
+			}
+			this.mergeInto(best, x, y, w, h);
+			this.mergeOverlappedRectangles(best);
+		}
+	}
+
+	void invalidateAll() {
+		this.must_redraw_all = true;
+	}
+
+	boolean mustRedrawAll() {
+		return this.must_redraw_all;
+	}
+
+	/**
+	 * Clips the rectangles to the viewport (converting them to coordinates relative to it) and decides if it is better to redraw the whole viewport.
+	 *
+	 * @return {@code true} if the whole viewport must be redrawn
+	 */
+	boolean prepareToDraw(int viewport_offset_x, int viewport_offset_y) {
+		long area = 0;
+		int n = 0;
+
+		if (this.must_redraw_all)
+			return true;
+
+		for (int i = 0; i < this.n_rectangles; i++) {
+			int min_x = Math.max(this.x[i] - viewport_offset_x, 0);
+			int min_y = Math.max(this.y[i] - viewport_offset_y, 0);
+			int max_x = Math.min(this.x[i] + this.w[i] - viewport_offset_x, this.viewport_w);
+			int max_y = Math.min(this.y[i] + this.h[i] - viewport_offset_y, this.viewport_h);
+
+			if (min_x < max_x && min_y < max_y) {
+				this.x[n] = min_x;
+				this.y[n] = min_y;
+				this.w[n] = max_x - min_x;
+				this.h[n] = max_y - min_y;
+				area += (long) this.w[n] * this.h[n];
+				n++;
+			}
+		}
+		this.n_rectangles = n;
+
+		return area * 4 >= (long) this.viewport_w * this.viewport_h * 3;
+	}
+
+	/**
+	 * Must be called after the frame has been drawn.
+	 */
+	void finishDrawing(int viewport_offset_x, int viewport_offset_y) {
+		this.n_rectangles = 0;
+		this.must_redraw_all = false;
+		this.last_viewport_offset_x = viewport_offset_x;
+		this.last_viewport_offset_y = viewport_offset_y;
+	}
+
+	int getLastViewportOffsetX() {
+		return this.last_viewport_offset_x;
+	}
+
+	int getLastViewportOffsetY() {
+		return this.last_viewport_offset_y;
+	}
+
+	int getRectanglesCount() {
+		return this.n_rectangles;
+	}
+
+	int getX(int i) {
+		return this.x[i];
+	}
+
+	int getY(int i) {
+		return this.y[i];
+	}
+
+	int getW(int i) {
+		return this.w[i];
+	}
+
+	int getH(int i) {
+		return this.h[i];
+	}
+
+	/* Private: */
+	private final static int MAX_RECTANGLES = 8;
+
+	private boolean must_redraw_all;
+	private int n_rectangles, viewport_w, viewport_h, last_viewport_offset_x, last_viewport_offset_y;
+	private int[] x, y, w, h;
+
+	private static boolean intersects(int x, int y, int w, int h, int r_x, int r_y, int r_w, int r_h) {
+		return x < r_x + r_w && r_x < x + w && y < r_y + r_h && r_y < y + h;
+	}
+
+	private long getUnionArea(int i, int x, int y, int w, int h) {
+		int min_x = Math.min(this.x[i], x);
+		int min_y = Math.min(this.y[i], y);
+		int max_x = Math.max(this.x[i] + this.w[i], x + w);
+		int max_y = Math.max(this.y[i] + this.h[i], y + h);
+		return (long) (max_x - min_x) * (max_y - min_y);
+	}
+
+	private void mergeInto(int i, int x, int y, int w, int h) {
+		int min_x = Math.min(this.x[i], x);
+		int min_y = Math.min(this.y[i], y);
+		int max_x = Math.max(this.x[i] + this.w[i], x + w);
+		int max_y = Math.max(this.y[i] + this.h[i], y + h);
+		this.x[i] = min_x;
+		this.y[i] = min_y;
+		this.w[i] = max_x - min_x;
+		this.h[i] = max_y - min_y;
+	}
+
+	/* After growing, a rectangle can overlap other ones. */
+	private void mergeOverlappedRectangles(int i) {
+		boolean merged = true;
+
+		while (merged) {
+			merged = false;
+			for (int j = 0; j < this.n_rectangles; j++) {
+				if (j != i && intersects(this.x[i], this.y[i], this.w[i], this.h[i], this.x[j], this.y[j], this.w[j], this.h[j])) {
+					this.mergeInto(i, this.x[j], this.y[j], this.w[j], this.h[j]);
+
+					/* Removes the rectangle j moving the last one to its place. */
+					this.n_rectangles--;
+					if (i == this.n_rectangles)
+						i = j;
+					this.x[j] = this.x[this.n_rectangles];
+					this.y[j] = this.y[this.n_rectangles];
+					this.w[j] = this.w[this.n_rectangles];
+					this.h[j] = this.h[this.n_rectangles];
+					merged = true;
+					break;
+				}
+			}
+		}
+	}
+}
@@ -25,4 +25,7 @@ package uiso;
  * @author luis
  */
 public class SpriteObject extends UIsoObject {
+	/* Package: */
+	/* The sprite returned by the drawer when the object was last placed on the objects grid. */
+	Sprite sprite;
 }
@@ -23,4 +23,9 @@ class SpriteSceneObject extends SceneObject {
 	/* Package: */
 	UIsoImage image;
 	SpriteObject sprite_object;
+
+	@Override
+	UIsoObject getObject() {
+		return this.sprite_object;
+	}
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso;
+
+/**
+ * Keeps the bounds of the most recently measured strings so that objects showing the same text (labels, for example) share them. The strings are compared by content
+ * and the fonts by identity. The entries are divided in sets of WAYS entries selected by the string hash code; when a set is full, its least recently used entry is
+ * replaced.
+ *
+ * @author luis
+ */
+class StringBoundsCache {
+	/* Package: */
+	StringBoundsCache(int capacity) {
+		int n_sets = 1;
+
+		/* The number of sets is a power of two. */
+		while (n_sets * WAYS < capacity)
+			n_sets <<= 1;
+		this.sets_mask = n_sets - 1;
+		this.strings = new String[n_sets * WAYS];
+		this.fonts = new Object[n_sets * WAYS];
+		this.hashes = new int[n_sets * WAYS];
+		this.w = new int[n_sets * WAYS];
+		this.h = new int[n_sets * WAYS];
+		this.last_use = new int[n_sets * WAYS];
+	}
+
+	/**
+	 * @return {@code true} if the bounds were found (and copied to {@code bounds})
+	 */
+	boolean get(String s, Object font, Rectangle bounds) {
+		int hash = s.hashCode(), first = (hash & this.sets_mask) * WAYS;
+
+		for (int i = first; i < first + WAYS; i++) {
+			if (this.hashes[i] == hash && this.fonts[i] == font && this.strings[i] != null && this.strings[i].equals(s)) {
+				this.last_use[i] = ++this.clock;
+				bounds.w = this.w[i];
+				bounds.h = this.h[i];
+				return true;
+			}
+		}
+		return false;
+	}
+
+	void put(String s, Object font, Rectangle bounds) {
+		int hash = s.hashCode(), first = (hash & this.sets_mask) * WAYS, least_recently_used = first;
+
+		for (int i = first + 1; i < first + WAYS; i++) {
+			if (this.last_use[i] < this.last_use[least_recently_used])
+				least_recently_used = i;
+		}
+		this.strings[least_recently_used] = s;
+		this.fonts[least_recently_used] = font;
+		this.hashes[least_recently_used] = hash;
+		this.w[least_recently_used] = bounds.w;
+		this.h[least_recently_used] = bounds.h;
+		this.last_use[least_recently_used] = ++this.clock;
+	}
+
+	/* Private: */
+	private static final int WAYS = 4;
+
+	private int sets_mask, clock;
+	private int[] hashes, w, h, last_use;
+	private String[] strings;
+	private Object[] fonts;
+}
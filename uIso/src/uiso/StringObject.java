@@ -28,6 +28,7 @@ public class StringObject extends UIsoObject {
 	/* Public: */
 	public void setString(String s) {
 		this.s = s;
+		this.measured_w = -1;
 	}
 
 	public String getString() {
@@ -36,6 +37,7 @@ public class StringObject extends UIsoObject {
 
 	public void getString(String s) {
 		this.s = s;
+		this.measured_w = -1;
 	}
 
 	public Object getFont() {
@@ -44,6 +46,7 @@ public class StringObject extends UIsoObject {
 
 	public void setFont(Object font) {
 		this.font = font;
+		this.measured_w = -1;
 	}
 
 	public Object getColor() {
@@ -58,4 +61,8 @@ public class StringObject extends UIsoObject {
 	Object color;
 	Object font;
 	String s;
+	/* The bounds of the string as it was when last measured. A negative width means they must be measured again. */
+	String measured_string;
+	Object measured_font;
+	int measured_w = -1, measured_h;
 }
@@ -22,4 +22,9 @@ package uiso;
 class StringSceneObject extends SceneObject {
 	/* Package: */
 	StringObject string_object;
+
+	@Override
+	UIsoObject getObject() {
+		return this.string_object;
+	}
 }
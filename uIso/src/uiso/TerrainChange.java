@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso;
+
+import uiso.interfaces.ITerrainChangeListener;
+
+/**
+ * The tiles whose heights or slopes have been changed by an operation, given to the {@link ITerrainChangeListener}. The i-th tile changed (0 <= i < n_tiles) is
+ * (x[i],y[i]); its height went from old_z[i] to new_z[i] and its slope from old_slope[i] to new_slope[i]. Only the tiles inside the map (not its margins) are
+ * informed. The engine reuses the instance and its arrays, so it is only valid during the call.
+ *
+ * @author luis
+ */
+public class TerrainChange {
+	/* Public: */
+	public int n_tiles;
+	public int[] x, y;
+	public byte[] old_z, new_z, old_slope, new_slope;
+	/* The bounding box of the tiles changed. */
+	public int min_x, min_y, max_x, max_y;
+
+	/* Package: */
+	TerrainChange() {
+		this.x = new int[64];
+		this.y = new int[64];
+		this.old_z = new byte[64];
+		this.new_z = new byte[64];
+		this.old_slope = new byte[64];
+		this.new_slope = new byte[64];
+	}
+
+	void add(int x, int y, int old_z, int old_slope) {
+		if (this.n_tiles == this.x.length) {
+			this.x = grow(this.x);
+			this.y = grow(this.y);
+			this.old_z = grow(this.old_z);
+			this.new_z = grow(this.new_z);
+			this.old_slope = grow(this.old_slope);
+			this.new_slope = grow(this.new_slope);
+		}
+		this.x[this.n_tiles] = x;
+		this.y[this.n_tiles] = y;
+		this.old_z[this.n_tiles] = (byte) old_z;
+		this.old_slope[this.n_tiles++] = (byte) old_slope;
+	}
+
+	/* Private: */
+	private static int[] grow(int[] array) {
+		int[] new_array = new int[array.length << 1];
+		System.arraycopy(array, 0, new_array, 0, array.length);
+		return new_array;
+	}
+
+	private static byte[] grow(byte[] array) {
+		byte[] new_array = new byte[array.length << 1];
+		System.arraycopy(array, 0, new_array, 0, array.length);
+		return new_array;
+	}
+}
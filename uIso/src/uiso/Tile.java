@@ -20,7 +20,7 @@
 package uiso;
 
 /**
- * This class represents a map cell. It can be extended to add more features and/or fields as necessary. Each {@link Tile} has 4 corners whose names are {@link #CORNER_N}
+ * This class represents a map cell. It can be extended to add more features as necessary. Each {@link Tile} has 4 corners whose names are {@link #CORNER_N}
  * , {@link #CORNER_S}, {@link #CORNER_W} and {@link #CORNER_E}. Their placement follow the diagram presented above. This diagram also shows the tile indexes axes of the
  * corresponding Cartesian coordinates system.
  * 
@@ -44,10 +44,15 @@ package uiso;
  * <p>
  * Some {@link Tile} informations (x-coordinate, y-coordinate and z-coordinate) can not be accessed directly because some transformations are necessary. The {@link Tile}
  * height (z-coordinate) is defined as the {@link #CORNER_N} height.
+ * <p>
+ * The map keeps the data of all tiles in arrays. When {@link UIsoConfiguration#use_tile_handles} is true, a {@link Tile} object is only a handle to them that is
+ * created when it is needed: two handles of the same tile are different objects, so they must be compared with {@link #equals(Object)}, and fields declared by
+ * subclasses are not kept (the user data bits, {@link #setUserData(int)}, and the user columns, {@link #setUserColumn(int, int)}, must be used instead). When the number
+ * of loaded map chunks is limited ({@link UIsoConfiguration#max_loaded_map_chunks}), a {@link Tile} object must not be kept since its chunk can be discarded.
  * 
  * @author luis
  */
-public class Tile {
+public class Tile implements Cloneable {
 	/* Public: */
 	public final static int CORNER_N = 1;
 	public final static int CORNER_S = 2;
@@ -108,6 +113,7 @@ public class Tile {
 	public final static byte[] corner_w_z_relative_to_min_z = {0, 0, 0, 0, 1, 0, 0, 1, 1, 0, 1, 0, 1, 1, 1};
 
 	public Tile() {
+		this.store = new int[1];
 		this.setVisibility(true);
 	}
 
@@ -115,7 +121,7 @@ public class Tile {
 	 * @return this tile slope
 	 */
 	public int getSlope() {
-		return (this.data & 0x00000F00) >>> 8;
+		return (this.store[this.offset] & 0x00000F00) >>> 8;
 	}
 
 	/**
@@ -125,42 +131,10 @@ public class Tile {
 	 *         {@link #corner_w_z_relative_to_min_z}, {@link #corner_e_z_relative_to_min_z} and {@link #min_z_difference_relative_to_tile_z}.
 	 */
 	public int getSlopeIndex() {
-		switch (this.getSlope()) {
-			default:
-				assert (false);
-			break;
-			case Tile.FLAT:
-				return FLAT_INDEX;
-			case Tile.N:
-				return N_INDEX;
-			case Tile.S:
-				return S_INDEX;
-			case Tile.E:
-				return E_INDEX;
-			case Tile.W:
-				return W_INDEX;
-			case Tile.NE:
-				return NE_INDEX;
-			case Tile.ES:
-				return ES_INDEX;
-			case Tile.SW:
-				return SW_INDEX;
-			case Tile.WN:
-				return WN_INDEX;
-			case Tile.NS:
-				return NS_INDEX;
-			case Tile.WE:
-				return WE_INDEX;
-			case Tile.NES:
-				return NES_INDEX;
-			case Tile.ESW:
-				return ESW_INDEX;
-			case Tile.WNE:
-				return WNE_INDEX;
-			case Tile.SWN:
-				return SWN_INDEX;
-		}
-		return 0;
+		int slope_index = slope_indices[this.getSlope()];
+
+		assert (slope_index >= 0);
+		return slope_index < 0 ? 0 : slope_index;
 	}
 
 	/**
@@ -169,7 +143,7 @@ public class Tile {
 	 * @return the user data stored in this {@link Tile}
 	 */
 	public int getUserData() {
-		return (this.data & 0x0000003F);
+		return (this.store[this.offset] & 0x0000003F);
 	}
 
 	/**
@@ -179,24 +153,77 @@ public class Tile {
 	 *           user data to be stored in this {@link Tile}. It uses only the 6 least significative bits.
 	 */
 	public void setUserData(int user_data) {
-		this.data = (user_data & 0x3F) | (this.data & 0xFFFFFFC0);
+		this.store[this.offset] = (user_data & 0x3F) | (this.store[this.offset] & 0xFFFFFFC0);
+		this.informModification();
 		assert this.getUserData() == user_data;
 	}
 
+	/**
+	 * Besides the user data bits, each {@link Tile} has {@link UIsoConfiguration#tile_user_columns} integers that can be used freely to store data. They are kept
+	 * in arrays (one per column) by the map instead of in the {@link Tile} objects.
+	 * 
+	 * @param column
+	 *           the column index
+	 * @return the value stored in this {@link Tile} column
+	 */
+	public int getUserColumn(int column) {
+		if (this.columns == null || column >= this.columns.length)
+			return 0;
+		return this.columns[column][this.offset];
+	}
+
+	/**
+	 * @param column
+	 *           the column index
+	 * @param value
+	 *           the value to be stored in this {@link Tile} column
+	 * @see #getUserColumn(int)
+	 */
+	public void setUserColumn(int column, int value) {
+		/* A tile that is not part of a map (for example, one being built by an ITileFactory) keeps its own columns. */
+		if (this.map == null && (this.columns == null || column >= this.columns.length)) {
+			int[][] columns = new int[column + 1][];
+
+			for (int i = 0; i < columns.length; i++)
+				columns[i] = this.columns != null && i < this.columns.length ? this.columns[i] : new int[1];
+			this.columns = columns;
+		}
+		this.columns[column][this.offset] = value;
+		this.informModification();
+	}
+
 	@Override
 	public String toString() {
 		return "[" + this.getX() + "," + this.getY() + "," + this.getZ() + "]";
 	}
 
+	/**
+	 * Two tiles are equal if they are handles of the same map tile.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (o == this)
+			return true;
+		if (!(o instanceof Tile))
+			return false;
+		return this.map != null && this.map == ((Tile) o).map && this.index == ((Tile) o).index;
+	}
+
+	@Override
+	public int hashCode() {
+		return this.map != null ? this.index : super.hashCode();
+	}
+
 	public boolean isVisible() {
-		return (this.data & 0x00000080) != 0;
+		return (this.store[this.offset] & 0x00000080) != 0;
 	}
 
 	public void setVisibility(boolean visibility) {
 		if (visibility)
-			this.data = (1 << 7) | (this.data & 0xFFFFFF7F);
+			this.store[this.offset] = (1 << 7) | (this.store[this.offset] & 0xFFFFFF7F);
 		else
-			this.data &= 0xFFFFFF7F;
+			this.store[this.offset] &= 0xFFFFFF7F;
+		this.informModification();
 	}
 
 	/* Package: */
@@ -211,57 +238,103 @@ public class Tile {
 
 	final static byte[] neighbour_direction = {DIRECTION_SE, DIRECTION_SW, DIRECTION_S, DIRECTION_N, DIRECTION_NW, DIRECTION_NE, DIRECTION_E, DIRECTION_W};
 
+	/* The map that keeps the tile data. It is null while the tile is not part of a map. */
+	UIsoMap map;
+	/* All data is stored in one integer (store[offset]) to save memory. The integers of the tiles of a chunk are kept in one array by the map. */
+	/* [31 ... 17] (15 bits): unused (the coordinates are given by the index) */
+	/* [16 ... 16] (1 bit ): changed by the current terraform batch or operation (see UIsoEngine) */
+	/* [15 ... 12] (4 bits): z */
+	/* [11 ... 8] (4 bits): slope */
+	/* [ 7 ... 7] (1 bit ): visibility */
+	/* [ 6 ... 6] (1 bit ): must correct the slope */
+	/* [ 5 ... 0] (6 bits): user data */
+	int[] store;
+	int[][] columns;
+	int offset;
+	/* The tile index in the map (see UIsoMap). */
+	int index;
+
+	final static int VISIBLE = 0x00000080;
+	final static int MUST_CORRECT_THE_SLOPE = 0x00000040;
+	final static int TERRAFORMED = 0x00010000;
+
+	final static int getZ(int data) {
+		return (data & 0x0000F000) >>> 12;
+	}
+
+	final static int getSlope(int data) {
+		return (data & 0x00000F00) >>> 8;
+	}
+
+	final static int getSlopeIndex(int data) {
+		return slope_indices[getSlope(data)];
+	}
+
+	/* Creates a handle (an object of the same class) that is not bound to any map tile. */
+	Tile newHandle() {
+		try {
+			Tile tile = (Tile) super.clone();
+
+			tile.map = null;
+			return tile;
+		} catch (CloneNotSupportedException e) {
+			/* It does not happen since Tile is Cloneable. */
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/* From now on, the tile data is kept by the map. */
+	void bind(UIsoMap map, int index, int[] store, int[][] columns, int offset) {
+		this.map = map;
+		this.index = index;
+		this.store = store;
+		this.columns = columns;
+		this.offset = offset;
+	}
+
 	int getX() {
-		return (this.data & 0xFF000000) >>> 24;
+		return this.map != null ? this.map.getX(this.index) : 0;
 	}
 
 	int getY() {
-		return (this.data & 0x00FF0000) >>> 16;
+		return this.map != null ? this.map.getY(this.index) : 0;
 	}
 
 	int getZ() {
-		return (this.data & 0x0000F000) >>> 12;
+		return (this.store[this.offset] & 0x0000F000) >>> 12;
 	}
 
 	boolean mustCorrectTheSlope() {
-		return (this.data & 0x00000040) != 0;
+		return (this.store[this.offset] & 0x00000040) != 0;
 	}
 
 	void setMustCorrectTheSlope(boolean must_correct_the_slope) {
 		if (must_correct_the_slope)
-			this.data = (1 << 6) | (this.data & 0xFFFFFFBF);
+			this.store[this.offset] = (1 << 6) | (this.store[this.offset] & 0xFFFFFFBF);
 		else
-			this.data &= 0xFFFFFFBF;
+			this.store[this.offset] &= 0xFFFFFFBF;
+		this.informModification();
 	}
 
 	void setSlope(int slope) {
-		this.data = ((slope & 0xF) << 8) | (this.data & 0xFFFFF0FF);
-	}
-
-	void setX(int x) {
-		assert (x <= 0xFF);
-		this.data = ((x & 0xFF) << 24) | (this.data & 0x00FFFFFF);
-	}
-
-	void setY(int y) {
-		assert (y <= 0xFF);
-		this.data = ((y & 0xFF) << 16) | (this.data & 0xFF00FFFF);
+		this.store[this.offset] = ((slope & 0xF) << 8) | (this.store[this.offset] & 0xFFFFF0FF);
+		this.informModification();
 	}
 
 	void setZ(int z) {
 		assert (z <= 0xF);
-		this.data = ((z & 0xF) << 12) | (this.data & 0xFFFF0FFF);
+		this.store[this.offset] = ((z & 0xF) << 12) | (this.store[this.offset] & 0xFFFF0FFF);
+		this.informModification();
 	}
 
 	/* Private: */
-	/* All data is stored in one field to save memory. */
-	/* The compiler allocates 4 bytes for byte, boolean, short and int types (at least when I have tested). */
-	/* [31 ... 24] (8 bits): x */
-	/* [23 ... 16] (8 bits): y */
-	/* [15 ... 12] (4 bits): z */
-	/* [11 ... 8] (4 bits): slope */
-	/* [ 7 ... 7] (1 bit ): visibility */
-	/* [ 6 ... 6] (1 bit ): must correct the slope */
-	/* [ 5 ... 0] (6 bits): user data */
-	private int data;
+	/* The map must know which chunks have been changed to save them. */
+	private void informModification() {
+		if (this.map != null)
+			this.map.informModification(this.index);
+	}
+
+	/* The slope index of each slope (-1 if the slope is invalid). */
+	private final static byte[] slope_indices = {FLAT_INDEX, N_INDEX, S_INDEX, NS_INDEX, W_INDEX, WN_INDEX, SW_INDEX, SWN_INDEX, E_INDEX, NE_INDEX, ES_INDEX,
+			NES_INDEX, WE_INDEX, WNE_INDEX, ESW_INDEX, -1};
 }
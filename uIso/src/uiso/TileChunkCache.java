@@ -0,0 +1,322 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso;
+
+import uiso.interfaces.IOffscreenDrawer;
+
+/**
+ * Keeps groups of tiles (chunks) drawn into images. The map is divided in squares of tile_chunk_size x tile_chunk_size tiles. A chunk image is created (baked) when it
+ * is drawn for the first time and it is reused until one of its tiles changes. The least recently used chunks are discarded when the maximum number of them is reached.
+ * Only the chunks in the cache have an entry (slot), which is found through a hash table, so the memory used does not depend on the map size.
+ *
+ * @author luis
+ */
+class TileChunkCache {
+	/* Package: */
+	TileChunkCache(UIsoEngine isometric_engine, UIsoMap map, int tile_chunk_size, int max_tile_chunks_in_cache) {
+		int table_size = 1;
+
+		this.isometric_engine = isometric_engine;
+		this.drawer = (IOffscreenDrawer) isometric_engine.drawer;
+		this.sprites = isometric_engine.sprites;
+		this.virtual_world_tile_size = isometric_engine.virtual_world_tile_size;
+		this.slope_height = isometric_engine.slope_height;
+		/* Only these tiles are drawn. */
+		this.min_tile = isometric_engine.tile_max_z;
+		this.max_tile_x = isometric_engine.w + isometric_engine.tile_max_z - 1;
+		this.max_tile_y = isometric_engine.h + isometric_engine.tile_max_z - 1;
+		this.map = map;
+		this.tile_chunk_size = tile_chunk_size;
+		this.virtual_coordinates = new Point();
+		this.real_coordinates = new Point();
+		this.baked_sprites = new Sprite[tile_chunk_size * tile_chunk_size];
+		this.baked_x = new int[tile_chunk_size * tile_chunk_size];
+		this.baked_y = new int[tile_chunk_size * tile_chunk_size];
+
+		this.images = new UIsoImage[max_tile_chunks_in_cache];
+		this.valid = new boolean[max_tile_chunks_in_cache];
+		this.keys = new int[max_tile_chunks_in_cache];
+		this.previous = new int[max_tile_chunks_in_cache];
+		this.next = new int[max_tile_chunks_in_cache];
+		this.least_recently_used = this.most_recently_used = -1;
+		this.x = new int[max_tile_chunks_in_cache];
+		this.y = new int[max_tile_chunks_in_cache];
+
+		/* At most half of the table is used. */
+		this.table_shift = 32;
+		while (table_size < (max_tile_chunks_in_cache << 1)) {
+			table_size <<= 1;
+			this.table_shift--;
+		}
+		this.table = new int[table_size];
+	}
+
+	void invalidateTile(int tile_x, int tile_y) {
+		int slot = this.findSlot(((tile_y / this.tile_chunk_size) << 16) | (tile_x / this.tile_chunk_size));
+
+		if (slot >= 0)
+			this.valid[slot] = false;
+	}
+
+	void invalidateAll() {
+		for (int i = 0; i < this.n_slots; i++)
+			this.valid[i] = false;
+	}
+
+	/**
+	 * Draws the chunks that contain the tiles given by the iterator. They are drawn row by row. The area (relative to viewport) is used to skip the chunks that are not
+	 * visible.
+	 */
+	void drawTiles(TileSpanIterator tile_span_iterator, int area_x, int area_y, int area_w, int area_h) {
+		int chunk_y = -1, min_chunk_x = 0, max_chunk_x = -1;
+
+		/* Join the spans of the tile rows that belong to the same row of chunks. */
+		while (tile_span_iterator.nextRow()) {
+			if (tile_span_iterator.tile_y / this.tile_chunk_size != chunk_y) {
+				this.drawChunksRow(chunk_y, min_chunk_x, max_chunk_x, area_x, area_y, area_w, area_h);
+				chunk_y = tile_span_iterator.tile_y / this.tile_chunk_size;
+				min_chunk_x = Integer.MAX_VALUE;
+				max_chunk_x = Integer.MIN_VALUE;
+			}
+			min_chunk_x = Math.min(min_chunk_x, tile_span_iterator.min_x / this.tile_chunk_size);
+			max_chunk_x = Math.max(max_chunk_x, tile_span_iterator.max_x / this.tile_chunk_size);
+		}
+		this.drawChunksRow(chunk_y, min_chunk_x, max_chunk_x, area_x, area_y, area_w, area_h);
+	}
+
+	/* Private: */
+	private int tile_chunk_size, n_slots, virtual_world_tile_size, slope_height, min_tile, max_tile_x, max_tile_y;
+	private int[] keys, x, y; /* The chunks images top-left corners use real coordinates. */
+	/* The slots in use form a doubly linked list ordered by their last use, so the chunk to be discarded is found without a search. -1 ends the list. */
+	private int[] previous, next;
+	private int least_recently_used, most_recently_used;
+	private int[] table; /* Open addressing (linear probing) hash table whose entries are the slots plus one (0 means empty). The keys are (chunk_y << 16) | chunk_x. */
+	private int table_shift; /* 32 - log2(table.length). */
+	private boolean[] valid;
+	private UIsoImage[] images;
+	private UIsoMap map;
+	private Sprite[] sprites;
+	/* The sprites of the chunk being baked and their top-left corners (real coordinates). */
+	private Sprite[] baked_sprites;
+	private int[] baked_x, baked_y;
+	private Point virtual_coordinates, real_coordinates;
+	private IOffscreenDrawer drawer;
+	private UIsoEngine isometric_engine;
+
+	private void drawChunksRow(int chunk_y, int min_chunk_x, int max_chunk_x, int area_x, int area_y, int area_w, int area_h) {
+		int viewport_offset_x = this.isometric_engine.viewport_offset_x, viewport_offset_y = this.isometric_engine.viewport_offset_y;
+
+		for (int chunk_x = min_chunk_x; chunk_x <= max_chunk_x; chunk_x++) {
+			int key = (chunk_y << 16) | chunk_x, i = this.findSlot(key), x, y;
+			UIsoImage image;
+
+			if (i < 0)
+				i = this.addSlot(key);
+			if (!this.valid[i])
+				this.bakeChunk(i, chunk_x, chunk_y);
+			this.use(i);
+
+			image = this.images[i];
+			if (image == null)
+				continue;
+			x = this.x[i] - viewport_offset_x;
+			y = this.y[i] - viewport_offset_y;
+
+			/* Check the rectangles intersection. */
+			if (y + image.getH() <= area_y || y >= area_y + area_h || x + image.getW() <= area_x || x >= area_x + area_w)
+				continue;
+
+			this.drawer.drawImage(x, y, image);
+		}
+	}
+
+	private void bakeChunk(int i, int chunk_x, int chunk_y) {
+		int min_x = Integer.MAX_VALUE, min_y = Integer.MAX_VALUE, max_x = Integer.MIN_VALUE, max_y = Integer.MIN_VALUE;
+		int first_tile_x = Math.max(chunk_x * this.tile_chunk_size, this.min_tile), first_tile_y = Math.max(chunk_y * this.tile_chunk_size, this.min_tile);
+		int last_tile_x = Math.min((chunk_x + 1) * this.tile_chunk_size - 1, this.max_tile_x);
+		int last_tile_y = Math.min((chunk_y + 1) * this.tile_chunk_size - 1, this.max_tile_y);
+		int w, h, n_baked_sprites = 0;
+
+		/* First, find the area occupied by the tiles sprites. The sprites and their positions are kept to be drawn later. */
+		for (int tile_y = first_tile_y; tile_y <= last_tile_y; tile_y++) {
+			for (int tile_x = first_tile_x; tile_x <= last_tile_x; tile_x++) {
+				int j = 0, index = this.map.getIndex(tile_x, tile_y), data = this.map.getData(index);
+
+				if ((data & Tile.VISIBLE) == 0)
+					continue;
+
+				this.drawer.getTileSprite(this.map.getFlyweightTile(index), this.sprites);
+				this.computeTileRealCoordinates(tile_x, tile_y, data);
+				while (this.sprites[j] != null) {
+					Sprite sprite = this.sprites[j++];
+					int x = this.real_coordinates.x - sprite.getAnchorX(), y = this.real_coordinates.y - sprite.getAnchorY();
+
+					this.isometric_engine.updateTileSpritesExtents(sprite);
+					min_x = Math.min(min_x, x);
+					min_y = Math.min(min_y, y);
+					max_x = Math.max(max_x, x + sprite.image.getW());
+					max_y = Math.max(max_y, y + sprite.image.getH());
+
+					if (n_baked_sprites == this.baked_sprites.length)
+						this.growBakedSprites();
+					this.baked_sprites[n_baked_sprites] = sprite;
+					this.baked_x[n_baked_sprites] = x;
+					this.baked_y[n_baked_sprites++] = y;
+				}
+			}
+		}
+
+		w = max_x - min_x;
+		h = max_y - min_y;
+		if (this.images[i] != null && (w <= 0 || this.images[i].getW() != w || this.images[i].getH() != h))
+			this.disposeImage(i);
+		this.valid[i] = true;
+		/* There is nothing to be drawn. */
+		if (w <= 0)
+			return;
+
+		if (this.images[i] == null)
+			this.images[i] = this.drawer.createOffscreenImage(w, h);
+		this.x[i] = min_x;
+		this.y[i] = min_y;
+
+		/* Now, draw them. */
+		this.drawer.beginOffscreenDrawing(this.images[i]);
+		this.drawer.setClip(0, 0, w, h);
+		this.drawer.clear(0, 0, w, h);
+		for (int j = 0; j < n_baked_sprites; j++) {
+			this.drawer.drawImage(this.baked_x[j] - min_x, this.baked_y[j] - min_y, this.baked_sprites[j].image);
+			this.baked_sprites[j] = null;
+		}
+		this.drawer.endOffscreenDrawing();
+	}
+
+	private void growBakedSprites() {
+		int n = this.baked_sprites.length << 1;
+		Sprite[] baked_sprites = new Sprite[n];
+		int[] baked_x = new int[n], baked_y = new int[n];
+
+		System.arraycopy(this.baked_sprites, 0, baked_sprites, 0, this.baked_sprites.length);
+		System.arraycopy(this.baked_x, 0, baked_x, 0, this.baked_x.length);
+		System.arraycopy(this.baked_y, 0, baked_y, 0, this.baked_y.length);
+		this.baked_sprites = baked_sprites;
+		this.baked_x = baked_x;
+		this.baked_y = baked_y;
+	}
+
+	private void computeTileRealCoordinates(int tile_x, int tile_y, int data) {
+		this.virtual_coordinates.x = (tile_x * this.virtual_world_tile_size);
+		this.virtual_coordinates.y = (tile_y * this.virtual_world_tile_size);
+		this.virtual_coordinates.z = (Tile.getZ(data) * this.slope_height);
+		UIsoEngine.toRealCoordinates(this.virtual_coordinates, this.real_coordinates);
+	}
+
+	private void disposeImage(int i) {
+		this.drawer.disposeOffscreenImage(this.images[i]);
+		this.images[i] = null;
+		this.valid[i] = false;
+	}
+
+	/* Fibonacci hashing: the high bits of the product depend on all the bits of the key, while the low ones only depend on its low bits (chunk_x). */
+	private int hash(int key) {
+		return (key * 0x9E3779B9) >>> this.table_shift;
+	}
+
+	/* Returns the slot of the chunk or -1 if it is not in the cache. */
+	private int findSlot(int key) {
+		for (int i = this.hash(key); this.table[i] != 0; i = (i + 1) & (this.table.length - 1)) {
+			if (this.keys[this.table[i] - 1] == key)
+				return this.table[i] - 1;
+		}
+		return -1;
+	}
+
+	/* Gives a slot to the chunk. When all of them are in use, the least recently used chunk is discarded. */
+	private int addSlot(int key) {
+		int slot, i;
+
+		if (this.n_slots < this.keys.length) {
+			slot = this.n_slots++;
+		} else {
+			slot = this.least_recently_used;
+			if (this.images[slot] != null)
+				this.disposeImage(slot);
+			this.removeFromTable(this.keys[slot]);
+			this.unlink(slot);
+		}
+		this.link(slot);
+
+		this.keys[slot] = key;
+		this.valid[slot] = false;
+		for (i = this.hash(key); this.table[i] != 0; i = (i + 1) & (this.table.length - 1))
+			;
+		this.table[i] = slot + 1;
+		return slot;
+	}
+
+	/* Moves the slot to the end of the list. */
+	private void use(int slot) {
+		if (slot != this.most_recently_used) {
+			this.unlink(slot);
+			this.link(slot);
+		}
+	}
+
+	/* Appends the slot to the list. */
+	private void link(int slot) {
+		this.previous[slot] = this.most_recently_used;
+		this.next[slot] = -1;
+		if (this.most_recently_used >= 0)
+			this.next[this.most_recently_used] = slot;
+		else
+			this.least_recently_used = slot;
+		this.most_recently_used = slot;
+	}
+
+	private void unlink(int slot) {
+		if (this.previous[slot] >= 0)
+			this.next[this.previous[slot]] = this.next[slot];
+		else
+			this.least_recently_used = this.next[slot];
+		if (this.next[slot] >= 0)
+			this.previous[this.next[slot]] = this.previous[slot];
+		else
+			this.most_recently_used = this.previous[slot];
+	}
+
+	private void removeFromTable(int key) {
+		int mask = this.table.length - 1, i = this.hash(key), j;
+
+		while (this.keys[this.table[i] - 1] != key)
+			i = (i + 1) & mask;
+		this.table[i] = 0;
+
+		/* Move back the entries that would not be found anymore. */
+		for (j = (i + 1) & mask; this.table[j] != 0; j = (j + 1) & mask) {
+			int k = this.hash(this.keys[this.table[j] - 1]);
+
+			if (((j - k) & mask) >= ((j - i) & mask)) {
+				this.table[i] = this.table[j];
+				this.table[j] = 0;
+				i = j;
+			}
+		}
+	}
+}
@@ -0,0 +1,563 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso;
+
+/**
+ * Finds the tiles under points of the viewport. The walk of each point starts at the lowest height of the tiles that can be under it, which is read from the minimum
+ * heights of the map blocks. A TilePicker keeps the state of the walk, so each thread needs its own one: the engine keeps one and
+ * {@link #pickTiles(int[], int[], int, int[], int[], int[], int[], int[], int[], int)} creates one for each extra thread.
+ *
+ * @author luis
+ */
+class TilePicker implements Runnable {
+	/* Package: */
+	final static int POINTS_PER_TASK = 512; /* The points of a batch are divided in tasks of this size between the threads. */
+
+	int position; /* The position of the last tile picked relative to the map polygon. See UIsoEngine#tile_position_relative_map_polygon. */
+
+	TilePicker(UIsoEngine engine, UIsoMap map, MapingHelper maping_helper) {
+		this.engine = engine;
+		this.map = map;
+		this.maping_helper = maping_helper;
+		this.tile_w = engine.tile_w;
+		this.tile_h = engine.tile_h;
+		this.slope_height = engine.slope_height;
+		this.virtual_world_tile_size = engine.virtual_world_tile_size;
+		this.tile_max_z = engine.tile_max_z;
+		this.w = engine.w;
+		this.h = engine.h;
+		this.real_w = engine.real_w;
+		this.real_h = engine.real_h;
+		this.picking_depth = (this.tile_max_z * this.slope_height) / this.tile_h + 2;
+		this.point = new Point();
+		this.flat_tile = new Point();
+		this.fine_coordinates = new Point();
+	}
+
+	/**
+	 * @return the index of the tile under the point, clamped to the user tiles as {@link UIsoEngine#getTileFromRealCoordinates(Point, Point)} does
+	 */
+	int pickTile(int real_x, int real_y, Point fine_coordinates) {
+		this.has_cached_base_z = false;
+		return this.pickUserTile(real_x, real_y, fine_coordinates);
+	}
+
+	/**
+	 * Picks the tiles under n points. See {@link UIsoEngine#getTilesFromRealCoordinates(int[], int[], int, int[], int[], int[], int[], int[], int[], int)}.
+	 */
+	void pickTiles(int[] real_x, int[] real_y, int n, int[] tiles_x, int[] tiles_y, int[] fine_x, int[] fine_y, int[] fine_z, int[] positions, int n_threads) {
+		Thread[] threads;
+		boolean interrupted = false;
+
+		this.setBatch(real_x, real_y, n, tiles_x, tiles_y, fine_x, fine_y, fine_z, positions);
+		this.next_task = 0;
+		n_threads = Math.max(1, Math.min(n_threads, n / POINTS_PER_TASK));
+		if (n_threads > 1)
+			this.prepareMap();
+		threads = new Thread[n_threads - 1];
+		for (int i = 0; i < threads.length; i++) {
+			TilePicker picker = new TilePicker(this.engine, this.map, this.maping_helper);
+
+			picker.owner = this;
+			picker.setBatch(real_x, real_y, n, tiles_x, tiles_y, fine_x, fine_y, fine_z, positions);
+			threads[i] = new Thread(picker, "uIso tile picker");
+			threads[i].start();
+		}
+		this.owner = this;
+		this.run();
+		for (int i = 0; i < threads.length; i++) {
+			while (true) {
+				try {
+					threads[i].join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		this.setBatch(null, null, 0, null, null, null, null, null, null);
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	public void run() {
+		Point fine_coordinates = (this.fine_x != null || this.fine_y != null || this.fine_z != null) ? this.fine_coordinates : null;
+		int task;
+
+		/* The tasks are sequences of points, so the neighbouring points share the cached lowest height. */
+		this.has_cached_base_z = false;
+		while ((task = this.owner.takeTask()) >= 0) {
+			int last = Math.min((task + 1) * POINTS_PER_TASK, this.n_points);
+
+			for (int i = task * POINTS_PER_TASK; i < last; i++) {
+				int index = this.pickUserTile(this.real_x[i], this.real_y[i], fine_coordinates);
+
+				this.tiles_x[i] = this.map.getX(index) - this.tile_max_z;
+				this.tiles_y[i] = this.map.getY(index) - this.tile_max_z;
+				if (fine_coordinates != null && this.position == UIsoConstants.INSIDE_POLYGON) {
+					if (this.fine_x != null)
+						this.fine_x[i] = fine_coordinates.x;
+					if (this.fine_y != null)
+						this.fine_y[i] = fine_coordinates.y;
+					if (this.fine_z != null)
+						this.fine_z[i] = fine_coordinates.z;
+				}
+				if (this.positions != null)
+					this.positions[i] = this.position;
+			}
+		}
+	}
+
+	/* Private: */
+	private int tile_w, tile_h, slope_height, virtual_world_tile_size, tile_max_z, w, h, real_w, real_h;
+	private int picking_depth; /* See getPickingBaseZ. */
+	private boolean has_cached_base_z;
+	private int cached_tile_x, cached_tile_y, cached_base_z; /* The lowest height of the last flat tile. */
+	private Point point; /* The point relative to the current tile. */
+	private Point flat_tile, fine_coordinates;
+	private UIsoEngine engine;
+	private UIsoMap map;
+	private MapingHelper maping_helper;
+	/* The batch: */
+	private TilePicker owner; /* The one that gives the tasks. */
+	private int n_points, next_task;
+	private int[] real_x, real_y, tiles_x, tiles_y, fine_x, fine_y, fine_z, positions;
+
+	private void setBatch(int[] real_x, int[] real_y, int n, int[] tiles_x, int[] tiles_y, int[] fine_x, int[] fine_y, int[] fine_z, int[] positions) {
+		this.real_x = real_x;
+		this.real_y = real_y;
+		this.n_points = n;
+		this.tiles_x = tiles_x;
+		this.tiles_y = tiles_y;
+		this.fine_x = fine_x;
+		this.fine_y = fine_y;
+		this.fine_z = fine_z;
+		this.positions = positions;
+	}
+
+	private synchronized int takeTask() {
+		if (this.next_task * POINTS_PER_TASK >= this.n_points)
+			return -1;
+		return this.next_task++;
+	}
+
+	/*
+	 * The map is not thread safe: it loads the chunks when they are used for the first time and computes the minimum heights of the blocks when they are read. So
+	 * before the threads start, it is done for all the tiles that the walks can visit: the ones from two tiles before the flat tiles of the points to the ones that
+	 * can be lifted up to the points.
+	 */
+	private void prepareMap() {
+		int min_x = Integer.MAX_VALUE, min_y = Integer.MAX_VALUE, max_x = Integer.MIN_VALUE, max_y = Integer.MIN_VALUE;
+		int first_x = Integer.MAX_VALUE, first_y = Integer.MAX_VALUE, last_x = Integer.MIN_VALUE, last_y = Integer.MIN_VALUE;
+
+		for (int i = 0; i < this.n_points; i++) {
+			min_x = Math.min(min_x, this.real_x[i]);
+			max_x = Math.max(max_x, this.real_x[i]);
+			min_y = Math.min(min_y, this.real_y[i]);
+			max_y = Math.max(max_y, this.real_y[i]);
+		}
+		for (int i = 0; i < 4; i++) {
+			int x = ((i & 1) == 0 ? min_x : max_x) + this.engine.viewport_offset_x + (this.tile_w >> 1);
+			int y = ((i & 2) == 0 ? min_y : max_y) + this.engine.viewport_offset_y;
+
+			this.getFlatTile(x, y, this.flat_tile);
+			first_x = Math.min(first_x, this.flat_tile.x);
+			first_y = Math.min(first_y, this.flat_tile.y);
+			last_x = Math.max(last_x, this.flat_tile.x);
+			last_y = Math.max(last_y, this.flat_tile.y);
+		}
+		first_x = UIsoEngine.clamp(0, this.real_w + 1, first_x - 2);
+		first_y = UIsoEngine.clamp(0, this.real_h + 1, first_y - 2);
+		last_x = UIsoEngine.clamp(0, this.real_w + 1, last_x + this.picking_depth + 3);
+		last_y = UIsoEngine.clamp(0, this.real_h + 1, last_y + this.picking_depth + 3);
+		for (int block_y = first_y >> UIsoMap.Z_BLOCK_SHIFT; block_y <= last_y >> UIsoMap.Z_BLOCK_SHIFT; block_y++) {
+			for (int block_x = first_x >> UIsoMap.Z_BLOCK_SHIFT; block_x <= last_x >> UIsoMap.Z_BLOCK_SHIFT; block_x++)
+				this.map.getMinZ(block_x, block_y);
+		}
+	}
+
+	/* The same as pickMapTile, but the tile is clamped to the user tiles. */
+	private int pickUserTile(int real_x, int real_y, Point fine_coordinates) {
+		int index = this.pickMapTile(real_x, real_y, fine_coordinates), x = this.map.getX(index), y = this.map.getY(index);
+
+		if (y < this.tile_max_z) {
+			y = this.tile_max_z;
+			this.position |= UIsoConstants.ABOVE_WN_LINE;
+		} else if (y > this.h + this.tile_max_z - 1) {
+			y = this.h + this.tile_max_z - 1;
+			this.position |= UIsoConstants.BELOW_ES_LINE;
+		}
+
+		if (x < this.tile_max_z) {
+			x = this.tile_max_z;
+			this.position |= UIsoConstants.ABOVE_NE_LINE;
+		} else if (x > this.w + this.tile_max_z - 1) {
+			x = this.w + this.tile_max_z - 1;
+			this.position |= UIsoConstants.BELOW_SW_LINE;
+		}
+
+		return this.map.getIndex(x, y);
+	}
+
+	/* Finds the tile (with z = 0 and no slope) that contains the point (x, y). The point relative to the tile is kept in this.point. */
+	private void getFlatTile(int x, int y, Point tile) {
+		int tile_x, tile_y, rest_x, rest_y;
+
+		/*
+		 *      -2           -1        0
+		 * |-8 -7 -6 -5|-4 -3 -2 -1| 0  1  2  3|
+		 *             |-3 -2 -1  0| 
+		 * Adjust negative numbers so we can correctly divide and employ mod operator. */
+		if (x < 0) {
+			tile_x = (-(x + 1)) / this.tile_w;
+			tile_x = -(tile_x + 1);
+			rest_x = (-(x + 1)) % (this.tile_w);
+			rest_x = (this.tile_w - 1) - rest_x;
+		} else {
+			tile_x = x / this.tile_w;
+			rest_x = (x % this.tile_w);
+		}
+
+		if (y < 0) {
+			tile_y = (-(y + 1)) / this.tile_h;
+			tile_y = -(tile_y + 1);
+			rest_y = (-(y + 1)) % (this.tile_h);
+			rest_y = (this.tile_h - 1) - rest_y;
+		} else {
+			tile_y = y / this.tile_h;
+			rest_y = (y % this.tile_h);
+		}
+
+		/* Rotate the axis. */
+		tile_y = tile_x + tile_y;
+		tile_x = tile_y - (tile_x << 1);
+
+		tile.x = tile_x;
+		tile.y = tile_y;
+		this.point.x = rest_x;
+		this.point.y = rest_y;
+	}
+
+	/*
+	 * The tiles that can be under a point are in the screen column that goes down from the flat tile (tile_x, tile_y) that contains it: a tile is lifted
+	 * min_z * slope_height pixels, so only the tiles up to picking_depth diagonal steps below it have to be considered. Their corners are not lower than the minimum
+	 * height of the blocks of the map that contain them.
+	 */
+	private int getPickingBaseZ(int tile_x, int tile_y) {
+		int last_x = tile_x + this.picking_depth + 2, last_y = tile_y + this.picking_depth + 2, min_z = this.tile_max_z;
+
+		if (0 > tile_x || 0 > tile_y || last_x > this.real_w || last_y > this.real_h)
+			return 0;
+		for (int block_y = tile_y >> UIsoMap.Z_BLOCK_SHIFT; block_y <= last_y >> UIsoMap.Z_BLOCK_SHIFT && min_z > 0; block_y++) {
+			for (int block_x = tile_x >> UIsoMap.Z_BLOCK_SHIFT; block_x <= last_x >> UIsoMap.Z_BLOCK_SHIFT && min_z > 0; block_x++)
+				min_z = Math.min(min_z, this.map.getMinZ(block_x, block_y));
+		}
+		return min_z;
+	}
+
+	/* Returns the index of the tile of the map (the margins included) under the point. */
+	private int pickMapTile(int real_x, int real_y, Point fine_coordinates) {
+		int tile_x, tile_y, x, y, base_z, position, c = 0;
+
+		/* 
+		 * Convert x and y to coordinates relative to
+		 *  
+		 *              |--------> (X)
+		 *              |
+		 *              |
+		 *             \|/
+		 *             (Y)
+		 * this corner.
+		 *         |
+		 *        \|/
+		 *          ________             
+		 *          |  /\  |
+		 *          | /  \ |
+		 *          |/    \|<---- Tile (0,0)
+		 *          /\    /\
+		 *         /  \  /  \
+		 *             \/    
+		 */
+		x = (real_x + this.engine.viewport_offset_x);
+		y = (real_y + this.engine.viewport_offset_y);
+		x += (this.tile_w >> 1);
+
+		/* The search starts at the lowest height of the tiles that can be under the point: the tiles drawn below it are skipped. */
+		this.getFlatTile(x, y, this.flat_tile);
+		/* Neighbouring points are usually over the same flat tile. */
+		if (!this.has_cached_base_z || this.flat_tile.x != this.cached_tile_x || this.flat_tile.y != this.cached_tile_y) {
+			this.cached_tile_x = this.flat_tile.x;
+			this.cached_tile_y = this.flat_tile.y;
+			this.cached_base_z = this.getPickingBaseZ(this.flat_tile.x, this.flat_tile.y);
+			this.has_cached_base_z = true;
+		}
+		base_z = this.cached_base_z;
+		if (base_z > 0)
+			this.getFlatTile(x, y + base_z * this.slope_height, this.flat_tile);
+		tile_x = this.flat_tile.x;
+		tile_y = this.flat_tile.y;
+
+		int min_z;
+		int slope_index;
+		/* While it does not stabilize. */
+		do {
+			int n_z;
+
+			/* Debug: */
+			assert (c++ <= 30);
+
+			if (0 > tile_x || 0 > tile_y || tile_x > this.real_w || tile_y > this.real_h) {
+				n_z = 0;
+				slope_index = 0;
+			} else {
+				int data = this.map.getData(tile_x, tile_y);
+				n_z = Tile.getZ(data);
+				slope_index = Tile.getSlopeIndex(data);
+			}
+			min_z = n_z + Tile.min_z_difference_relative_to_tile_z[slope_index];
+
+			/* As it is shifted to simulate the height. */
+			this.point.y += ((min_z - base_z) * this.slope_height);
+			position = this.maping_helper.getPositionRelativeToSlopePolygon(this.point, slope_index);
+			this.point.y -= ((min_z - base_z) * this.slope_height);
+
+			switch (position) {
+				case UIsoConstants.ABOVE_NE_LINE:
+					tile_x--;
+					this.point.x -= this.tile_w >> 1;
+					this.point.y += this.tile_h >> 1;
+				break;
+
+				case UIsoConstants.BELOW_ES_LINE:
+					tile_y++;
+					this.point.x -= this.tile_w >> 1;
+					this.point.y -= this.tile_h >> 1;
+				break;
+
+				case UIsoConstants.BELOW_SW_LINE:
+					tile_x++;
+					this.point.x += this.tile_w >> 1;
+					this.point.y -= this.tile_h >> 1;
+				break;
+
+				case UIsoConstants.ABOVE_WN_LINE:
+					tile_y--;
+					this.point.x += this.tile_w >> 1;
+					this.point.y += this.tile_h >> 1;
+				break;
+			}
+		} while (position != UIsoConstants.INSIDE_POLYGON);
+
+		this.position = UIsoConstants.INSIDE_POLYGON;
+		if (tile_x < 0) {
+			tile_x = 0;
+			this.position |= UIsoConstants.ABOVE_NE_LINE;
+		} else if (tile_x > this.real_w) {
+			tile_x = this.real_w;
+			this.position |= UIsoConstants.BELOW_SW_LINE;
+		}
+
+		if (tile_y < 0) {
+			tile_y = 0;
+			this.position |= UIsoConstants.ABOVE_WN_LINE;
+		} else if (tile_y > this.real_h) {
+			tile_y = this.real_h;
+			this.position |= UIsoConstants.BELOW_ES_LINE;
+		}
+
+		/* If the tile is not inside the map, the {@code fine_coordinates} are meaningless. */
+		if (fine_coordinates != null && this.position == UIsoConstants.INSIDE_POLYGON) {
+			int r_x = this.point.x - (this.tile_w >> 1);
+			int r_y = this.point.y + (min_z - base_z + Tile.corner_n_z_relative_to_min_z[slope_index]) * this.slope_height;
+			int h = this.slope_height, l = this.virtual_world_tile_size;
+			/*
+			 * The virtual coordinates are v_x / den, v_y / den and v_z / (den * l), so only integers are used until the rounding. On the slope surfaces, v_x (or v_y, when
+			 * y_first is set) is numerator / (den / 2) and the other one follows from it. On the flat parts, v_x is an integer division. The height is
+			 * z_base * h + (z_x * v_x + z_y * v_y) / (den * l).
+			 */
+			int den = 2, numerator = 0, v_x, v_y;
+			int z_base = 0, z_x = 0, z_y = 0;
+			boolean flat = false, y_first = false;
+
+			switch (Tile.getSlope(this.map.getData(tile_x, tile_y))) {
+				case Tile.FLAT:
+					flat = true;
+				break;
+				case Tile.NE:
+					numerator = (2 * r_y - r_x) * l;
+					den = 2 * (4 * l + 2 * h);
+					z_base = 1;
+					z_x = -h;
+				break;
+				case Tile.SW:
+					numerator = (2 * r_y - r_x) * l;
+					den = 2 * (4 * l - 2 * h);
+					z_x = h;
+				break;
+				case Tile.ES:
+					numerator = (2 * r_y + r_x) * l;
+					den = 2 * (4 * l - 2 * h);
+					y_first = true;
+					z_y = h;
+				break;
+				case Tile.WN:
+					numerator = (2 * r_y + r_x) * l;
+					den = 2 * (4 * l + 2 * h);
+					y_first = true;
+					z_base = 1;
+					z_y = -h;
+				break;
+				case Tile.N:
+					if (r_y >= h + l) {
+						r_y -= h;
+						flat = true;
+					} else {
+						numerator = 2 * l * r_y - l * r_x - h * r_x;
+						den = 2 * 4 * (l + h);
+						z_base = 1;
+						z_x = z_y = -h;
+					}
+				break;
+				case Tile.S:
+					if (r_y >= l) {
+						r_y -= (l + 1) >> 1;
+						numerator = 2 * l * r_y - l * r_x + h * r_x;
+						den = 2 * 4 * (l - h);
+						z_base = -1;
+						z_x = z_y = h;
+					} else {
+						flat = true;
+					}
+				break;
+				case Tile.W:
+					if (r_x >= 0) {
+						flat = true;
+					} else {
+						numerator = 2 * l * r_y - l * r_x - h * r_x;
+						den = 2 * 4 * l;
+						z_x = h;
+						z_y = -h;
+					}
+				break;
+				case Tile.E:
+					if (r_x <= 0) {
+						flat = true;
+					} else {
+						numerator = 2 * l * r_y - l * r_x + h * r_x;
+						den = 2 * 4 * l;
+						z_x = -h;
+						z_y = h;
+					}
+				break;
+				case Tile.WE:
+					if (r_y > h) {
+						r_y += l;
+						numerator = 2 * l * r_y - l * r_x - h * r_x;
+						den = 2 * 4 * (l + h);
+						z_base = 2;
+						z_x = z_y = -h;
+					} else {
+						numerator = 2 * l * r_y - l * r_x + h * r_x;
+						den = 2 * 4 * (l - h);
+						z_x = z_y = h;
+					}
+				break;
+				case Tile.NS:
+					if (r_x <= 0) {
+						numerator = 2 * l * r_y - l * r_x + h * r_x;
+						z_x = -h;
+						z_y = h;
+					} else {
+						numerator = 2 * l * r_y - l * r_x - h * r_x;
+						z_x = h;
+						z_y = -h;
+					}
+					den = 2 * 4 * l;
+					z_base = 1;
+				break;
+				case Tile.NES:
+					if (r_x < 0) {
+						numerator = 2 * l * r_y - l * r_x + h * r_x;
+						den = 2 * 4 * l;
+						z_x = -h;
+						z_y = h;
+					} else {
+						flat = true;
+					}
+					z_base = 1;
+				break;
+				case Tile.SWN:
+					if (r_x <= 0) {
+						flat = true;
+					} else {
+						numerator = 2 * l * r_y - l * r_x - h * r_x;
+						den = 2 * 4 * l;
+						z_x = h;
+						z_y = -h;
+					}
+					z_base = 1;
+				break;
+				case Tile.ESW:
+					if (r_y >= h) {
+						r_y += h;
+						flat = true;
+						z_base = 1;
+					} else {
+						numerator = 2 * l * r_y - l * r_x + h * r_x;
+						den = 2 * 4 * (l - h);
+						z_x = z_y = h;
+					}
+				break;
+				case Tile.WNE:
+					if (r_y <= l) {
+						flat = true;
+						z_base = 1;
+					} else {
+						r_y += h;
+						numerator = 2 * l * r_y - l * r_x - h * r_x;
+						den = 2 * 4 * (l + h);
+						z_base = 2;
+						z_x = z_y = -h;
+					}
+				break;
+				default:
+					assert (false);
+					flat = true;
+			}
+
+			if (flat) {
+				v_x = ((2 * r_y - r_x) / 4) * 2;
+				v_y = r_x + v_x;
+			} else if (y_first) {
+				v_y = 2 * numerator;
+				v_x = v_y - r_x * (den >> 1);
+			} else {
+				v_x = 2 * numerator;
+				v_y = r_x * (den >> 1) + v_x;
+			}
+
+			fine_coordinates.x = UIsoEngine.clamp(0, this.virtual_world_tile_size - 1, UIsoEngine.roundDivision(v_x, den));
+			fine_coordinates.y = UIsoEngine.clamp(0, this.virtual_world_tile_size - 1, UIsoEngine.roundDivision(v_y, den));
+			fine_coordinates.z = UIsoEngine.clamp(0, this.slope_height, UIsoEngine.roundDivision(z_base * h * l * den + z_x * v_x + z_y * v_y, den * l));
+		}
+
+		return this.map.getIndex(tile_x, tile_y);
+	}
+}
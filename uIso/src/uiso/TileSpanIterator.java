@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso;
+
+/**
+ * Iterates through the tile rows whose sprites can intersect an area, giving for each one the range of tiles (span) that must be drawn. A tile whose north vertex is at
+ * (rx,ry) satisfies:
+ *
+ * <pre>
+ * rx = (tile_y - tile_x) * 2 * virtual_world_tile_size
+ * ry = (tile_x + tile_y) * virtual_world_tile_size - tile_z * slope_height
+ * </pre>
+ *
+ * So the area limits d = tile_y - tile_x and s = tile_x + tile_y, and the tiles inside it form a diamond in the map.
+ *
+ * @author luis
+ */
+class TileSpanIterator {
+	/* Package: */
+	int tile_y, min_x, max_x; /* The current span. */
+
+	TileSpanIterator(UIsoEngine isometric_engine) {
+		this.virtual_world_tile_size = isometric_engine.virtual_world_tile_size;
+		this.max_z_height = isometric_engine.tile_max_z * isometric_engine.slope_height;
+		/* Only these tiles are drawn. */
+		this.first_tile = isometric_engine.tile_max_z;
+		this.last_tile_x = isometric_engine.w + isometric_engine.tile_max_z - 1;
+		this.last_tile_y = isometric_engine.h + isometric_engine.tile_max_z - 1;
+	}
+
+	/**
+	 * The area uses real coordinates. The tile sprites extents (left, right, up and down) are relative to their anchors, that is, the tile north vertex.
+	 */
+	void start(int x, int y, int w, int h, int left, int right, int up, int down) {
+		int size = this.virtual_world_tile_size;
+
+		/* A sprite intersects the area when x - right < rx < x + w + left and y - down < ry < y + h + up. */
+		this.min_d = UIsoEngine.floorDiv(x - right, size << 1) + 1;
+		this.max_d = UIsoEngine.floorDiv(x + w + left - 1, size << 1);
+		/* The tile height moves it up. */
+		this.min_s = UIsoEngine.floorDiv(y - down, size) + 1;
+		this.max_s = UIsoEngine.floorDiv(y + h + up + this.max_z_height - 1, size);
+
+		this.tile_y = Math.max((this.min_s + this.min_d + 1) >> 1, this.first_tile) - 1;
+		this.end_tile_y = Math.min((this.max_s + this.max_d) >> 1, this.last_tile_y);
+	}
+
+	/**
+	 * @return {@code false} if there are no more rows
+	 */
+	boolean nextRow() {
+		while (++this.tile_y <= this.end_tile_y) {
+			this.min_x = Math.max(Math.max(this.tile_y - this.max_d, this.min_s - this.tile_y), this.first_tile);
+			this.max_x = Math.min(Math.min(this.tile_y - this.min_d, this.max_s - this.tile_y), this.last_tile_x);
+			if (this.min_x <= this.max_x)
+				return true;
+		}
+		return false;
+	}
+
+	/* Private: */
+	private int virtual_world_tile_size, max_z_height, first_tile, last_tile_x, last_tile_y, end_tile_y, min_s, max_s, min_d, max_d;
+}
@@ -21,9 +21,15 @@ package uiso;
 
 import uiso.exceptions.InvalidConfigurationException;
 import uiso.interfaces.IDrawer;
+import uiso.interfaces.IMapChangeListener;
+import uiso.interfaces.IMapChunkPersistence;
+import uiso.interfaces.IObjectMetrics;
+import uiso.interfaces.IOffscreenDrawer;
 import uiso.interfaces.ISimulationLogic;
+import uiso.interfaces.ITerrainChangeListener;
 import uiso.interfaces.ITileFactory;
 import uiso.interfaces.IUIsoObjectComparator;
+import uiso.interfaces.IUIsoObjectDepthKeyProvider;
 
 /**
  * This class contains the configurations of the engine. It implements {@link Clonable} interface.
@@ -32,25 +38,85 @@ import uiso.interfaces.IUIsoObjectComparator;
  */
 public class UIsoConfiguration {
 	/* Public: */
-	public boolean debug, use_dirty_rectangle;
+	public boolean debug;
+	/**
+	 * When it is true, only the areas of the viewport that have changed since the last frame are redrawn. The drawing surface must keep its contents between two
+	 * {@link UIsoEngine#draw()} calls. Changes made without the engine knowledge must be informed through {@link UIsoEngine#invalidateTile(Tile)},
+	 * {@link UIsoEngine#informObjectAppearanceChange(UIsoObject)} or {@link UIsoEngine#invalidateViewport()}.
+	 */
+	public boolean use_dirty_rectangle;
+	/**
+	 * When it is true (and {@link #use_dirty_rectangle} is also true), the part of the previous frame that is still visible after a scroll is moved using
+	 * {@link IDrawer#copyArea(int, int, int, int, int, int)}. Only the exposed areas are drawn.
+	 */
+	public boolean use_copy_area;
+	/**
+	 * When it is true, the tiles are drawn into images (one per chunk of tile_chunk_size x tile_chunk_size tiles) that are reused while the tiles do not change. The
+	 * drawer must implement {@link IOffscreenDrawer}. The chunks are drawn row by row, so the tile sprites must not be wider than the tiles. At most
+	 * max_tile_chunks_in_cache images are kept.
+	 */
+	public boolean use_tile_chunk_cache;
+	public int tile_chunk_size = 8, max_tile_chunks_in_cache = 64;
+	/**
+	 * When it is true, the bounds of the last string_bounds_cache_size strings measured are shared by all {@link StringObject}s. Each object always keeps the bounds of
+	 * its own string.
+	 */
+	public boolean use_string_bounds_cache;
+	public int string_bounds_cache_size = 256;
 	/** Viewport configuration: */
 	public int viewport_w, viewport_h;
-	/** Scene configuration: */
+	/** Scene configuration. The maximum number of objects is the initial capacity of the scene buffers. They grow when necessary. */
 	public int max_objects_in_the_scene = 50, max_string_objects_in_the_scene = 10, max_sprites_per_tile = 2;
 	/** Tile configuration: */
 	public int tile_h, tile_w, slope_height;
-	/** Map configuration: */
+	/** Map configuration. The map is kept in chunks that are only allocated when used, so w and h can be up to 65535 - 2 * tile_max_z. */
 	public int w, h, tile_max_z;
+	/** The number of integers (besides the user data bits) kept for each tile. See {@link Tile#setUserColumn(int, int)}. */
+	public int tile_user_columns;
+	/**
+	 * By default, the map keeps the {@link Tile} built by the {@link ITileFactory} for each tile of the loaded chunks, so the fields of {@link Tile} subclasses are kept
+	 * and the same object is always returned for a tile. When it is true, only the tiles data is kept (one integer per tile plus the user columns) and the {@link Tile}
+	 * objects are handles created when needed (see {@link Tile}), which uses much less memory but breaks the identity of the tiles.
+	 */
+	public boolean use_tile_handles;
+	/**
+	 * Map streaming. The map chunks ({@link UIsoConstants#MAP_CHUNK_SIZE} x {@link UIsoConstants#MAP_CHUNK_SIZE} tiles) are always built when they are used for the
+	 * first time. When max_loaded_map_chunks is greater than 0, the chunks that have not been visible for the longest time are discarded while there are more
+	 * loaded chunks than that; the modified ones are only discarded if map_chunk_persistence is informed (they are saved first). When use_map_chunk_loader is true,
+	 * the chunks up to map_chunk_prefetch_distance chunks away from the viewport in the scroll direction are built by a background thread, so the
+	 * {@link ITileFactory} and the {@link IMapChunkPersistence} must be thread safe. See {@link UIsoEngine#dispose()}. Headless engines must call
+	 * {@link UIsoEngine#updateMapChunks()} since they do not draw.
+	 */
+	public int max_loaded_map_chunks, map_chunk_prefetch_distance = 1;
+	public boolean use_map_chunk_loader;
+	public IMapChunkPersistence map_chunk_persistence;
+	/** Optional. It is informed about every change of the tiles and the objects. */
+	public IMapChangeListener map_change_listener;
+	/** Optional. It is informed once per operation about the tiles whose heights or slopes have been changed. */
+	public ITerrainChangeListener terrain_change_listener;
+	/** When it is null, the engine is headless: everything but {@link UIsoEngine#draw()} works and object_metrics places the objects. */
 	public IDrawer drawer;
+	/** Only used (and required) by headless engines. See {@link uiso.util.SpriteMetricsTable}. */
+	public IObjectMetrics object_metrics;
 	public ISimulationLogic simulation_logic;
 	public ITileFactory tile_factory;
 	public IUIsoObjectComparator sprite_object_comparator, string_object_comparator;
+	/**
+	 * Optional. When informed, it is used instead of the corresponding {@link IUIsoObjectComparator} to sort the scene objects.
+	 */
+	public IUIsoObjectDepthKeyProvider sprite_object_depth_key_provider, string_object_depth_key_provider;
 
 	@Override
 	public java.lang.Object clone() throws CloneNotSupportedException {
 		UIsoConfiguration o = (UIsoConfiguration) super.clone();
 		o.debug = this.debug;
 		o.use_dirty_rectangle = this.use_dirty_rectangle;
+		o.use_copy_area = this.use_copy_area;
+		o.use_tile_chunk_cache = this.use_tile_chunk_cache;
+		o.tile_chunk_size = this.tile_chunk_size;
+		o.max_tile_chunks_in_cache = this.max_tile_chunks_in_cache;
+		o.use_string_bounds_cache = this.use_string_bounds_cache;
+		o.string_bounds_cache_size = this.string_bounds_cache_size;
 
 		o.max_sprites_per_tile = this.max_sprites_per_tile;
 		o.viewport_w = this.viewport_w;
@@ -65,13 +131,24 @@ public class UIsoConfiguration {
 		o.w = this.w;
 		o.h = this.h;
 		o.tile_max_z = this.tile_max_z;
+		o.tile_user_columns = this.tile_user_columns;
+		o.use_tile_handles = this.use_tile_handles;
+		o.max_loaded_map_chunks = this.max_loaded_map_chunks;
+		o.map_chunk_prefetch_distance = this.map_chunk_prefetch_distance;
+		o.use_map_chunk_loader = this.use_map_chunk_loader;
+		o.map_chunk_persistence = this.map_chunk_persistence;
+		o.map_change_listener = this.map_change_listener;
+		o.terrain_change_listener = this.terrain_change_listener;
 
 		o.drawer = this.drawer;
+		o.object_metrics = this.object_metrics;
 		o.simulation_logic = this.simulation_logic;
 		o.tile_factory = this.tile_factory;
 
 		o.sprite_object_comparator = this.sprite_object_comparator;
 		o.string_object_comparator = this.string_object_comparator;
+		o.sprite_object_depth_key_provider = this.sprite_object_depth_key_provider;
+		o.string_object_depth_key_provider = this.string_object_depth_key_provider;
 
 		return o;
 	}
@@ -88,18 +165,37 @@ public class UIsoConfiguration {
 
 		if (this.w <= 0 || this.h <= 0)
 			throw new InvalidConfigurationException("The map dimensions are not valid.");
-		if (this.w + (this.tile_max_z << 1) + 1 > 256 || this.h + (this.tile_max_z << 1) + 1 > 256)
+		if (this.w + (this.tile_max_z << 1) + 1 > UIsoMap.MAX_SIZE || this.h + (this.tile_max_z << 1) + 1 > UIsoMap.MAX_SIZE)
 			throw new InvalidConfigurationException("The map dimensions are too big.");
 		if (this.slope_height <= 0)
 			throw new InvalidConfigurationException("Tile slope heigth is invalid.");
+		if (this.slope_height > 255)
+			throw new InvalidConfigurationException("Tile slope height is too big.");
 
 		if (this.max_objects_in_the_scene < 0)
 			throw new InvalidConfigurationException("The maximum number of objects in a scene is invalid.");
 		if (this.max_string_objects_in_the_scene < 0)
 			throw new InvalidConfigurationException("The maximum number of string objects in a scene is invalid.");
 
-		if (this.drawer == null)
+		if (this.tile_user_columns < 0)
+			throw new InvalidConfigurationException("The number of tile user columns is invalid.");
+		if (this.max_loaded_map_chunks < 0 || this.map_chunk_prefetch_distance < 0)
+			throw new InvalidConfigurationException("The map streaming configuration is invalid.");
+
+		if (this.drawer == null && this.object_metrics == null)
 			throw new InvalidConfigurationException("No IDrawer object has been informed.");
+		if (this.drawer == null && this.use_dirty_rectangle)
+			throw new InvalidConfigurationException("The dirty rectangle system requires an IDrawer.");
+		if (this.use_copy_area && !this.use_dirty_rectangle)
+			throw new InvalidConfigurationException("The copy area can only be used with the dirty rectangle system.");
+		if (this.use_tile_chunk_cache) {
+			if (!(this.drawer instanceof IOffscreenDrawer))
+				throw new InvalidConfigurationException("The tile chunk cache requires an IOffscreenDrawer.");
+			if (this.tile_chunk_size <= 0 || this.max_tile_chunks_in_cache <= 0)
+				throw new InvalidConfigurationException("The tile chunk cache configuration is invalid.");
+		}
+		if (this.use_string_bounds_cache && this.string_bounds_cache_size <= 0)
+			throw new InvalidConfigurationException("The string bounds cache size is invalid.");
 		if (this.simulation_logic == null)
 			throw new InvalidConfigurationException("No ISimulationLogic object has been informed.");
 		if (this.tile_factory == null)
@@ -107,9 +203,9 @@ public class UIsoConfiguration {
 		if (this.viewport_w < 8 || this.viewport_h < 8)
 			throw new InvalidConfigurationException("The viewport dimensions are invalid.");
 
-		if (this.sprite_object_comparator == null)
+		if (this.sprite_object_comparator == null && this.sprite_object_depth_key_provider == null)
 			throw new InvalidConfigurationException("The IUIsoObjectComparator to sort SpriteSceneObjects is invalid.");
-		if (this.string_object_comparator == null)
+		if (this.string_object_comparator == null && this.string_object_depth_key_provider == null)
 			throw new InvalidConfigurationException("The IUIsoObjectComparator to sort StringSceneObjects is invalid.");
 	}
 }
@@ -45,5 +45,8 @@ public class UIsoConstants {
 	public final static int BELOW_SW_LINE = 4;
 	public final static int BELOW_ES_LINE = 8;
 
+	/* The map is kept in squares (chunks) of MAP_CHUNK_SIZE x MAP_CHUNK_SIZE tiles. */
+	public final static int MAP_CHUNK_SIZE = 64;
+
 	/* Package: */
 }
@@ -21,7 +21,11 @@ package uiso;
 
 import uiso.exceptions.InvalidTileCoordinatesException;
 import uiso.interfaces.IDrawer;
+import uiso.interfaces.IMapChangeListener;
+import uiso.interfaces.IObjectMetrics;
 import uiso.interfaces.ISimulationLogic;
+import uiso.interfaces.ITerrainChangeListener;
+import uiso.interfaces.ITileOverlayDrawer;
 import uiso.util.MathUtils;
 
 /**
@@ -69,7 +73,8 @@ import uiso.util.MathUtils;
  */
 public class UIsoEngine {
 	/* Public: */
-	public static boolean has_clamped, clamped_to_min, clamped_to_max;
+	/** The result of the last {@link #clampAndNotify(int, int, int)} call of this engine. */
+	public boolean has_clamped, clamped_to_min, clamped_to_max;
 
 	public final static int clamp(int min, int max, int value) {
 		if (value < min)
@@ -79,18 +84,22 @@ public class UIsoEngine {
 		return value;
 	}
 
-	public final static int clampAndNotify(int min, int max, int value) {
-		has_clamped = true;
-		clamped_to_min = clamped_to_max = false;
+	/**
+	 * The same as {@link #clamp(int, int, int)}, but {@link #has_clamped}, {@link #clamped_to_min} and {@link #clamped_to_max} tell what has been done. They belong to
+	 * the engine, so engines used by different threads do not disturb each other.
+	 */
+	public final int clampAndNotify(int min, int max, int value) {
+		this.has_clamped = true;
+		this.clamped_to_min = this.clamped_to_max = false;
 		if (value < min) {
-			clamped_to_min = true;
+			this.clamped_to_min = true;
 			return min;
 		}
 		if (value > max) {
-			clamped_to_max = true;
+			this.clamped_to_max = true;
 			return max;
 		}
-		has_clamped = false;
+		this.has_clamped = false;
 		return value;
 	}
 
@@ -113,19 +122,42 @@ public class UIsoEngine {
 		this.tile_max_z = configuration.tile_max_z;
 		this.slope_height = configuration.slope_height;
 		this.virtual_world_tile_size = (configuration.tile_w >> 2);
-		this.map = new UIsoMap(this.w = configuration.w, this.h = configuration.h, this.tile_max_z, configuration.tile_factory);
+		this.w = configuration.w;
+		this.h = configuration.h;
+		this.map = new UIsoMap(configuration);
+		this.map_chunk_prefetch_distance = configuration.map_chunk_prefetch_distance;
+		this.map_change_listener = configuration.map_change_listener;
+		this.terrain_change_listener = configuration.terrain_change_listener;
+		if (this.terrain_change_listener != null)
+			this.terrain_change = new TerrainChange();
 		this.maping_helper = new MapingHelper(this.tile_w, this.tile_h, this.virtual_world_tile_size, this.slope_height);
 		this.real_w = this.w + (this.tile_max_z << 1) - 1;
 		this.real_h = this.h + (this.tile_max_z << 1) - 1;
-
-		this.affected_tiles = this.tile_max_z > 0 ? new Tile[(this.tile_max_z * this.tile_max_z) << 2] : null;
+		this.tile_picker = new TilePicker(this, this.map, this.maping_helper);
+		this.buildSlopeHeights();
+
+		this.affected_tiles = this.tile_max_z > 0 ? new int[(this.tile_max_z * this.tile_max_z) << 2] : null;
+		if (this.tile_max_z > 0) {
+			int size = (this.tile_max_z << 1) + 1;
+
+			this.terraform_queue = new int[size * size];
+			this.terraform_queue_indices = new int[size * size];
+			this.terraform_stamps = new int[size * size];
+			this.terraform_z = new int[size * size];
+			this.terraform_directions = new int[size * size];
+		}
+		this.terraform_log_indices = new int[64];
+		this.terraform_log_old_z = new int[64];
+		this.terraform_log_new_z = new int[64];
 
 		this.use_dirty_rectangle_system = configuration.use_dirty_rectangle;
+		this.use_copy_area = configuration.use_copy_area;
 		this.viewport_h = configuration.viewport_h;
 		this.viewport_h_half = (this.viewport_h >> 1);
 		this.viewport_w = configuration.viewport_w;
 		this.viewport_w_half = (this.viewport_w >> 1);
 		this.drawer = configuration.drawer;
+		this.object_metrics = configuration.drawer != null ? configuration.drawer : configuration.object_metrics;
 		this.simulation_logic = configuration.simulation_logic;
 		this.real_coordinates = new Point();
 		this.virtual_coordinates = new Point();
@@ -135,20 +167,34 @@ public class UIsoEngine {
 		this.string_bounds = new Rectangle();
 		this.sprites = new Sprite[configuration.max_sprites_per_tile + 1];
 
+		/* The tile sprites are expected to cover at least the tile itself (the anchor is its north vertex). */
+		this.tile_sprites_max_left = this.tile_sprites_max_right = (this.tile_w >> 1);
+		this.tile_sprites_max_down = this.tile_h;
+
 		this.viewport_center.x = this.tile_max_z * this.virtual_world_tile_size;
 		this.viewport_center.y = this.tile_max_z * this.virtual_world_tile_size;
 		toRealCoordinates(this.viewport_center, this.real_coordinates);
 		this.viewport_offset_x = this.real_coordinates.x - this.viewport_w_half;
 		this.viewport_offset_y = this.real_coordinates.y - this.viewport_h_half;
+		this.map_chunks_viewport_offset_x = this.viewport_offset_x;
+		this.map_chunks_viewport_offset_y = this.viewport_offset_y;
 
 		this.objects_grid_manager = new ObjectsGridManager(this);
+		this.tile_span_iterator = new TileSpanIterator(this);
 
 		this.scene_objects_manager =
 				new SceneObjectsManager(this, configuration.max_objects_in_the_scene, configuration.max_string_objects_in_the_scene, configuration.sprite_object_comparator,
-						configuration.string_object_comparator);
+						configuration.string_object_comparator, configuration.sprite_object_depth_key_provider, configuration.string_object_depth_key_provider);
 
 		/* Dirty rectangle system. */
-		// this.scene_rectangle_manager = new SceneRectangleManager(configuration);
+		if (this.use_dirty_rectangle_system)
+			this.scene_rectangle_manager = new SceneRectangleManager(configuration);
+
+		if (configuration.use_tile_chunk_cache)
+			this.tile_chunk_cache = new TileChunkCache(this, this.map, configuration.tile_chunk_size, configuration.max_tile_chunks_in_cache);
+
+		if (configuration.use_string_bounds_cache)
+			this.string_bounds_cache = new StringBoundsCache(configuration.string_bounds_cache_size);
 	}
 
 	/**
@@ -172,73 +218,61 @@ public class UIsoEngine {
 	 * <li>{@link StringObject}'s layer.</li>
 	 * </ul>
 	 * 
+	 * @throws IllegalStateException
+	 *            if the engine is headless (it has no {@link IDrawer})
 	 */
-	public void draw() {
-		int min_x, min_y, max_x, max_y;
-		Tile tile;
-
+	public void draw() throws IllegalStateException {
+		if (this.drawer == null)
+			throw new IllegalStateException("A headless engine can not draw.");
 		this.drawer.beginDrawing(this);
+		this.tile_sprites_extents_changed = false;
+
+		if (this.map.isStreaming())
+			this.internalUpdateMapChunks();
+		this.scene_objects_manager.startFrame();
 
 		/* Use the dirty rectangle system. */
 		if (this.use_dirty_rectangle_system) {
-			/* It is not ready yet. */
+			int delta_x = this.viewport_offset_x - this.scene_rectangle_manager.getLastViewportOffsetX();
+			int delta_y = this.viewport_offset_y - this.scene_rectangle_manager.getLastViewportOffsetY();
 
-			/* Without dirty rectangle system. */
-		} else {
-			this.drawer.setClip(0, 0, this.viewport_w, this.viewport_h);
-			this.drawer.clear();
+			/* The debug information covers the whole viewport. */
+			if (this.debug)
+				this.scene_rectangle_manager.invalidateAll();
+			else if (delta_x != 0 || delta_y != 0)
+				this.scrollPreviousFrame(delta_x, delta_y);
 
-			/* As the mapping has an error of +-2 pixels we need to consider this. */
-			this.viewport_point.x = -2;
-			this.viewport_point.y = -2;
-			tile = this.internalGetTileFromRealCoordinates(this.viewport_point, null);
-			min_y = tile.getY();
-			if (min_y < this.tile_max_z)
-				min_y = this.tile_max_z;
-
-			this.viewport_point.x = this.viewport_w - 1 + 2;
-			tile = this.internalGetTileFromRealCoordinates(this.viewport_point, null);
-			min_x = tile.getX();
-			if (min_x < this.tile_max_z)
-				min_x = this.tile_max_z;
-
-			this.viewport_point.y = this.viewport_h - 1 + 2;
-			tile = this.internalGetTileFromRealCoordinates(this.viewport_point, null);
-			max_y = tile.getY();
-			if (max_y >= this.h + this.tile_max_z)
-				max_y = (this.h + this.tile_max_z - 1);
-
-			this.viewport_point.x = 0 - 2;
-			tile = this.internalGetTileFromRealCoordinates(this.viewport_point, null);
-			max_x = tile.getX();
-			if (max_x >= this.w + this.tile_max_z)
-				max_x = (this.w + this.tile_max_z - 1);
-
-			/* Draw the tiles. */
-			for (int y = min_y; y <= max_y; y++) {
-				for (int x = min_x; x <= max_x; x++) {
-					tile = this.map.tiles[y][x];
-					if (tile.isVisible())
-						this.drawTile(tile);
+			if (this.scene_rectangle_manager.prepareToDraw(this.viewport_offset_x, this.viewport_offset_y)) {
+				this.drawArea(0, 0, this.viewport_w, this.viewport_h);
+			} else {
+				for (int i = 0; i < this.scene_rectangle_manager.getRectanglesCount(); i++) {
+					this.drawArea(this.scene_rectangle_manager.getX(i), this.scene_rectangle_manager.getY(i), this.scene_rectangle_manager.getW(i),
+							this.scene_rectangle_manager.getH(i));
 				}
 			}
+			this.scene_rectangle_manager.finishDrawing(this.viewport_offset_x, this.viewport_offset_y);
 
-			/* Draw the objects. */
-			this.drawObjects();
-
-			/* Debug: */
-			if (this.debug) {
-				this.objects_grid_manager.drawObjectsGrid();
-				this.drawCentralCross();
-				//@formatter:off
-				this.drawer.drawString(0, 0, String.format("[%4d,%4d] [%4d,%4d]\n[%4d,%4d] [%4d,%4d]\n[%4d,%4d]"
-						, this.viewport_offset_x, this.viewport_offset_y
-						, this.viewport_offset_x + this.viewport_w - 1, this.viewport_offset_y
-						, this.viewport_offset_x, this.viewport_offset_y + this.viewport_h - 1
-						, this.viewport_offset_x + this.viewport_w - 1, this.viewport_offset_y + this.viewport_h - 1
-						, this.viewport_center.x, this.viewport_center.y));
-				//@formatter:on
-			}
+			/* Some tiles may have not been drawn as the extents used to find them were too small. */
+			if (this.tile_sprites_extents_changed)
+				this.scene_rectangle_manager.invalidateAll();
+
+			/* Without dirty rectangle system. */
+		} else {
+			this.drawArea(0, 0, this.viewport_w, this.viewport_h);
+		}
+
+		/* Debug: */
+		if (this.debug) {
+			this.objects_grid_manager.drawObjectsGrid();
+			this.drawCentralCross();
+			//@formatter:off
+			this.drawer.drawString(0, 0, String.format("[%4d,%4d] [%4d,%4d]\n[%4d,%4d] [%4d,%4d]\n[%4d,%4d]"
+					, this.viewport_offset_x, this.viewport_offset_y
+					, this.viewport_offset_x + this.viewport_w - 1, this.viewport_offset_y
+					, this.viewport_offset_x, this.viewport_offset_y + this.viewport_h - 1
+					, this.viewport_offset_x + this.viewport_w - 1, this.viewport_offset_y + this.viewport_h - 1
+					, this.viewport_center.x, this.viewport_center.y));
+			//@formatter:on
 		}
 
 		/* Debug: */
@@ -250,10 +284,6 @@ public class UIsoEngine {
 		// }
 
 		this.drawer.endDrawing();
-
-		/* Dirty rectangle system. */
-		// this.last_viewport_offset_x = this.viewport_offset_x;
-		// this.last_viewport_offset_y = this.viewport_offset_y;
 	}
 
 	/**
@@ -267,32 +297,49 @@ public class UIsoEngine {
 	 * @return {@code true} if tile z-coordinate can be changed to desired value
 	 */
 	public boolean canSetTileZ(Tile tile, int z) {
-		boolean can_set_z;
-		int new_z = clamp(0, this.tile_max_z, z), x = tile.getX(), y = tile.getY();
+		int new_z = clamp(0, this.tile_max_z, z);
 
 		this.n_affected_tiles = 0;
-		can_set_z = new_z == tile.getZ() ? true : this.internalCanSetTileZ(tile, new_z);
-		for (int i = 0; i < Tile.N_NEIGHBORS && can_set_z; i++) {
-			int neighbour_x = x + Tile.neighbour_x_offset[i];
-			int neighbour_y = y + Tile.neighbour_y_offset[i];
-
-			if (0 <= neighbour_x && neighbour_x <= this.real_w && 0 <= neighbour_y && neighbour_y <= this.real_h) {
-				Tile neighbour_tile = this.map.tiles[neighbour_y][neighbour_x];
-				int difference = (new_z - neighbour_tile.getZ());
-				boolean increasing = difference > 0;
-
-				if (difference >= 2 && increasing) {
-					can_set_z = can_set_z && this.recursiveSetTileZ(neighbour_tile, new_z - 1, increasing, Tile.neighbour_direction[i], true);
-				} else if (difference <= -2 && !increasing) {
-					can_set_z = can_set_z && this.recursiveSetTileZ(neighbour_tile, new_z + 1, increasing, Tile.neighbour_direction[i], true);
-				}
-			}
-		}
-		return can_set_z;
+		if (new_z != tile.getZ() && !this.internalCanSetTileZ(tile.index, new_z))
+			return false;
+		return this.propagateTileZ(tile.getX(), tile.getY(), new_z, true);
 	}
 
 	public final int getAbsoluteHeightOfPointInTileSlopeSurface(Tile tile, int x, int y) {
-		return this.getRelativeHeightOfPointInSlopeSurface(tile.getSlope(), x, y) + this.getTileMinZ(tile) * this.slope_height;
+		int slope = tile.getSlope();
+
+		/* The minimum height is one level below the tile height when the N corner is raised. */
+		return this.getRelativeHeightOfPointInSlopeSurface(slope, x, y) + (tile.getZ() - (slope & Tile.CORNER_N)) * this.slope_height;
+	}
+
+	/**
+	 * The same as {@link #getAbsoluteHeightOfPointInTileSlopeSurface(Tile, int, int)} for many points at once. Each point is given by its virtual coordinates (not relative
+	 * to a tile) and the height of the slope surface of the tile under it is computed.
+	 * 
+	 * @param x
+	 *           the virtual x-coordinates of the points
+	 * @param y
+	 *           the virtual y-coordinates of the points
+	 * @param z
+	 *           receives the virtual heights (z-coordinates) of the points
+	 * @param n
+	 *           the number of points
+	 * @throws InvalidTileCoordinatesException
+	 *            if a point is outside the map (including its margins)
+	 */
+	public final void getAbsoluteHeightsOfPointsInSlopeSurface(int[] x, int[] y, int[] z, int n) throws InvalidTileCoordinatesException {
+		int size = this.virtual_world_tile_size;
+
+		for (int i = 0; i < n; i++) {
+			int tile_x = floorDiv(x[i], size), tile_y = floorDiv(y[i], size), map_x = tile_x + this.tile_max_z, map_y = tile_y + this.tile_max_z, data, slope;
+
+			if (map_x < 0 || map_x > this.real_w || map_y < 0 || map_y > this.real_h)
+				throw new InvalidTileCoordinatesException("There is no tile with the following coordinates: [" + tile_x + "," + tile_y + "].");
+			data = this.map.getData(map_x, map_y);
+			slope = Tile.getSlope(data);
+			z[i] = (this.slope_heights[slope][(y[i] - tile_y * size) * size + x[i] - tile_x * size] & 0xFF) + (Tile.getZ(data) - (slope & Tile.CORNER_N))
+					* this.slope_height;
+		}
 	}
 
 	/**
@@ -311,59 +358,11 @@ public class UIsoEngine {
 	public final int getRelativeHeightOfPointInSlopeSurface(int slope, int x, int y) throws IllegalArgumentException {
 		if (x < 0 || x >= this.virtual_world_tile_size || y < 0 || y >= this.virtual_world_tile_size)
 			throw new IllegalArgumentException("The point [" + x + "," + y + "] is not inside tile.");
-		float h = this.slope_height;
-		float l = this.virtual_world_tile_size;
-		float a = l / h;
-		switch (slope) {
-			case Tile.FLAT:
-				return 0;
-
-			case Tile.NE:
-				return MathUtils.round(h - x / a);
-
-			case Tile.SW:
-				return MathUtils.round(x / a);
-
-			case Tile.ES:
-				return MathUtils.round(y / a);
-
-			case Tile.WN:
-				return MathUtils.round(h - y / a);
-
-			case Tile.N:
-				return MathUtils.round(x + y >= l ? 0 : (l * h - x * h - h * y) / l);
-
-			case Tile.S:
-				return MathUtils.round(x + y <= l ? 0 : (l * h - x * h - h * y) / -l);
-
-			case Tile.W:
-				return MathUtils.round(x - y < 0 ? 0 : (h * x - h * y) / l);
-
-			case Tile.E:
-				return MathUtils.round(x - y > 0 ? 0 : (h * x - h * y) / -l);
-
-			case Tile.WE:
-				return MathUtils.round(x + y >= l ? (h * x + h * y - 2 * h * l) / -l : (h * x + h * y) / l);
-
-			case Tile.NS:
-				return MathUtils.round(x - y < 0 ? (l * h - h * y + h * x) / l : (l * h - h * x + h * y) / l);
-
-			case Tile.NES:
-				return MathUtils.round(x - y <= 0 ? h : (l * h - h * x + h * y) / l);
-
-			case Tile.SWN:
-				return MathUtils.round(x - y >= 0 ? h : (l * h - h * y + h * x) / l);
-
-			case Tile.ESW:
-				return MathUtils.round(x + y <= l ? (h * x + h * y) / l : h);
-
-			case Tile.WNE:
-				return MathUtils.round(x + y <= l ? h : (h * x + h * y - 2 * h * l) / -l);
-
-			default:
-				assert (false);
+		if ((slope & ~0xF) != 0) {
+			assert (false);
+			return 0;
 		}
-		return 0;
+		return this.slope_heights[slope][y * this.virtual_world_tile_size + x] & 0xFF;
 	}
 
 	/**
@@ -377,36 +376,70 @@ public class UIsoEngine {
 	 * @return the tile under the viewport (2D) point informed
 	 */
 	public Tile getTileFromRealCoordinates(Point real_coordinates, Point fine_coordinates) {
-		int x, y, clamped_x, clamped_y;
-		Tile tile = this.internalGetTileFromRealCoordinates(real_coordinates, fine_coordinates);
-		x = tile.getX();
-		y = tile.getY();
-
-		clamped_y = clampAndNotify(this.tile_max_z, (this.h + this.tile_max_z - 1), y);
-		if (clamped_to_min) {
-			this.tile_position_relative_map_polygon |= UIsoConstants.ABOVE_WN_LINE;
-		} else if (clamped_to_max) {
-			this.tile_position_relative_map_polygon |= UIsoConstants.BELOW_ES_LINE;
-		}
+		int index = this.tile_picker.pickTile(real_coordinates.x, real_coordinates.y, fine_coordinates);
 
-		clamped_x = clampAndNotify(this.tile_max_z, (this.w + this.tile_max_z - 1), x);
-		if (clamped_to_min) {
-			this.tile_position_relative_map_polygon |= UIsoConstants.ABOVE_NE_LINE;
-		} else if (clamped_to_max) {
-			this.tile_position_relative_map_polygon |= UIsoConstants.BELOW_SW_LINE;
-		}
+		this.tile_position_relative_map_polygon = this.tile_picker.position;
+		return this.map.getTile(index);
+	}
 
-		return this.map.tiles[clamped_y][clamped_x];
+	/**
+	 * Picks the tiles under many viewport points at once. The result of each point is the one of {@link #getTileFromRealCoordinates(Point, Point)}, but nothing is
+	 * shared between the points: the tiles, the fine coordinates and the positions relative to map polygon are written in the arrays. Neighbouring points (in the
+	 * arrays) share part of the work, so the points of a region should be given row by row. Large batches are divided between several threads.
+	 * 
+	 * @param real_x
+	 *           the viewport (2D) x-coordinates of the points
+	 * @param real_y
+	 *           the viewport (2D) y-coordinates of the points
+	 * @param n
+	 *           the number of points
+	 * @param tiles_x
+	 *           will receive the x-coordinates of the tiles
+	 * @param tiles_y
+	 *           will receive the y-coordinates of the tiles
+	 * @param fine_x
+	 *           if not null, will receive the virtual x-coordinates inside the tiles. They are only written for the points whose position is
+	 *           {@link UIsoConstants#INSIDE_POLYGON}.
+	 * @param fine_y
+	 *           the same as fine_x for the y-coordinates
+	 * @param fine_z
+	 *           the same as fine_x for the heights
+	 * @param positions
+	 *           if not null, will receive the positions relative to map polygon (see {@link #tile_position_relative_map_polygon})
+	 * @param n_threads
+	 *           the maximum number of threads employed (including the calling thread)
+	 * @throws IllegalArgumentException
+	 *            if one of the arrays has less than n elements or there is less than one thread
+	 */
+	public void getTilesFromRealCoordinates(int[] real_x, int[] real_y, int n, int[] tiles_x, int[] tiles_y, int[] fine_x, int[] fine_y, int[] fine_z, int[] positions,
+			int n_threads) throws IllegalArgumentException {
+		if (n < 0 || real_x.length < n || real_y.length < n || tiles_x.length < n || tiles_y.length < n || (fine_x != null && fine_x.length < n)
+				|| (fine_y != null && fine_y.length < n) || (fine_z != null && fine_z.length < n) || (positions != null && positions.length < n))
+			throw new IllegalArgumentException("The arrays must have " + n + " elements.");
+		if (n_threads < 1)
+			throw new IllegalArgumentException("At least one thread is necessary.");
+		this.tile_picker.pickTiles(real_x, real_y, n, tiles_x, tiles_y, fine_x, fine_y, fine_z, positions, n_threads);
 	}
 
 	public Tile getTile(Point p) throws InvalidTileCoordinatesException {
 		return this.getTile(p.x, p.y);
 	}
 
+	/**
+	 * When {@link UIsoConfiguration#use_tile_handles} is true, a new handle is returned by each call, so the tiles must be compared with {@link Tile#equals(Object)}.
+	 * 
+	 * @param x
+	 *           the tile x-coordinate
+	 * @param y
+	 *           the tile y-coordinate
+	 * @return the tile
+	 * @throws InvalidTileCoordinatesException
+	 *            if there is no tile with the coordinates informed
+	 */
 	public Tile getTile(int x, int y) throws InvalidTileCoordinatesException {
 		if (!this.isValidTileCoordinates(x, y))
 			throw new InvalidTileCoordinatesException("There is no tile with the following coordinates: [" + x + "," + y + "].");
-		return this.map.tiles[y + this.tile_max_z][x + this.tile_max_z];
+		return this.map.getTile(x + this.tile_max_z, y + this.tile_max_z);
 	}
 
 	public int getTileX(UIsoObject o) {
@@ -452,77 +485,189 @@ public class UIsoEngine {
 	}
 
 	public void insertObject(UIsoObject object) {
-		this.informObjectMotion(object);
+		this.placeObject(object);
+		if (this.map_change_listener != null)
+			this.map_change_listener.objectInserted(object);
 	}
 
 	public void informObjectSizeChange(UIsoObject object) {
-		this.removeObject(object);
-		this.insertObject(object);
+		this.unplaceObject(object);
+		this.placeObject(object);
+	}
+
+	/**
+	 * Informs that the way an object is drawn has changed (for example, its sprite or its visibility) while its position has not. The object must have already been
+	 * inserted. The sprite of a {@link SpriteObject} is only asked to the drawer (or to {@link UIsoConfiguration#object_metrics}) when the object is inserted, moved or when
+	 * this method is called.
+	 * 
+	 * @param object
+	 *           the object whose appearance has changed
+	 */
+	public void informObjectAppearanceChange(UIsoObject object) {
+		if (object.bounds_w != 0 || object.bounds_h != 0)
+			this.informObjectMotion(object);
 	}
 
 	public void informObjectMotion(UIsoObject object) {
-		int nw_x, nw_y, ne_x, ne_y, ws_x, ws_y, es_x, es_y;
-		UIsoObjectsGridCell nw_cell, ne_cell, es_cell, ws_cell;
+		this.placeObject(object);
+		if (this.map_change_listener != null)
+			this.map_change_listener.objectMoved(object);
+	}
 
-		this.virtual_coordinates.x = object.getX() + this.tile_max_z * this.virtual_world_tile_size;
-		this.virtual_coordinates.y = object.getY() + this.tile_max_z * this.virtual_world_tile_size;
-		this.virtual_coordinates.z = object.getZ();
-		toRealCoordinates(this.virtual_coordinates, this.real_coordinates);
+	public void removeObject(UIsoObject object) {
+		this.unplaceObject(object);
+		if (this.map_change_listener != null)
+			this.map_change_listener.objectRemoved(object);
+	}
 
-		if (object instanceof SpriteObject) {
-			UIsoImage image;
-			Sprite sprite;
+	/**
+	 * Gives back to a tile a state informed by {@link IMapChangeListener#tileChanged(int, int, int, int[])}, for example, to replay a journal of changes. Unlike
+	 * {@link #setTileZ(Tile, int)}, the neighbours are not changed and the slope is not computed again: it is part of the state. The change listener is not informed.
+	 * 
+	 * @param x
+	 *           the tile x-coordinate (it can be negative since the map has margins)
+	 * @param y
+	 *           the tile y-coordinate
+	 * @param state
+	 *           the tile state
+	 * @param user_columns
+	 *           the tile user columns
+	 * @throws InvalidTileCoordinatesException
+	 *            if the coordinates are outside the map (including its margins)
+	 */
+	public void restoreTile(int x, int y, int state, int[] user_columns) throws InvalidTileCoordinatesException {
+		int index;
 
-			this.drawer.getObjectSprite((SpriteObject) object, this.sprites);
-			sprite = this.sprites[0];
-			if (sprite == null)
-				return;
+		if (x + this.tile_max_z < 0 || x + this.tile_max_z > this.real_w || y + this.tile_max_z < 0 || y + this.tile_max_z > this.real_h)
+			throw new InvalidTileCoordinatesException("There is no tile with the following coordinates: [" + x + "," + y + "].");
 
-			image = sprite.image;
-			if (this.debug)
-				this.objects_grid_manager.checkObjectLimits(image.getW(), image.getH());
+		index = this.map.getIndex(x + this.tile_max_z, y + this.tile_max_z);
+		this.damageTile(index);
+		this.map.restoreTile(index, state, user_columns);
+		this.damageTile(index);
+	}
 
-			ws_x = nw_x = this.real_coordinates.x - sprite.getAnchorX();
-			ne_y = nw_y = this.real_coordinates.y - sprite.getAnchorY();
-			ne_x = es_x = nw_x + image.getW();
-			ws_y = es_y = nw_y + image.getH();
-		} else {
-			StringObject string_object = (StringObject) object;
-			this.drawer.getStringBounds(string_object.getString(), this.string_bounds, string_object.getFont());
-			if (this.debug)
-				this.objects_grid_manager.checkObjectLimits(this.string_bounds.w, this.string_bounds.h);
+	/**
+	 * Informs that the way a tile is drawn has changed (for example, its sprites). It is only necessary when the dirty rectangle system (
+	 * {@link UIsoConfiguration#use_dirty_rectangle}) or the tile chunk cache ({@link UIsoConfiguration#use_tile_chunk_cache}) is in use and the change was not made
+	 * through the engine. Visibility changes must be made using {@link #setTileVisibility(Tile, boolean)}.
+	 * 
+	 * @param tile
+	 *           the tile whose appearance has changed
+	 */
+	public void invalidateTile(Tile tile) {
+		this.damageTile(tile.index);
+	}
 
-			ws_x = nw_x = this.real_coordinates.x - (this.string_bounds.w >> 1);
-			ne_y = nw_y = this.real_coordinates.y - (this.string_bounds.h >> 1);
-			ne_x = es_x = nw_x + this.string_bounds.w;
-			ws_y = es_y = nw_y + this.string_bounds.h;
-		}
+	/**
+	 * The scene buffers grow when more objects than {@link UIsoConfiguration#max_objects_in_the_scene} are visible. It can be used to tune that value.
+	 * 
+	 * @return the maximum number of {@link SpriteObject}s that have been drawn in a single scene
+	 */
+	public int getSpriteObjectsInTheSceneHighWaterMark() {
+		return this.scene_objects_manager.getSpriteSceneObjectsHighWaterMark();
+	}
 
-		nw_cell = this.objects_grid_manager.getObjectsGridCellAndCellCoordinates(nw_x, nw_y, null);
-		ne_cell = this.objects_grid_manager.getObjectsGridCellAndCellCoordinates(ne_x, ne_y, null);
-		ws_cell = this.objects_grid_manager.getObjectsGridCellAndCellCoordinates(ws_x, ws_y, null);
-		es_cell = this.objects_grid_manager.getObjectsGridCellAndCellCoordinates(es_x, es_y, null);
+	/**
+	 * The scene buffers grow when more objects than {@link UIsoConfiguration#max_string_objects_in_the_scene} are visible. It can be used to tune that value.
+	 * 
+	 * @return the maximum number of {@link StringObject}s that have been drawn in a single scene
+	 */
+	public int getStringObjectsInTheSceneHighWaterMark() {
+		return this.scene_objects_manager.getStringSceneObjectsHighWaterMark();
+	}
 
-		object.removeObjectFromLinkedList(UIsoObject.NW_VERTEX);
-		object.removeObjectFromLinkedList(UIsoObject.NE_VERTEX);
-		object.removeObjectFromLinkedList(UIsoObject.WS_VERTEX);
-		object.removeObjectFromLinkedList(UIsoObject.ES_VERTEX);
+	/**
+	 * It can be used to tune {@link UIsoConfiguration#max_loaded_map_chunks}.
+	 * 
+	 * @return the number of map chunks that are loaded
+	 */
+	public int getNumberOfLoadedMapChunks() {
+		return this.map.getNumberOfLoadedChunks();
+	}
 
-		if (nw_cell != null)
-			nw_cell.insertObject(object, UIsoObject.NW_VERTEX);
-		if (ne_cell != null && nw_cell != ne_cell)
-			ne_cell.insertObject(object, UIsoObject.NE_VERTEX);
-		if (es_cell != null && nw_cell != es_cell && ne_cell != es_cell)
-			es_cell.insertObject(object, UIsoObject.ES_VERTEX);
-		if (ws_cell != null && nw_cell != ws_cell && ne_cell != ws_cell && es_cell != ws_cell)
-			ws_cell.insertObject(object, UIsoObject.WS_VERTEX);
+	/**
+	 * Saves the loaded map chunks that have been modified through {@link UIsoConfiguration#map_chunk_persistence}, so the whole map can be restored later (the
+	 * chunks that are not loaded have already been saved). It does nothing if there is no persistence.
+	 */
+	public void saveMapChunks() {
+		this.map.saveChunks();
 	}
 
-	public void removeObject(UIsoObject object) {
-		object.removeObjectFromLinkedList(UIsoObject.NW_VERTEX);
-		object.removeObjectFromLinkedList(UIsoObject.NE_VERTEX);
-		object.removeObjectFromLinkedList(UIsoObject.WS_VERTEX);
-		object.removeObjectFromLinkedList(UIsoObject.ES_VERTEX);
+	/**
+	 * Loads the map chunks around the viewport, starts the prefetch of the chunks ahead of the scroll and discards the ones beyond
+	 * {@link UIsoConfiguration#max_loaded_map_chunks}. {@link #draw()} already does it, so it is only needed by headless engines, which must call it after moving the
+	 * viewport. It does nothing if the map is not streamed.
+	 */
+	public void updateMapChunks() {
+		if (this.map.isStreaming())
+			this.internalUpdateMapChunks();
+		this.scene_objects_manager.startFrame();
+	}
+
+	/**
+	 * Stops the map chunk loader thread ({@link UIsoConfiguration#use_map_chunk_loader}). The engine must not be used anymore.
+	 */
+	public void dispose() {
+		this.map.dispose();
+	}
+
+	/**
+	 * Changes the tile visibility. Invisible tiles are not drawn.
+	 * 
+	 * @param tile
+	 *           the tile
+	 * @param visibility
+	 *           the new visibility
+	 */
+	public void setTileVisibility(Tile tile, boolean visibility) {
+		if (tile.isVisible() == visibility)
+			return;
+		this.damageTile(tile.index);
+		tile.setVisibility(visibility);
+		this.damageTile(tile.index);
+	}
+
+	/**
+	 * Adds or removes the overlay of a tile. The overlay sprites are given by {@link ITileOverlayDrawer#getTileOverlaySprite(Tile, Sprite[])} and they are drawn over the
+	 * tiles every frame, so changing them does not invalidate the tile chunk cache. The overlays should be kept few since all of them are visited by each drawing.
+	 * 
+	 * @param tile
+	 *           the tile
+	 * @param overlay
+	 *           {@code true} if the tile must have an overlay
+	 * @throws IllegalStateException
+	 *            if the drawer is not an {@link ITileOverlayDrawer}
+	 */
+	public void setTileOverlay(Tile tile, boolean overlay) throws IllegalStateException {
+		int i = this.findTileOverlay(tile.index);
+
+		if (!(this.drawer instanceof ITileOverlayDrawer))
+			throw new IllegalStateException("The drawer can not draw tile overlays.");
+		if ((i >= 0) == overlay)
+			return;
+
+		if (overlay) {
+			if (this.n_tile_overlays == this.tile_overlays.length) {
+				int[] tile_overlays = new int[this.tile_overlays.length << 1];
+				System.arraycopy(this.tile_overlays, 0, tile_overlays, 0, this.n_tile_overlays);
+				this.tile_overlays = tile_overlays;
+			}
+			this.tile_overlays[this.n_tile_overlays++] = tile.index;
+			this.damageTileOverlay(tile.index);
+		} else {
+			this.damageTileOverlay(tile.index);
+			this.tile_overlays[i] = this.tile_overlays[--this.n_tile_overlays];
+		}
+	}
+
+	/**
+	 * Forces the next {@link #draw()} call to redraw the whole viewport. It is useful when the drawing surface contents have been lost and the dirty rectangle system is in
+	 * use.
+	 */
+	public void invalidateViewport() {
+		if (this.scene_rectangle_manager != null)
+			this.scene_rectangle_manager.invalidateAll();
 	}
 
 	/**
@@ -534,7 +679,7 @@ public class UIsoEngine {
 		// int viewport_offset_x_before = this.viewport_offset_x;
 		// int viewport_offset_y_before = this.viewport_offset_y;
 
-		boolean has_clamped;
+		boolean clamped;
 		this.real_coordinates.x = this.viewport_offset_x + this.viewport_w_half;
 		this.real_coordinates.y = this.viewport_offset_y + this.viewport_h_half;
 		toVirtualCoordinates(this.viewport_center, this.real_coordinates);
@@ -548,14 +693,14 @@ public class UIsoEngine {
 		toVirtualCoordinates(this.viewport_center, this.real_coordinates);
 
 		this.viewport_center.x =
-				clampAndNotify((this.tile_max_z * this.virtual_world_tile_size), ((this.tile_max_z + this.w) * this.virtual_world_tile_size) - 1, this.viewport_center.x);
-		has_clamped = UIsoEngine.has_clamped;
+				this.clampAndNotify((this.tile_max_z * this.virtual_world_tile_size), ((this.tile_max_z + this.w) * this.virtual_world_tile_size) - 1, this.viewport_center.x);
+		clamped = this.has_clamped;
 		this.viewport_center.y =
-				clampAndNotify((this.tile_max_z * this.virtual_world_tile_size), ((this.tile_max_z + this.h) * this.virtual_world_tile_size) - 1, this.viewport_center.y);
-		has_clamped = has_clamped || UIsoEngine.has_clamped;
+				this.clampAndNotify((this.tile_max_z * this.virtual_world_tile_size), ((this.tile_max_z + this.h) * this.virtual_world_tile_size) - 1, this.viewport_center.y);
+		clamped = clamped || this.has_clamped;
 		this.viewport_center.z = 0;
 
-		if (has_clamped) {
+		if (clamped) {
 			toRealCoordinates(this.viewport_center, this.real_coordinates);
 
 			if (this.viewport_center.x == viewport_center_x_before && this.viewport_center.y == viewport_center_y_before) {
@@ -604,65 +749,247 @@ public class UIsoEngine {
 		this.internalScrollToCoordinate(this.viewport_center, false);
 	}
 
+	/**
+	 * Changes the tile height. The heights of the tiles around it are changed too, so the height difference between neighbours is at most 1. When a terraform batch
+	 * has been started ({@link #beginTerraform()}), the slopes, the {@link ISimulationLogic} calls and the change listener are left to
+	 * {@link #commitTerraform()}.
+	 * 
+	 * @param tile
+	 *           the tile
+	 * @param z
+	 *           the new height. It is clamped to [0, tile_max_z].
+	 */
 	public void setTileZ(Tile tile, int z) {
 		int new_z = clamp(0, this.tile_max_z, z), x = tile.getX(), y = tile.getY();
 
 		this.n_affected_tiles = 0;
 		if (tile.getZ() != new_z) {
-			this.addTileToAffectedList(tile);
-			this.internalSetTileZ(tile, new_z);
+			this.addTileToAffectedList(tile.index);
+			this.internalSetTileZ(tile.index, new_z);
 		}
-		for (int i = 0; i < Tile.N_NEIGHBORS; i++) {
-			int neighbour_x = x + Tile.neighbour_x_offset[i];
-			int neighbour_y = y + Tile.neighbour_y_offset[i];
-
-			if (0 <= neighbour_x && neighbour_x <= this.real_w && 0 <= neighbour_y && neighbour_y <= this.real_h) {
-				Tile neighbour_tile = this.map.tiles[neighbour_y][neighbour_x];
-				int difference = (new_z - neighbour_tile.getZ());
-				boolean increasing = difference > 0;
-
-				if (difference >= 2 && increasing) {
-					this.recursiveSetTileZ(neighbour_tile, new_z - 1, increasing, Tile.neighbour_direction[i], false);
-				} else if (difference <= -2 && !increasing) {
-					this.recursiveSetTileZ(neighbour_tile, new_z + 1, increasing, Tile.neighbour_direction[i], false);
-				}
-			}
+		this.propagateTileZ(x, y, new_z, false);
+
+		if (this.terraform_depth == 0) {
+			this.updateSlopes(this.affected_tiles, this.n_affected_tiles);
+			this.informTerrainChange();
 		}
+	}
 
-		for (int i = 0; i < this.n_affected_tiles; i++) {
-			tile = this.affected_tiles[i];
-			for (int j = 3; j <= 5; j++) {
-				int neighbour_x = tile.getX() + Tile.neighbour_x_offset[j];
-				int neighbour_y = tile.getY() + Tile.neighbour_y_offset[j];
-				if (neighbour_x < 0 || neighbour_y < 0)
-					continue;
-				this.updateSlope(this.map.tiles[neighbour_y][neighbour_x]);
-			}
-			this.updateSlope(tile);
+	/**
+	 * Replaces the heights of all the tiles. It is much faster than calling {@link #setTileZ(Tile, int)} for each tile: the heights are lowered where necessary, so the
+	 * height difference between neighbours is at most 1, in two sweeps and the slopes are computed by several threads. The tiles of the map margins get the lowest
+	 * heights allowed by their neighbours, as with {@link #setTileZ(Tile, int)}. {@link ISimulationLogic#canSetTileZ(UIsoEngine, Tile, int)} is not called, but the
+	 * {@link ISimulationLogic} and the change listener are informed about the tiles changed.
+	 * 
+	 * @param heights
+	 *           w * h heights, row by row. They are clamped to [0, tile_max_z].
+	 * @param n_threads
+	 *           the number of threads that compute the slopes (including the calling thread)
+	 * @throws IllegalArgumentException
+	 *            if there are less than w * h heights or less than one thread
+	 * @throws IllegalStateException
+	 *            if there is a terraform batch
+	 */
+	public void importHeightmap(int[] heights, int n_threads) throws IllegalArgumentException, IllegalStateException {
+		HeightmapImporter importer = this.newHeightmapImporter(heights.length, n_threads);
+
+		for (int y = 0; y <= this.real_h; y++) {
+			int row = clamp(0, this.h - 1, y - this.tile_max_z) * this.w;
+
+			for (int x = 0, i = y * importer.stride; x <= this.real_w; x++, i++)
+				importer.z[i] = (byte) clamp(0, this.tile_max_z, heights[row + clamp(0, this.w - 1, x - this.tile_max_z)]);
 		}
+		this.importHeights(importer, n_threads);
 	}
 
-	/* Package: */
-	boolean debug;
-	IDrawer drawer;
-	Rectangle string_bounds;
-	Point real_coordinates, virtual_coordinates; /* Employed for various mappings. */
-	Sprite[] sprites;
-	int real_w, real_h; /* They are 1-based indices. */
-	int viewport_offset_x, viewport_offset_y; /* Real coordinates of upper left corner. It always reflects the same information of viewport_center. */
-	int virtual_world_tile_size, slope_height, tile_h, tile_w, w, h, tile_max_z, n_affected_tiles, viewport_w_half, viewport_h_half, viewport_w, viewport_h;
+	/**
+	 * The same as {@link #importHeightmap(int[], int)}.
+	 */
+	public void importHeightmap(short[] heights, int n_threads) throws IllegalArgumentException, IllegalStateException {
+		HeightmapImporter importer = this.newHeightmapImporter(heights.length, n_threads);
 
-	final static void toRealCoordinates(Point virtual_coordinates, Point real_coordinates) {
-		assert (virtual_coordinates.z >= 0);
-		real_coordinates.x = ((virtual_coordinates.y - virtual_coordinates.x) << 1);
-		real_coordinates.y = (virtual_coordinates.x + virtual_coordinates.y - virtual_coordinates.z);
+		for (int y = 0; y <= this.real_h; y++) {
+			int row = clamp(0, this.h - 1, y - this.tile_max_z) * this.w;
+
+			for (int x = 0, i = y * importer.stride; x <= this.real_w; x++, i++)
+				importer.z[i] = (byte) clamp(0, this.tile_max_z, heights[row + clamp(0, this.w - 1, x - this.tile_max_z)]);
+		}
+		this.importHeights(importer, n_threads);
 	}
 
-	final static void toVirtualCoordinates(Point virtual_coordinates, Point real_coordinates) {
-		/* It always assumes that virtual_coordinates.z is 0. */
-		virtual_coordinates.x = (real_coordinates.y >> 1) - (real_coordinates.x >> 2);
-		virtual_coordinates.y = virtual_coordinates.x + (real_coordinates.x >> 1);
-		virtual_coordinates.z = 0;
+	/**
+	 * Starts a terraform batch. The next {@link #setTileZ(Tile, int)} calls only change the heights (each one sees the heights left by the previous ones);
+	 * {@link #commitTerraform()} checks and completes all of them at once. Batches can be nested: only the outermost one is committed.
+	 * <p>
+	 * If the code between this call and {@link #commitTerraform()} may throw, the batch must be aborted ({@link #abortTerraform()}), otherwise the engine stays
+	 * in it:
+	 * 
+	 * <pre>
+	 * uiso_engine.beginTerraform();
+	 * boolean completed = false;
+	 * try {
+	 * 	// setTileZ calls.
+	 * 	completed = true;
+	 * } finally {
+	 * 	if (!completed)
+	 * 		uiso_engine.abortTerraform();
+	 * }
+	 * uiso_engine.commitTerraform();
+	 * </pre>
+	 */
+	public void beginTerraform() {
+		if (this.terraform_depth++ == 0)
+			this.n_terraform_log = 0;
+	}
+
+	/**
+	 * Completes the terraform batch. {@link ISimulationLogic#canSetTileZ(UIsoEngine, Tile, int)} is called for every tile whose height has changed, with the map as
+	 * it was before the batch. If any of them is refused, all the heights are restored. Otherwise, the slopes of the tiles changed and of their neighbours are
+	 * computed once and the {@link ISimulationLogic} and the change listener are informed.
+	 * 
+	 * @return {@code false} if the batch has been refused (and undone)
+	 * @throws IllegalStateException
+	 *            if there is no terraform batch
+	 */
+	public boolean commitTerraform() throws IllegalStateException {
+		boolean can_set_z = true;
+
+		if (this.terraform_depth == 0)
+			throw new IllegalStateException("There is no terraform batch.");
+		if (--this.terraform_depth > 0)
+			return true;
+
+		/* The simulation logic sees the heights as they were. */
+		for (int i = 0; i < this.n_terraform_log; i++) {
+			int index = this.terraform_log_indices[i], data = this.map.getData(index);
+
+			this.terraform_log_new_z[i] = Tile.getZ(data);
+			this.map.setData(index, (this.terraform_log_old_z[i] << 12) | (data & ~(0x0000F000 | Tile.TERRAFORMED)));
+		}
+		for (int i = 0; i < this.n_terraform_log && can_set_z; i++) {
+			if (this.terraform_log_new_z[i] != this.terraform_log_old_z[i])
+				can_set_z = this.internalCanSetTileZ(this.terraform_log_indices[i], this.terraform_log_new_z[i]);
+		}
+
+		if (!can_set_z) {
+			this.undoTerraform();
+			return false;
+		}
+
+		for (int i = 0; i < this.n_terraform_log; i++) {
+			int index = this.terraform_log_indices[i], data = this.map.getData(index);
+
+			this.map.setData(index, (this.terraform_log_new_z[i] << 12) | (data & ~0x0000F000));
+			if (this.terraform_log_new_z[i] != this.terraform_log_old_z[i])
+				this.recordTerrainChange(index, this.terraform_log_old_z[i], Tile.getSlope(data));
+		}
+		for (int i = 0; i < this.n_terraform_log; i++) {
+			int index = this.terraform_log_indices[i], x = this.map.getX(index), y = this.map.getY(index);
+
+			if (this.terraform_log_new_z[i] != this.terraform_log_old_z[i] && this.tile_max_z <= x && x < this.tile_max_z + this.w && this.tile_max_z <= y
+					&& y < this.tile_max_z + this.h)
+				this.simulation_logic.informTileZUpdate(this, this.map.getTile(index), this.terraform_log_old_z[i]);
+		}
+		this.updateSlopes(this.terraform_log_indices, this.n_terraform_log);
+		this.informTerrainChange();
+		return true;
+	}
+
+	/**
+	 * Undoes the terraform batch: the heights it has changed are restored and the {@link ISimulationLogic} and the change listener are not informed. The nested
+	 * batches are aborted too, so the engine is not in a batch anymore. It does nothing if there is no terraform batch, so it can be called from a {@code finally}
+	 * block (see {@link #beginTerraform()}).
+	 */
+	public void abortTerraform() {
+		if (this.terraform_depth == 0)
+			return;
+		this.terraform_depth = 0;
+		this.undoTerraform();
+	}
+
+	/* Package: */
+	boolean debug;
+	IDrawer drawer; /* It is null when the engine is headless. */
+	IObjectMetrics object_metrics; /* The drawer, unless the engine is headless. */
+	Rectangle string_bounds;
+	Point real_coordinates, virtual_coordinates; /* Employed for various mappings. */
+	Sprite[] sprites;
+	int real_w, real_h; /* They are 1-based indices. */
+	int viewport_offset_x, viewport_offset_y; /* Real coordinates of upper left corner. It always reflects the same information of viewport_center. */
+	int virtual_world_tile_size, slope_height, tile_h, tile_w, w, h, tile_max_z, n_affected_tiles, viewport_w_half, viewport_h_half, viewport_w, viewport_h;
+
+	final static void toRealCoordinates(Point virtual_coordinates, Point real_coordinates) {
+		assert (virtual_coordinates.z >= 0);
+		real_coordinates.x = ((virtual_coordinates.y - virtual_coordinates.x) << 1);
+		real_coordinates.y = (virtual_coordinates.x + virtual_coordinates.y - virtual_coordinates.z);
+	}
+
+	final static void toVirtualCoordinates(Point virtual_coordinates, Point real_coordinates) {
+		/* It always assumes that virtual_coordinates.z is 0. */
+		virtual_coordinates.x = (real_coordinates.y >> 1) - (real_coordinates.x >> 2);
+		virtual_coordinates.y = virtual_coordinates.x + (real_coordinates.x >> 1);
+		virtual_coordinates.z = 0;
+	}
+
+	void updateTileSpritesExtents(Sprite sprite) {
+		if (sprite.getAnchorX() > this.tile_sprites_max_left) {
+			this.tile_sprites_max_left = sprite.getAnchorX();
+			this.tile_sprites_extents_changed = true;
+		}
+		if (sprite.image.getW() - sprite.getAnchorX() > this.tile_sprites_max_right) {
+			this.tile_sprites_max_right = sprite.image.getW() - sprite.getAnchorX();
+			this.tile_sprites_extents_changed = true;
+		}
+		if (sprite.getAnchorY() > this.tile_sprites_max_up) {
+			this.tile_sprites_max_up = sprite.getAnchorY();
+			this.tile_sprites_extents_changed = true;
+		}
+		if (sprite.image.getH() - sprite.getAnchorY() > this.tile_sprites_max_down) {
+			this.tile_sprites_max_down = sprite.image.getH() - sprite.getAnchorY();
+			this.tile_sprites_extents_changed = true;
+		}
+	}
+
+	/* The string is only measured again (by the drawer or the object metrics) when it or its font changes. */
+	void getStringObjectBounds(StringObject string_object, Rectangle bounds) {
+		String s = string_object.s;
+		Object font = string_object.font;
+
+		if (string_object.measured_w >= 0 && string_object.measured_string == s && string_object.measured_font == font) {
+			bounds.w = string_object.measured_w;
+			bounds.h = string_object.measured_h;
+			return;
+		}
+
+		if (s == null || this.string_bounds_cache == null || !this.string_bounds_cache.get(s, font, bounds)) {
+			this.object_metrics.getStringBounds(s, bounds, font);
+			if (s != null && this.string_bounds_cache != null)
+				this.string_bounds_cache.put(s, font, bounds);
+		}
+		string_object.measured_string = s;
+		string_object.measured_font = font;
+		string_object.measured_w = bounds.w;
+		string_object.measured_h = bounds.h;
+	}
+
+	/* Rounds a / b to the nearest integer (the halves away from zero), as MathUtils.round does. A division by zero gives what a float division would. */
+	final static int roundDivision(int a, int b) {
+		int q;
+
+		if (b <= 0) {
+			if (b == 0)
+				return a > 0 ? Integer.MAX_VALUE : (a < 0 ? Integer.MIN_VALUE : 0);
+			return roundDivision(-a, -b);
+		}
+		q = ((a < 0 ? -a : a) * 2 + b) / (b << 1);
+		return a < 0 ? -q : q;
+	}
+
+	final static int floorDiv(int a, int b) {
+		int q = a / b;
+		if ((a % b != 0) && ((a < 0) != (b < 0)))
+			q--;
+		return q;
 	}
 
 	void drawPoint(Point virtual_coordinates) {
@@ -706,30 +1033,121 @@ public class UIsoEngine {
 	};
 	//@formatter:on
 
-	private boolean use_dirty_rectangle_system;
+	private boolean use_dirty_rectangle_system, use_copy_area;
 	private UIsoMap map;
 	private MapingHelper maping_helper;
+	private TilePicker tile_picker;
 	private ObjectsGridManager objects_grid_manager;
 	private Point point; /* Available for offset and other calculations. */
 	private Point viewport_point; /* Used to draw the scene. */
 	private Point viewport_center; /* Virtual coordinates. */
 	private ISimulationLogic simulation_logic;
 	private SceneObjectsManager scene_objects_manager;
-	private Tile[] affected_tiles;
+	private SceneRectangleManager scene_rectangle_manager;
+	private TileChunkCache tile_chunk_cache;
+	private StringBoundsCache string_bounds_cache;
+	private TileSpanIterator tile_span_iterator;
+	private int[] affected_tiles; /* Indices of the map tiles. */
+	private int[] tile_overlays = new int[4]; /* Indices of the map tiles that have overlays. */
+	private int n_tile_overlays;
+	/* Used by propagateTileZ. The cells form a square centered on the tile whose height has been changed. */
+	private int[] terraform_queue, terraform_queue_indices, terraform_stamps, terraform_z, terraform_directions;
+	private int n_terraform_queue, terraform_stamp;
+	/* The terraform batch: the tiles whose heights have been changed and their heights before and after it. */
+	private int[] terraform_log_indices, terraform_log_old_z, terraform_log_new_z;
+	private int n_terraform_log, terraform_depth;
+	private int area_x, area_y, area_w, area_h; /* The area being drawn (relative to viewport). */
+	private int tile_sprites_max_left, tile_sprites_max_right, tile_sprites_max_up, tile_sprites_max_down; /* Relative to the sprites anchors. */
+	private boolean tile_sprites_extents_changed;
+	private IMapChangeListener map_change_listener;
+	private ITerrainChangeListener terrain_change_listener;
+	private byte[][] slope_heights; /* See buildSlopeHeights. */
+	private TerrainChange terrain_change;
+	private int map_chunk_prefetch_distance, map_chunks_viewport_offset_x, map_chunks_viewport_offset_y; /* The viewport position in the last update. */
+
+	/* Restores the heights kept by the terraform log. The slopes have not been changed, only marked to be corrected. */
+	private void undoTerraform() {
+		for (int i = 0; i < this.n_terraform_log; i++) {
+			int index = this.terraform_log_indices[i], data = this.map.getData(index), tile_x = this.map.getX(index), tile_y = this.map.getY(index);
+
+			this.damageTile(index);
+			this.map.setData(index, (this.terraform_log_old_z[i] << 12) | (data & ~(0x0000F000 | Tile.TERRAFORMED | Tile.MUST_CORRECT_THE_SLOPE)));
+			this.damageTile(index);
+			for (int j = 3; j <= 5; j++) {
+				int neighbour_x = tile_x + Tile.neighbour_x_offset[j], neighbour_y = tile_y + Tile.neighbour_y_offset[j];
+
+				if (neighbour_x >= 0 && neighbour_y >= 0)
+					this.map.setData(this.map.getIndex(neighbour_x, neighbour_y), this.map.getData(neighbour_x, neighbour_y) & ~Tile.MUST_CORRECT_THE_SLOPE);
+			}
+		}
+		this.n_terraform_log = 0;
+	}
 
-	private void addTileToAffectedList(Tile tile) {
+	private void addTileToAffectedList(int index) {
 		assert (this.n_affected_tiles < this.affected_tiles.length);
 
-		this.affected_tiles[this.n_affected_tiles++] = tile;
+		/* In a terraform batch, the tiles changed are kept by the log. */
+		if (this.terraform_depth == 0)
+			this.affected_tiles[this.n_affected_tiles++] = index;
 
 		for (int i = 3; i <= 5; i++) {
-			int neighbour_x = tile.getX() + Tile.neighbour_x_offset[i];
-			int neighbour_y = tile.getY() + Tile.neighbour_y_offset[i];
+			int neighbour_x = this.map.getX(index) + Tile.neighbour_x_offset[i];
+			int neighbour_y = this.map.getY(index) + Tile.neighbour_y_offset[i];
 			if (neighbour_x < 0 || neighbour_y < 0)
 				continue;
-			this.map.tiles[neighbour_y][neighbour_x].setMustCorrectTheSlope(true);
+			int neighbour_index = this.map.getIndex(neighbour_x, neighbour_y);
+			this.map.setData(neighbour_index, this.map.getData(neighbour_index) | Tile.MUST_CORRECT_THE_SLOPE);
 		}
-		tile.setMustCorrectTheSlope(true);
+		this.map.setData(index, this.map.getData(index) | Tile.MUST_CORRECT_THE_SLOPE);
+	}
+
+	/* Tells the map which chunks are visible and in which direction the viewport is moving. */
+	private void internalUpdateMapChunks() {
+		int min_x = Integer.MAX_VALUE, min_y = Integer.MAX_VALUE, max_x = Integer.MIN_VALUE, max_y = Integer.MIN_VALUE;
+		int delta_x = this.viewport_offset_x - this.map_chunks_viewport_offset_x, delta_y = this.viewport_offset_y - this.map_chunks_viewport_offset_y;
+
+		this.tile_span_iterator.start(this.viewport_offset_x, this.viewport_offset_y, this.viewport_w, this.viewport_h, this.tile_sprites_max_left,
+				this.tile_sprites_max_right, this.tile_sprites_max_up, this.tile_sprites_max_down);
+		while (this.tile_span_iterator.nextRow()) {
+			min_y = Math.min(min_y, this.tile_span_iterator.tile_y);
+			max_y = Math.max(max_y, this.tile_span_iterator.tile_y);
+			min_x = Math.min(min_x, this.tile_span_iterator.min_x);
+			max_x = Math.max(max_x, this.tile_span_iterator.max_x);
+		}
+		if (min_x > max_x)
+			return;
+
+		/* As rx = (y - x) * 2 * virtual_world_tile_size and ry = (x + y) * virtual_world_tile_size, a real delta (dx,dy) moves x by (2 * dy - dx) and y by (2 * dy + dx). */
+		this.map.updateChunks(min_x, min_y, max_x, max_y, 2 * delta_y - delta_x, 2 * delta_y + delta_x, this.map_chunk_prefetch_distance);
+		this.map_chunks_viewport_offset_x = this.viewport_offset_x;
+		this.map_chunks_viewport_offset_y = this.viewport_offset_y;
+	}
+
+	/* Reuses the part of the previous frame that is still visible after the viewport has moved. Only the exposed areas will be drawn. */
+	private void scrollPreviousFrame(int delta_x, int delta_y) {
+		int abs_delta_x = Math.abs(delta_x), abs_delta_y = Math.abs(delta_y);
+
+		if (!this.use_copy_area || this.scene_rectangle_manager.mustRedrawAll() || abs_delta_x >= this.viewport_w || abs_delta_y >= this.viewport_h) {
+			this.scene_rectangle_manager.invalidateAll();
+			return;
+		}
+
+		this.drawer.setClip(0, 0, this.viewport_w, this.viewport_h);
+		this.drawer.copyArea(Math.max(0, delta_x), Math.max(0, delta_y), this.viewport_w - abs_delta_x, this.viewport_h - abs_delta_y, -delta_x, -delta_y);
+
+		/* The exposed areas (using real coordinates). */
+		if (delta_x > 0)
+			this.scene_rectangle_manager.addRectangle(this.viewport_offset_x + this.viewport_w - delta_x, this.viewport_offset_y, delta_x, this.viewport_h,
+					this.viewport_offset_x, this.viewport_offset_y);
+		else if (delta_x < 0)
+			this.scene_rectangle_manager.addRectangle(this.viewport_offset_x, this.viewport_offset_y, -delta_x, this.viewport_h, this.viewport_offset_x,
+					this.viewport_offset_y);
+		if (delta_y > 0)
+			this.scene_rectangle_manager.addRectangle(this.viewport_offset_x, this.viewport_offset_y + this.viewport_h - delta_y, this.viewport_w, delta_y,
+					this.viewport_offset_x, this.viewport_offset_y);
+		else if (delta_y < 0)
+			this.scene_rectangle_manager.addRectangle(this.viewport_offset_x, this.viewport_offset_y, this.viewport_w, -delta_y, this.viewport_offset_x,
+					this.viewport_offset_y);
 	}
 
 	private void drawCentralCross() {
@@ -737,25 +1155,234 @@ public class UIsoEngine {
 		this.drawer.drawLine(this.viewport_w_half, this.viewport_h_half - (CROSS_SIZE >> 1), this.viewport_w_half, this.viewport_h_half + (CROSS_SIZE >> 1));
 	}
 
-	private void drawTile(Tile tile) {
+	/* Places the object on the objects grid. */
+	private void placeObject(UIsoObject object) {
+		int nw_x, nw_y, ne_x, ne_y, ws_x, ws_y, es_x, es_y;
+		UIsoObjectsGridCell nw_cell, ne_cell, es_cell, ws_cell;
+
+		/* The area it was occupying must be redrawn. */
+		this.damageObject(object);
+
+		this.virtual_coordinates.x = object.getX() + this.tile_max_z * this.virtual_world_tile_size;
+		this.virtual_coordinates.y = object.getY() + this.tile_max_z * this.virtual_world_tile_size;
+		this.virtual_coordinates.z = object.getZ();
+		toRealCoordinates(this.virtual_coordinates, this.real_coordinates);
+
+		if (object instanceof SpriteObject) {
+			UIsoImage image;
+			Sprite sprite;
+
+			this.object_metrics.getObjectSprite((SpriteObject) object, this.sprites);
+			sprite = ((SpriteObject) object).sprite = this.sprites[0];
+			if (sprite == null)
+				return;
+
+			image = sprite.image;
+			if (this.debug)
+				this.objects_grid_manager.checkObjectLimits(image.getW(), image.getH());
+
+			ws_x = nw_x = this.real_coordinates.x - sprite.getAnchorX();
+			ne_y = nw_y = this.real_coordinates.y - sprite.getAnchorY();
+			ne_x = es_x = nw_x + image.getW();
+			ws_y = es_y = nw_y + image.getH();
+		} else {
+			StringObject string_object = (StringObject) object;
+			this.getStringObjectBounds(string_object, this.string_bounds);
+			if (this.debug)
+				this.objects_grid_manager.checkObjectLimits(this.string_bounds.w, this.string_bounds.h);
+
+			ws_x = nw_x = this.real_coordinates.x - (this.string_bounds.w >> 1);
+			ne_y = nw_y = this.real_coordinates.y - (this.string_bounds.h >> 1);
+			ne_x = es_x = nw_x + this.string_bounds.w;
+			ws_y = es_y = nw_y + this.string_bounds.h;
+		}
+
+		object.bounds_x = nw_x;
+		object.bounds_y = nw_y;
+		object.bounds_w = es_x - nw_x;
+		object.bounds_h = es_y - nw_y;
+		this.damageObject(object);
+
+		nw_cell = this.objects_grid_manager.getObjectsGridCellAndCellCoordinates(nw_x, nw_y, null);
+		ne_cell = this.objects_grid_manager.getObjectsGridCellAndCellCoordinates(ne_x, ne_y, null);
+		ws_cell = this.objects_grid_manager.getObjectsGridCellAndCellCoordinates(ws_x, ws_y, null);
+		es_cell = this.objects_grid_manager.getObjectsGridCellAndCellCoordinates(es_x, es_y, null);
+
+		/* A cell holds the object only once: a vertex is only used when no previous vertex is in the same cell. */
+		if (ne_cell == nw_cell)
+			ne_cell = null;
+		if (es_cell == nw_cell || es_cell == ne_cell)
+			es_cell = null;
+		if (ws_cell == nw_cell || ws_cell == ne_cell || ws_cell == es_cell)
+			ws_cell = null;
+
+		/* Small motions usually keep the object inside the same cells, so only the vertices whose cell has changed are relinked. They are all removed before any
+		 * insertion since a vertex can move to a cell that still holds the object through another vertex. */
+		if (object.nw_cell != nw_cell && object.nw_cell != null)
+			object.removeObjectFromLinkedList(UIsoObject.NW_VERTEX);
+		if (object.ne_cell != ne_cell && object.ne_cell != null)
+			object.removeObjectFromLinkedList(UIsoObject.NE_VERTEX);
+		if (object.es_cell != es_cell && object.es_cell != null)
+			object.removeObjectFromLinkedList(UIsoObject.ES_VERTEX);
+		if (object.ws_cell != ws_cell && object.ws_cell != null)
+			object.removeObjectFromLinkedList(UIsoObject.WS_VERTEX);
+
+		if (object.nw_cell != nw_cell && nw_cell != null)
+			nw_cell.insertObject(object, UIsoObject.NW_VERTEX);
+		if (object.ne_cell != ne_cell && ne_cell != null)
+			ne_cell.insertObject(object, UIsoObject.NE_VERTEX);
+		if (object.es_cell != es_cell && es_cell != null)
+			es_cell.insertObject(object, UIsoObject.ES_VERTEX);
+		if (object.ws_cell != ws_cell && ws_cell != null)
+			ws_cell.insertObject(object, UIsoObject.WS_VERTEX);
+
+		object.nw_cell = nw_cell;
+		object.ne_cell = ne_cell;
+		object.es_cell = es_cell;
+		object.ws_cell = ws_cell;
+	}
+
+	private void unplaceObject(UIsoObject object) {
+		this.damageObject(object);
+		object.bounds_w = object.bounds_h = 0;
+
+		object.removeObjectFromLinkedList(UIsoObject.NW_VERTEX);
+		object.removeObjectFromLinkedList(UIsoObject.NE_VERTEX);
+		object.removeObjectFromLinkedList(UIsoObject.WS_VERTEX);
+		object.removeObjectFromLinkedList(UIsoObject.ES_VERTEX);
+		object.nw_cell = object.ne_cell = object.es_cell = object.ws_cell = null;
+	}
+
+	private void damageObject(UIsoObject object) {
+		if (this.scene_rectangle_manager != null)
+			this.scene_rectangle_manager.addRectangle(object.bounds_x, object.bounds_y, object.bounds_w, object.bounds_h, this.viewport_offset_x, this.viewport_offset_y);
+	}
+
+	private void damageTile(int index) {
+		int data = this.map.getData(index);
+
+		if (this.tile_chunk_cache != null)
+			this.tile_chunk_cache.invalidateTile(this.map.getX(index), this.map.getY(index));
+
+		/* Invisible tiles are not drawn. */
+		if (this.scene_rectangle_manager == null || (data & Tile.VISIBLE) == 0)
+			return;
+
+		this.drawer.getTileSprite(this.map.getFlyweightTile(index), this.sprites);
+		this.damageTileSprites(index, data);
+		if (this.findTileOverlay(index) >= 0) {
+			((ITileOverlayDrawer) this.drawer).getTileOverlaySprite(this.map.getFlyweightTile(index), this.sprites);
+			this.damageTileSprites(index, data);
+		}
+	}
+
+	private void damageTileOverlay(int index) {
+		int data = this.map.getData(index);
+
+		if (this.scene_rectangle_manager == null || (data & Tile.VISIBLE) == 0)
+			return;
+
+		((ITileOverlayDrawer) this.drawer).getTileOverlaySprite(this.map.getFlyweightTile(index), this.sprites);
+		this.damageTileSprites(index, data);
+	}
+
+	/* Damages the areas of the sprites (placed on the informed tile) in this.sprites. */
+	private void damageTileSprites(int index, int data) {
 		int i = 0;
-		this.drawer.getTileSprite(tile, this.sprites);
 
 		while (this.sprites[i] != null) {
 			Sprite sprite = this.sprites[i++];
 			UIsoImage image = sprite.image;
 
-			this.virtual_coordinates.x = (tile.getX() * this.virtual_world_tile_size);
-			this.virtual_coordinates.y = (tile.getY() * this.virtual_world_tile_size);
-			this.virtual_coordinates.z = (tile.getZ() * this.slope_height);
+			this.updateTileSpritesExtents(sprite);
+			this.virtual_coordinates.x = (this.map.getX(index) * this.virtual_world_tile_size);
+			this.virtual_coordinates.y = (this.map.getY(index) * this.virtual_world_tile_size);
+			this.virtual_coordinates.z = (Tile.getZ(data) * this.slope_height);
+			toRealCoordinates(this.virtual_coordinates, this.real_coordinates);
+
+			this.scene_rectangle_manager.addRectangle(this.real_coordinates.x - sprite.getAnchorX(), this.real_coordinates.y - sprite.getAnchorY(), image.getW(),
+					image.getH(), this.viewport_offset_x, this.viewport_offset_y);
+		}
+	}
+
+	/* Returns the position of the tile in the overlays list or -1. */
+	private int findTileOverlay(int index) {
+		for (int i = 0; i < this.n_tile_overlays; i++) {
+			if (this.tile_overlays[i] == index)
+				return i;
+		}
+		return -1;
+	}
+
+	/* Draws the tiles and the objects inside the informed area (relative to viewport). */
+	private void drawArea(int x, int y, int w, int h) {
+		this.area_x = x;
+		this.area_y = y;
+		this.area_w = w;
+		this.area_h = h;
+
+		this.drawer.setClip(x, y, w, h);
+		if (x == 0 && y == 0 && w == this.viewport_w && h == this.viewport_h)
+			this.drawer.clear();
+		else
+			this.drawer.clear(x, y, w, h);
+
+		/* Picking the tiles at the area corners is not enough since the tile sprites can cover other tiles. So it uses the biggest tile sprite extents seen so far. */
+		this.tile_span_iterator.start(this.viewport_offset_x + x, this.viewport_offset_y + y, w, h, this.tile_sprites_max_left, this.tile_sprites_max_right,
+				this.tile_sprites_max_up, this.tile_sprites_max_down);
+
+		/* Draw the tiles. */
+		if (this.tile_chunk_cache != null) {
+			this.tile_chunk_cache.drawTiles(this.tile_span_iterator, x, y, w, h);
+		} else {
+			while (this.tile_span_iterator.nextRow()) {
+				int tile_y = this.tile_span_iterator.tile_y;
+				for (int tile_x = this.tile_span_iterator.min_x; tile_x <= this.tile_span_iterator.max_x; tile_x++) {
+					int index = this.map.getIndex(tile_x, tile_y);
+					if ((this.map.getData(index) & Tile.VISIBLE) != 0)
+						this.drawTile(index);
+				}
+			}
+		}
+
+		/* Draw the tile overlays. */
+		for (int i = 0; i < this.n_tile_overlays; i++) {
+			int index = this.tile_overlays[i];
+			if ((this.map.getData(index) & Tile.VISIBLE) != 0) {
+				((ITileOverlayDrawer) this.drawer).getTileOverlaySprite(this.map.getFlyweightTile(index), this.sprites);
+				this.drawTileSprites(index);
+			}
+		}
+
+		/* Draw the objects. */
+		this.drawObjects();
+	}
+
+	private void drawTile(int index) {
+		this.drawer.getTileSprite(this.map.getFlyweightTile(index), this.sprites);
+		this.drawTileSprites(index);
+	}
+
+	/* Draws the sprites (placed on the informed tile) in this.sprites. */
+	private void drawTileSprites(int index) {
+		int i = 0, data = this.map.getData(index);
+
+		while (this.sprites[i] != null) {
+			Sprite sprite = this.sprites[i++];
+			UIsoImage image = sprite.image;
+
+			this.updateTileSpritesExtents(sprite);
+			this.virtual_coordinates.x = (this.map.getX(index) * this.virtual_world_tile_size);
+			this.virtual_coordinates.y = (this.map.getY(index) * this.virtual_world_tile_size);
+			this.virtual_coordinates.z = (Tile.getZ(data) * this.slope_height);
 
 			toRealCoordinates(this.virtual_coordinates, this.real_coordinates);
 			this.real_coordinates.x += (-sprite.getAnchorX() - this.viewport_offset_x);
 			this.real_coordinates.y += (-sprite.getAnchorY() - this.viewport_offset_y);
 
 			/* Check the rectangles intersection. */
-			if (this.real_coordinates.y + image.getH() < 0 || this.real_coordinates.y >= this.viewport_h || this.real_coordinates.x + image.getW() < 0
-					|| this.real_coordinates.x >= this.viewport_w)
+			if (this.real_coordinates.y + image.getH() < this.area_y || this.real_coordinates.y >= this.area_y + this.area_h
+					|| this.real_coordinates.x + image.getW() < this.area_x || this.real_coordinates.x >= this.area_x + this.area_w)
 				continue;
 
 			this.drawer.drawImage(this.real_coordinates.x, this.real_coordinates.y, image);
@@ -786,16 +1413,17 @@ public class UIsoEngine {
 		int min_x, min_y, max_x, max_y;
 		UIsoObjectsGridCell objects_grid_cell;
 
-		this.scene_objects_manager.startScene();
+		this.scene_objects_manager.startScene(this.area_x, this.area_y, this.area_w, this.area_h);
 
-		objects_grid_cell = this.objects_grid_manager.getObjectsGridCellAndCellCoordinates(this.viewport_offset_x, this.viewport_offset_y, this.point);
+		objects_grid_cell =
+				this.objects_grid_manager.getObjectsGridCellAndCellCoordinates(this.viewport_offset_x + this.area_x, this.viewport_offset_y + this.area_y, this.point);
 		assert (objects_grid_cell != null);
 		min_x = this.point.x;
 		min_y = this.point.y;
 
 		objects_grid_cell =
-				this.objects_grid_manager.getObjectsGridCellAndCellCoordinates(this.viewport_offset_x + this.viewport_w - 1, this.viewport_offset_y + this.viewport_h - 1,
-						this.point);
+				this.objects_grid_manager.getObjectsGridCellAndCellCoordinates(this.viewport_offset_x + this.area_x + this.area_w - 1, this.viewport_offset_y + this.area_y
+						+ this.area_h - 1, this.point);
 		assert (objects_grid_cell != null);
 		max_x = this.point.x;
 		max_y = this.point.y;
@@ -821,334 +1449,298 @@ public class UIsoEngine {
 		this.scene_objects_manager.drawSceneObjects();
 	}
 
-	private boolean internalCanSetTileZ(Tile tile, int z) {
-		int x = tile.getX(), y = tile.getY();
+	private boolean internalCanSetTileZ(int index, int z) {
+		int x = this.map.getX(index), y = this.map.getY(index);
 		/* Does a change in the tile z affects user tiles? */
 		if (this.tile_max_z <= x && x <= this.tile_max_z + this.w && this.tile_max_z <= y && y <= this.tile_max_z + this.h)
-			return this.simulation_logic.canSetTileZ(this, tile, z);
+			return this.simulation_logic.canSetTileZ(this, this.map.getTile(index), z);
 		return true;
 	}
 
-	private Tile internalGetTileFromRealCoordinates(Point real_coordinates, Point fine_coordinates) {
-		int tile_x, tile_y, x, y, rest_x, rest_y, position, c = 0;
-
-		/* 
-		 * Convert x and y to coordinates relative to
-		 *  
-		 *              |--------> (X)
-		 *              |
-		 *              |
-		 *             \|/
-		 *             (Y)
-		 * this corner.
-		 *         |
-		 *        \|/
-		 *          ________             
-		 *          |  /\  |
-		 *          | /  \ |
-		 *          |/    \|<---- Tile (0,0)
-		 *          /\    /\
-		 *         /  \  /  \
-		 *             \/    
-		 */
-		x = (real_coordinates.x + this.viewport_offset_x);
-		y = (real_coordinates.y + this.viewport_offset_y);
-		x += (this.tile_w >> 1);
+	private void internalSetTileZ(int index, int z) {
+		int data = this.map.getData(index);
 
-		/*
-		 *      -2           -1        0
-		 * |-8 -7 -6 -5|-4 -3 -2 -1| 0  1  2  3|
-		 *             |-3 -2 -1  0| 
-		 * Adjust negative numbers so we can correctly divide and employ mod operator. */
-		if (x < 0) {
-			tile_x = (-(x + 1)) / this.tile_w;
-			tile_x = -(tile_x + 1);
-			rest_x = (-(x + 1)) % (this.tile_w);
-			rest_x = (this.tile_w - 1) - rest_x;
-		} else {
-			tile_x = x / this.tile_w;
-			rest_x = (x % this.tile_w);
-		}
+		assert (z != Tile.getZ(data));
 
-		if (y < 0) {
-			tile_y = (-(y + 1)) / this.tile_h;
-			tile_y = -(tile_y + 1);
-			rest_y = (-(y + 1)) % (this.tile_h);
-			rest_y = (this.tile_h - 1) - rest_y;
-		} else {
-			tile_y = y / this.tile_h;
-			rest_y = (y % this.tile_h);
+		int old_z = Tile.getZ(data), x = this.map.getX(index), y = this.map.getY(index);
+
+		/* The first height of each tile changed in a terraform batch is kept. */
+		if (this.terraform_depth > 0 && (data & Tile.TERRAFORMED) == 0) {
+			if (this.n_terraform_log == this.terraform_log_indices.length) {
+				this.terraform_log_indices = grow(this.terraform_log_indices);
+				this.terraform_log_old_z = grow(this.terraform_log_old_z);
+				this.terraform_log_new_z = grow(this.terraform_log_new_z);
+			}
+			this.terraform_log_indices[this.n_terraform_log] = index;
+			this.terraform_log_old_z[this.n_terraform_log++] = old_z;
+			data |= Tile.TERRAFORMED;
 		}
 
-		/* Rotate the axis. */
-		tile_y = tile_x + tile_y;
-		tile_x = tile_y - (tile_x << 1);
+		this.damageTile(index);
+		this.map.setData(index, ((z & 0xF) << 12) | (data & 0xFFFF0FFF));
+		this.damageTile(index);
+		if (this.terraform_depth == 0)
+			this.recordTerrainChange(index, old_z, Tile.getSlope(data));
+		if (this.terraform_depth == 0 && this.tile_max_z <= x && x < this.tile_max_z + this.w && this.tile_max_z <= y && y < this.tile_max_z + this.h)
+			this.simulation_logic.informTileZUpdate(this, this.map.getTile(index), old_z);
+	}
 
-		/* Set the points. */
-		this.point.x = rest_x;
-		this.point.y = rest_y;
+	private HeightmapImporter newHeightmapImporter(int n_heights, int n_threads) throws IllegalArgumentException, IllegalStateException {
+		HeightmapImporter importer;
+
+		if (n_heights < this.w * this.h)
+			throw new IllegalArgumentException("The heightmap must have " + (this.w * this.h) + " heights.");
+		if (n_threads < 1)
+			throw new IllegalArgumentException("At least one thread is necessary.");
+		if (this.terraform_depth > 0)
+			throw new IllegalStateException("There is a terraform batch.");
+
+		importer = new HeightmapImporter(this.real_w, this.real_h);
+		/* These tiles are not imported, but the slopes of their neighbours depend on them. */
+		for (int y = 0; y <= this.real_h + 1; y++)
+			importer.z[y * importer.stride + this.real_w + 1] = (byte) Tile.getZ(this.map.getData(this.real_w + 1, y));
+		for (int x = 0; x <= this.real_w; x++)
+			importer.z[(this.real_h + 1) * importer.stride + x] = (byte) Tile.getZ(this.map.getData(x, this.real_h + 1));
+		return importer;
+	}
 
-		int min_z;
-		int slope_index;
-		/* While it does not stabilize. */
-		do {
-			int n_z;
+	private void importHeights(HeightmapImporter importer, int n_threads) {
+		importer.constrainHeights();
+		importer.lowerMargins(this.tile_max_z);
+		importer.computeSlopes(n_threads);
 
-			/* Debug: */
-			assert (c++ <= 30);
+		for (int y = 0; y <= this.real_h; y++) {
+			for (int x = 0, i = y * importer.stride; x <= this.real_w; x++, i++) {
+				int index = this.map.getIndex(x, y), data = this.map.getData(index), z = importer.z[i], slope = importer.slopes[i];
+				int old_z = Tile.getZ(data), old_slope = Tile.getSlope(data);
 
-			if (0 > tile_x || 0 > tile_y || tile_x > this.real_w || tile_y > this.real_h) {
-				n_z = 0;
-				slope_index = 0;
-			} else {
-				n_z = this.map.tiles[tile_y][tile_x].getZ();
-				slope_index = this.map.tiles[tile_y][tile_x].getSlopeIndex();
-			}
-			min_z = n_z + Tile.min_z_difference_relative_to_tile_z[slope_index];
-
-			/* As it is shifted to simulate the height. */
-			this.point.y += (min_z * this.slope_height);
-			position = this.maping_helper.getPositionRelativeToSlopePolygon(this.point, slope_index);
-			this.point.y -= (min_z * this.slope_height);
-
-			switch (position) {
-				case UIsoConstants.ABOVE_NE_LINE:
-					tile_x--;
-					this.point.x -= this.tile_w >> 1;
-					this.point.y += this.tile_h >> 1;
-				break;
-
-				case UIsoConstants.BELOW_ES_LINE:
-					tile_y++;
-					this.point.x -= this.tile_w >> 1;
-					this.point.y -= this.tile_h >> 1;
-				break;
-
-				case UIsoConstants.BELOW_SW_LINE:
-					tile_x++;
-					this.point.x += this.tile_w >> 1;
-					this.point.y -= this.tile_h >> 1;
-				break;
-
-				case UIsoConstants.ABOVE_WN_LINE:
-					tile_y--;
-					this.point.x += this.tile_w >> 1;
-					this.point.y += this.tile_h >> 1;
-				break;
+				if (z == old_z && slope == old_slope)
+					continue;
+				this.map.setData(index, (z << 12) | (slope << 8) | (data & 0xFFFF00FF));
+				this.recordTerrainChange(index, old_z, old_slope);
+				if (z != old_z && this.tile_max_z <= x && x < this.tile_max_z + this.w && this.tile_max_z <= y && y < this.tile_max_z + this.h)
+					this.simulation_logic.informTileZUpdate(this, this.map.getTile(index), old_z);
+				if (slope != old_slope && (data & Tile.VISIBLE) != 0)
+					this.simulation_logic.informTileSlopeUpdate(this, this.map.getTile(index), old_slope);
+				this.map.informChange(index);
 			}
-		} while (position != UIsoConstants.INSIDE_POLYGON);
-
-		this.tile_position_relative_map_polygon = UIsoConstants.INSIDE_POLYGON;
-		tile_x = clampAndNotify(0, this.real_w, tile_x);
-		if (clamped_to_min) {
-			this.tile_position_relative_map_polygon |= UIsoConstants.ABOVE_NE_LINE;
-		} else if (clamped_to_max) {
-			this.tile_position_relative_map_polygon |= UIsoConstants.BELOW_SW_LINE;
 		}
 
-		tile_y = clampAndNotify(0, this.real_h, tile_y);
-		if (clamped_to_min) {
-			this.tile_position_relative_map_polygon |= UIsoConstants.ABOVE_WN_LINE;
-		} else if (clamped_to_max) {
-			this.tile_position_relative_map_polygon |= UIsoConstants.BELOW_ES_LINE;
+		this.informTerrainChange();
+
+		/* Almost everything may have changed. */
+		if (this.tile_chunk_cache != null)
+			this.tile_chunk_cache.invalidateAll();
+		if (this.scene_rectangle_manager != null)
+			this.scene_rectangle_manager.invalidateAll();
+	}
+
+	/* Keeps the height and the slope that the tile had before the operation, if it has not been kept yet. Only the tiles inside the map are kept. */
+	private void recordTerrainChange(int index, int old_z, int old_slope) {
+		int data, x, y;
+
+		if (this.terrain_change_listener == null)
+			return;
+		data = this.map.getData(index);
+		x = this.map.getX(index) - this.tile_max_z;
+		y = this.map.getY(index) - this.tile_max_z;
+		if ((data & Tile.TERRAFORMED) != 0 || x < 0 || x >= this.w || y < 0 || y >= this.h)
+			return;
+		this.map.setData(index, data | Tile.TERRAFORMED);
+		this.terrain_change.add(x, y, old_z, old_slope);
+	}
+
+	/* Completes the tiles kept with their current heights and slopes and informs the listener about the ones that have really changed. */
+	private void informTerrainChange() {
+		TerrainChange change = this.terrain_change;
+		int n_tiles = 0;
+
+		if (this.terrain_change_listener == null || change.n_tiles == 0)
+			return;
+
+		change.min_x = change.min_y = Integer.MAX_VALUE;
+		change.max_x = change.max_y = Integer.MIN_VALUE;
+		for (int i = 0; i < change.n_tiles; i++) {
+			int x = change.x[i], y = change.y[i], index = this.map.getIndex(x + this.tile_max_z, y + this.tile_max_z), data = this.map.getData(index);
+			int z = Tile.getZ(data), slope = Tile.getSlope(data);
+
+			this.map.setData(index, data & ~Tile.TERRAFORMED);
+			if (z == change.old_z[i] && slope == change.old_slope[i])
+				continue;
+			change.x[n_tiles] = x;
+			change.y[n_tiles] = y;
+			change.old_z[n_tiles] = change.old_z[i];
+			change.new_z[n_tiles] = (byte) z;
+			change.old_slope[n_tiles] = change.old_slope[i];
+			change.new_slope[n_tiles++] = (byte) slope;
+			change.min_x = Math.min(change.min_x, x);
+			change.min_y = Math.min(change.min_y, y);
+			change.max_x = Math.max(change.max_x, x);
+			change.max_y = Math.max(change.max_y, y);
 		}
 
-		/* If the tile is not inside the map, the {@code fine_coordinates} are meaningless. */
-		if (fine_coordinates != null && this.tile_position_relative_map_polygon == UIsoConstants.INSIDE_POLYGON) {
-			Tile tile = this.map.tiles[tile_y][tile_x];
-			int r_x = this.point.x - (this.tile_w >> 1);
-			int r_y = this.point.y + (min_z + Tile.corner_n_z_relative_to_min_z[slope_index]) * this.slope_height;
-			float f_v_x = 0, f_v_y = 0, f_v_z = 0;
-			float h = this.slope_height;
-			float l = this.virtual_world_tile_size;
-			float a = l / h;
-
-			switch (tile.getSlope()) {
-				case Tile.FLAT:
-					f_v_x = (2 * r_y - r_x) / 4;
-					f_v_y = (r_x + (f_v_x * 2)) / 2;
-				break;
-				case Tile.NE:
-					f_v_x = (2 * r_y - r_x) / ((4 * a + 2) / a);
-					f_v_y = (r_x + (f_v_x * 2)) / 2;
-					f_v_z = h - f_v_x / a;
-				break;
-				case Tile.SW:
-					f_v_x = (2 * r_y - r_x) / ((4 * a - 2) / a);
-					f_v_y = (r_x + (f_v_x * 2)) / 2;
-					f_v_z = f_v_x / a;
-				break;
-				case Tile.ES:
-					f_v_y = (2 * r_y + r_x) / ((4 * a - 2) / a);
-					f_v_x = (-r_x + (f_v_y * 2)) / 2;
-					f_v_z = f_v_y / a;
-				break;
-				case Tile.WN:
-					f_v_y = (2 * r_y + r_x) / ((4 * a + 2) / a);
-					f_v_x = (-r_x + (f_v_y * 2)) / 2;
-					f_v_z = h - f_v_y / a;
-				break;
-				case Tile.N:
-					if (r_y >= h + l) {
-						r_y -= h;
-						f_v_x = (2 * r_y - r_x) / 4;
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-					} else {
-						f_v_x = (2 * l * r_y - l * r_x - h * r_x) / (4 * (l + h));
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = ((l * h - f_v_x * h - h * f_v_y) / l);
-					}
-				break;
-				case Tile.S:
-					if (r_y >= l) {
-						r_y -= l / 2;
-						f_v_x = (2 * l * r_y - l * r_x + h * r_x) / (4 * (l - h));
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = ((l * h - f_v_x * h - h * f_v_y) / -l);
-					} else {
-						f_v_x = (2 * r_y - r_x) / 4;
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-					}
-				break;
-				case Tile.W:
-					if (r_x >= 0) {
-						f_v_x = (2 * r_y - r_x) / 4;
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-					} else {
-						f_v_x = (2 * l * r_y - l * r_x - h * r_x) / (4 * l);
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = (h * f_v_x - h * f_v_y) / l;
-					}
-				break;
-
-				case Tile.E:
-					if (r_x <= 0) {
-						f_v_x = (2 * r_y - r_x) / 4;
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-					} else {
-						f_v_x = (2 * l * r_y - l * r_x + h * r_x) / (4 * l);
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = (h * f_v_y - h * f_v_x) / l;
-					}
-				break;
-				case Tile.WE:
-					if (r_y > h) {
-						r_y += l;
-						f_v_x = (2 * l * r_y - l * r_x - h * r_x) / (4 * (l + h));
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = (h * f_v_x + h * f_v_y - 2 * h * l) / -l;
-					} else {
-						f_v_x = (2 * l * r_y - l * r_x + h * r_x) / (4 * (l - h));
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = (h * f_v_x + h * f_v_y) / l;
-					}
-				break;
-				case Tile.NS:
-					if (r_x <= 0) {
-						f_v_x = (2 * l * r_y - l * r_x + h * r_x) / (4 * l);
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = (l * h - h * f_v_x + h * f_v_y) / l;
-					} else {
-						f_v_x = (2 * l * r_y - l * r_x - h * r_x) / (4 * l);
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = (-l * h + h * f_v_y - h * f_v_x) / -l;
-					}
-				break;
-				case Tile.NES:
-					if (r_x < 0) {
-						f_v_x = (2 * l * r_y - l * r_x + h * r_x) / (4 * l);
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = (l * h - h * f_v_x + h * f_v_y) / l;
-					} else {
-						f_v_x = (2 * r_y - r_x) / 4;
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = h;
-					}
-				break;
-				case Tile.SWN:
-					if (r_x <= 0) {
-						f_v_x = (2 * r_y - r_x) / 4;
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = h;
-					} else {
-						f_v_x = (2 * l * r_y - l * r_x - h * r_x) / (4 * l);
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = (-l * h + h * f_v_y - h * f_v_x) / -l;
-					}
-				break;
-				case Tile.ESW:
-					if (r_y >= h) {
-						r_y += h;
-						f_v_x = (2 * r_y - r_x) / 4;
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = h;
-					} else {
-						f_v_x = (2 * l * r_y - l * r_x + h * r_x) / (4 * (l - h));
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = (h * f_v_x + h * f_v_y) / l;
-					}
-				break;
-				case Tile.WNE:
-					if (r_y <= l) {
-						f_v_x = (2 * r_y - r_x) / 4;
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = h;
-					} else {
-						r_y += h;
-						f_v_x = (2 * l * r_y - l * r_x - h * r_x) / (4 * (l + h));
-						f_v_y = (r_x + (f_v_x * 2)) / 2;
-						f_v_z = (h * f_v_x + h * f_v_y - 2 * h * l) / -l;
-					}
-				break;
-				default:
-					assert (false);
+		change.n_tiles = n_tiles;
+		if (n_tiles > 0)
+			this.terrain_change_listener.terrainChanged(this, change);
+		change.n_tiles = 0;
+	}
+
+	/* The flag set by addTileToAffectedList makes each slope be corrected once. */
+	private void updateSlopes(int[] indices, int n) {
+		for (int i = 0; i < n; i++) {
+			int index = indices[i], tile_x = this.map.getX(index), tile_y = this.map.getY(index);
+			for (int j = 3; j <= 5; j++) {
+				int neighbour_x = tile_x + Tile.neighbour_x_offset[j];
+				int neighbour_y = tile_y + Tile.neighbour_y_offset[j];
+				if (neighbour_x < 0 || neighbour_y < 0)
+					continue;
+				this.updateSlope(this.map.getIndex(neighbour_x, neighbour_y));
 			}
-			fine_coordinates.x = UIsoEngine.clamp(0, this.virtual_world_tile_size - 1, MathUtils.round(f_v_x));
-			fine_coordinates.y = UIsoEngine.clamp(0, this.virtual_world_tile_size - 1, MathUtils.round(f_v_y));
-			fine_coordinates.z = UIsoEngine.clamp(0, this.slope_height, MathUtils.round(f_v_z));
+			this.updateSlope(index);
 		}
+	}
 
-		return this.map.tiles[tile_y][tile_x];
+	private static int[] grow(int[] array) {
+		int[] new_array = new int[array.length << 1];
+		System.arraycopy(array, 0, new_array, 0, array.length);
+		return new_array;
 	}
 
-	private void internalSetTileZ(Tile tile, int z) {
-		assert (z != tile.getZ());
+	/* Builds the heights of the points of each slope surface (indexed by y * virtual_world_tile_size + x). The invalid slopes are flat. */
+	private void buildSlopeHeights() {
+		int size = this.virtual_world_tile_size;
 
-		int old_z = tile.getZ(), x = tile.getX(), y = tile.getY();
-		tile.setZ(z);
-		if (this.tile_max_z <= x && x < this.tile_max_z + this.w && this.tile_max_z <= y && y < this.tile_max_z + this.h)
-			this.simulation_logic.informTileZUpdate(this, tile, old_z);
+		this.slope_heights = new byte[16][size * size];
+		for (int slope = 0; slope < 16; slope++) {
+			if (Tile.getSlopeIndex(slope << 8) < 0)
+				continue;
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++)
+					this.slope_heights[slope][y * size + x] = (byte) this.computeRelativeHeightOfPointInSlopeSurface(slope, x, y);
+			}
+		}
 	}
 
-	private boolean recursiveSetTileZ(Tile tile, int z, boolean increasing, int direction, boolean test_mode) {
-		boolean can_set_z = true;
-		int difference, new_z = clamp(0, this.tile_max_z, z), x = tile.getX(), y = tile.getY();
+	private int computeRelativeHeightOfPointInSlopeSurface(int slope, int x, int y) {
+		float h = this.slope_height;
+		float l = this.virtual_world_tile_size;
+		float a = l / h;
+		switch (slope) {
+			case Tile.FLAT:
+				return 0;
+
+			case Tile.NE:
+				return MathUtils.round(h - x / a);
+
+			case Tile.SW:
+				return MathUtils.round(x / a);
+
+			case Tile.ES:
+				return MathUtils.round(y / a);
+
+			case Tile.WN:
+				return MathUtils.round(h - y / a);
+
+			case Tile.N:
+				return MathUtils.round(x + y >= l ? 0 : (l * h - x * h - h * y) / l);
+
+			case Tile.S:
+				return MathUtils.round(x + y <= l ? 0 : (l * h - x * h - h * y) / -l);
 
-		if (new_z == tile.getZ())
+			case Tile.W:
+				return MathUtils.round(x - y < 0 ? 0 : (h * x - h * y) / l);
+
+			case Tile.E:
+				return MathUtils.round(x - y > 0 ? 0 : (h * x - h * y) / -l);
+
+			case Tile.WE:
+				return MathUtils.round(x + y >= l ? (h * x + h * y - 2 * h * l) / -l : (h * x + h * y) / l);
+
+			case Tile.NS:
+				return MathUtils.round(x - y < 0 ? (l * h - h * y + h * x) / l : (l * h - h * x + h * y) / l);
+
+			case Tile.NES:
+				return MathUtils.round(x - y <= 0 ? h : (l * h - h * x + h * y) / l);
+
+			case Tile.SWN:
+				return MathUtils.round(x - y >= 0 ? h : (l * h - h * y + h * x) / l);
+
+			case Tile.ESW:
+				return MathUtils.round(x + y <= l ? (h * x + h * y) / l : h);
+
+			case Tile.WNE:
+				return MathUtils.round(x + y <= l ? h : (h * x + h * y - 2 * h * l) / -l);
+
+			default:
+				assert (false);
+		}
+		return 0;
+	}
+
+	/*
+	 * Changes (or, in test mode, checks) the heights of the tiles around the tile (x,y) whose height is z, so the height difference between neighbours is at most 1.
+	 * The tiles are visited in breadth first order using a queue: the ones at distance d get z - d (or z + d), whatever the path, so each tile is visited once. A tile
+	 * is only propagated to the neighbours given by the directions through which it has been reached.
+	 */
+	private boolean propagateTileZ(int x, int y, int z, boolean test_mode) {
+		int size = (this.tile_max_z << 1) + 1, first_x = x - this.tile_max_z, first_y = y - this.tile_max_z, head = 0;
+
+		if (this.tile_max_z == 0)
 			return true;
-		else if (!test_mode)
-			this.internalSetTileZ(tile, new_z);
-		else if (!this.internalCanSetTileZ(tile, new_z))
-			return false;
+		if (++this.terraform_stamp == 0) {
+			for (int i = 0; i < this.terraform_stamps.length; i++)
+				this.terraform_stamps[i] = 0;
+			this.terraform_stamp = 1;
+		}
+		this.n_terraform_queue = 0;
 
-		for (int i = 0; i < n_neighbours[direction] && can_set_z; i++) {
-			int neighbour_x = x + neighbour_x_offset[direction][i];
-			int neighbour_y = y + neighbour_y_offset[direction][i];
+		/* The first tile is propagated to all its neighbours. */
+		for (int i = 0; i < Tile.N_NEIGHBORS; i++)
+			this.enqueueTileZ(x + Tile.neighbour_x_offset[i], y + Tile.neighbour_y_offset[i], first_x, first_y, size, z, Tile.neighbour_direction[i]);
 
-			if (0 <= neighbour_x && neighbour_x <= this.real_w && 0 <= neighbour_y && neighbour_y <= this.real_h) {
-				Tile neighbour_tile = this.map.tiles[neighbour_y][neighbour_x];
-				difference = (new_z - neighbour_tile.getZ());
+		while (head < this.n_terraform_queue) {
+			int cell = this.terraform_queue[head], index = this.terraform_queue_indices[head++], tile_x = this.map.getX(index), tile_y = this.map.getY(index);
+			int tile_z = this.terraform_z[cell], directions = this.terraform_directions[cell];
 
-				if (difference >= 2 && increasing) {
-					can_set_z = can_set_z && this.recursiveSetTileZ(neighbour_tile, new_z - 1, increasing, neighbour_direction[direction][i], test_mode);
-				} else if (difference <= -2 && !increasing) {
-					can_set_z = can_set_z && this.recursiveSetTileZ(neighbour_tile, new_z + 1, increasing, neighbour_direction[direction][i], test_mode);
-				}
+			if (!test_mode)
+				this.internalSetTileZ(index, tile_z);
+			else if (!this.internalCanSetTileZ(index, tile_z))
+				return false;
+
+			for (int direction = 0; directions != 0; direction++, directions >>>= 1) {
+				if ((directions & 1) == 0)
+					continue;
+				for (int i = 0; i < n_neighbours[direction]; i++)
+					this.enqueueTileZ(tile_x + neighbour_x_offset[direction][i], tile_y + neighbour_y_offset[direction][i], first_x, first_y, size, tile_z,
+							neighbour_direction[direction][i]);
 			}
+			if (!test_mode)
+				this.addTileToAffectedList(index);
+		}
+		return true;
+	}
+
+	/* The neighbour (x,y) of a tile whose height is z must follow it if their height difference is 2. */
+	private void enqueueTileZ(int x, int y, int first_x, int first_y, int size, int z, int direction) {
+		int difference, cell, index;
+
+		if (x < 0 || x > this.real_w || y < 0 || y > this.real_h)
+			return;
+		index = this.map.getIndex(x, y);
+		difference = z - Tile.getZ(this.map.getData(index));
+		if (difference > -2 && difference < 2)
+			return;
+
+		cell = (y - first_y) * size + (x - first_x);
+		if (this.terraform_stamps[cell] != this.terraform_stamp) {
+			this.terraform_stamps[cell] = this.terraform_stamp;
+			this.terraform_z[cell] = difference > 0 ? z - 1 : z + 1;
+			this.terraform_directions[cell] = 0;
+			this.terraform_queue[this.n_terraform_queue] = cell;
+			this.terraform_queue_indices[this.n_terraform_queue++] = index;
 		}
-		if (!test_mode)
-			this.addTileToAffectedList(tile);
-		return can_set_z;
+		/* All the tiles that reach it are at the same distance from the first tile (they have already been visited). */
+		this.terraform_directions[cell] |= 1 << direction;
 	}
 
 	private void internalScrollToCoordinate(Point coordinates, boolean adjust) {
@@ -1171,48 +1763,51 @@ public class UIsoEngine {
 		assert this.objects_grid_manager.isViewportPositionValid(this.viewport_offset_x, this.viewport_offset_y);
 	}
 
-	private void updateSlope(Tile tile) {
-		if (!tile.mustCorrectTheSlope())
-			return;
-		tile.setMustCorrectTheSlope(false);
-
-		int highest_z = tile.getZ(), slope = 0, old_slope, next_slope, tile_x = tile.getX(), tile_y = tile.getY();
-		boolean same_z = true;
+	private void updateSlope(int index) {
+		int data = this.map.getData(index);
 
-		if (tile_x > this.real_w || tile_y > this.real_h)
+		if ((data & Tile.MUST_CORRECT_THE_SLOPE) == 0)
 			return;
+		data &= ~Tile.MUST_CORRECT_THE_SLOPE;
+		this.map.setData(index, data);
 
-		for (int i = 0; i < 3; i++) {
-			int neighbour_x = tile_x + Tile.neighbour_x_offset[i];
-			int neighbour_y = tile_y + Tile.neighbour_y_offset[i];
-			Tile neighbour_tile = this.map.tiles[neighbour_y][neighbour_x];
+		int z = Tile.getZ(data), slope = 0, old_slope, next_slope, tile_x = this.map.getX(index), tile_y = this.map.getY(index);
 
-			if (highest_z != neighbour_tile.getZ()) {
-				same_z = false;
-				if (highest_z < neighbour_tile.getZ()) {
-					highest_z = neighbour_tile.getZ();
-				}
-			}
+		/* Every tile changed by setTileZ passes here once. */
+		if (tile_x > this.real_w || tile_y > this.real_h) {
+			this.map.informChange(index);
+			return;
 		}
 
-		if (highest_z == tile.getZ())
+		/* The heights of the other corners are the heights of the neighbours. */
+		int w_z = Tile.getZ(this.map.getData(tile_x + 1, tile_y));
+		int e_z = Tile.getZ(this.map.getData(tile_x, tile_y + 1));
+		int s_z = Tile.getZ(this.map.getData(tile_x + 1, tile_y + 1));
+		int highest_z = Math.max(Math.max(z, w_z), Math.max(e_z, s_z));
+		boolean same_z = z == w_z && z == e_z && z == s_z;
+
+		if (highest_z == z)
 			slope |= Tile.CORNER_N;
-		if (highest_z == this.map.tiles[tile_y + 1][tile_x + 1].getZ())
+		if (highest_z == s_z)
 			slope |= Tile.CORNER_S;
-		if (highest_z == this.map.tiles[tile_y + 0][tile_x + 1].getZ())
+		if (highest_z == w_z)
 			slope |= Tile.CORNER_W;
-		if (highest_z == this.map.tiles[tile_y + 1][tile_x + 0].getZ())
+		if (highest_z == e_z)
 			slope |= Tile.CORNER_E;
 
 		if (same_z)
 			next_slope = Tile.FLAT;
 		else
 			next_slope = slope;
-		old_slope = tile.getSlope();
+		old_slope = Tile.getSlope(data);
 		if (old_slope != next_slope) {
-			tile.setSlope(next_slope);
-			if (tile.isVisible())
-				this.simulation_logic.informTileSlopeUpdate(this, tile, old_slope);
+			this.damageTile(index);
+			this.map.setData(index, ((next_slope & 0xF) << 8) | (data & 0xFFFFF0FF));
+			this.damageTile(index);
+			this.recordTerrainChange(index, z, old_slope);
+			if ((data & Tile.VISIBLE) != 0)
+				this.simulation_logic.informTileSlopeUpdate(this, this.map.getTile(index), old_slope);
 		}
+		this.map.informChange(index);
 	}
 }
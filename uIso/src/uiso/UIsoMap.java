@@ -19,36 +19,427 @@
 
 package uiso;
 
+import uiso.interfaces.IMapChangeListener;
+import uiso.interfaces.IMapChunkPersistence;
 import uiso.interfaces.ITileFactory;
 
+/**
+ * Keeps the tiles data in arrays: one integer per tile (see {@link Tile}) plus the user columns. The map is divided in chunks of {@link #CHUNK_SIZE} x
+ * {@link #CHUNK_SIZE} tiles whose arrays are only allocated (and whose tiles are only built by the {@link ITileFactory}) when one of their tiles is accessed for the
+ * first time. A directory with one entry per chunk makes finding the tile data a constant time operation.
+ * <p>
+ * A tile is identified by an index: the directory entry of its chunk followed by the tile offset inside the chunk (12 bits). The directory rows have a power of two
+ * number of entries, so the tile coordinates can be recovered from the index using only shifts and masks. By default, the tiles built by the {@link ITileFactory}
+ * are kept for the loaded chunks. When {@link UIsoConfiguration#use_tile_handles} is true, {@link Tile} objects are handles created when they are asked for
+ * instead: a new one for each {@link #getTile(int)} call and a single reused one ({@link #getFlyweightTile(int)}) for the drawer.
+ * <p>
+ * When the number of loaded chunks is limited, the chunks that have not been visible for the longest time are discarded (the modified ones are saved through the
+ * {@link IMapChunkPersistence} first). Their {@link Tile} objects are not part of the map anymore.
+ * 
+ * @author luis
+ */
 class UIsoMap {
 	/* Package: */
-	Tile tiles[][];
+	final static int CHUNK_SHIFT = 6;
+	final static int CHUNK_SIZE = UIsoConstants.MAP_CHUNK_SIZE; /* 1 << CHUNK_SHIFT */
+	final static int MAX_SIZE = 1 << 16; /* The maximum number of tiles (including the margins) in each direction. */
+	final static int Z_BLOCK_SHIFT = 3; /* The minimum height of the tiles is kept for each block of 8 x 8 tiles. */
 
-	UIsoMap(int w, int h, int tile_max_z, ITileFactory tile_factory) {
-		assert (0 < w && w + (tile_max_z << 1) + 1 <= 256 && 0 < h && h + (tile_max_z << 1) + 1 <= 256);
+	UIsoMap(UIsoConfiguration configuration) {
+		this.w = configuration.w;
+		this.h = configuration.h;
+		this.tile_max_z = configuration.tile_max_z;
+		this.tile_user_columns = configuration.tile_user_columns;
+		this.tile_factory = configuration.tile_factory;
+		this.persistence = configuration.map_chunk_persistence;
+		this.max_loaded_chunks = configuration.max_loaded_map_chunks;
+		this.change_listener = configuration.map_change_listener;
+		if (this.change_listener != null)
+			this.changed_columns = new int[this.tile_user_columns];
+		assert (0 < this.w && this.w + (this.tile_max_z << 1) + 1 <= MAX_SIZE && 0 < this.h && this.h + (this.tile_max_z << 1) + 1 <= MAX_SIZE);
 
-		this.tiles = new Tile[h + (tile_max_z << 1) + 1][w + (tile_max_z << 1) + 1];
-		for (int y = 0; y <= (tile_max_z << 1) + h; y++) {
-			for (int x = 0; x <= (tile_max_z << 1) + w; x++) {
-				Tile tile;
+		this.n_chunks_x = (this.w + (this.tile_max_z << 1) + CHUNK_SIZE) >> CHUNK_SHIFT;
+		this.n_chunks_y = (this.h + (this.tile_max_z << 1) + CHUNK_SIZE) >> CHUNK_SHIFT;
+		while ((1 << this.row_shift) < this.n_chunks_x)
+			this.row_shift++;
+		this.chunks = new int[this.n_chunks_y << this.row_shift][];
+		this.chunks_columns = new int[this.chunks.length][][];
+		if (!configuration.use_tile_handles)
+			this.chunks_tiles = new Tile[this.chunks.length][];
+		this.chunks_last_use = new int[this.chunks.length];
+		this.chunks_modified = new boolean[this.chunks.length];
+		this.chunks_min_z = new byte[this.chunks.length][];
+		this.chunks_stale_min_z = new long[this.chunks.length];
+		this.loaded_chunks = new int[64];
 
-				if (x > w + tile_max_z || y > h + tile_max_z || x < tile_max_z || y < tile_max_z) {
-					tile = new Tile();
-					tile.setVisibility(false);
-				} else if (x == w + tile_max_z || y == h + tile_max_z) {
-					tile = tile_factory.buildNewTile(x - tile_max_z, y - tile_max_z);
-					tile.setVisibility(false);
-				} else {
-					tile = tile_factory.buildNewTile(x - tile_max_z, y - tile_max_z);
+		if (configuration.use_map_chunk_loader)
+			this.loader = new MapChunkLoader(this);
+	}
+
+	int getIndex(int x, int y) {
+		return ((((y >> CHUNK_SHIFT) << this.row_shift) | (x >> CHUNK_SHIFT)) << (CHUNK_SHIFT << 1)) | ((y & (CHUNK_SIZE - 1)) << CHUNK_SHIFT)
+				| (x & (CHUNK_SIZE - 1));
+	}
+
+	int getX(int index) {
+		return (((index >>> (CHUNK_SHIFT << 1)) & ((1 << this.row_shift) - 1)) << CHUNK_SHIFT) | (index & (CHUNK_SIZE - 1));
+	}
+
+	int getY(int index) {
+		return ((index >>> ((CHUNK_SHIFT << 1) + this.row_shift)) << CHUNK_SHIFT) | ((index >>> CHUNK_SHIFT) & (CHUNK_SIZE - 1));
+	}
+
+	int getData(int index) {
+		int[] data = this.chunks[index >>> (CHUNK_SHIFT << 1)];
+
+		if (data == null)
+			data = this.loadChunk(index >>> (CHUNK_SHIFT << 1));
+		return data[index & ((CHUNK_SIZE * CHUNK_SIZE) - 1)];
+	}
+
+	int getData(int x, int y) {
+		return this.getData(this.getIndex(x, y));
+	}
+
+	void setData(int index, int value) {
+		int chunk = index >>> (CHUNK_SHIFT << 1), offset = index & ((CHUNK_SIZE * CHUNK_SIZE) - 1);
+		int[] data = this.chunks[chunk];
+
+		if (data == null)
+			data = this.loadChunk(chunk);
+		if (((data[offset] ^ value) & 0x0000F000) != 0)
+			this.chunks_stale_min_z[chunk] |= 1L << getZBlock(offset);
+		data[offset] = value;
+		this.chunks_modified[chunk] = true;
+	}
+
+	/* The tile has been changed through its Tile object. */
+	void informModification(int index) {
+		this.chunks_modified[index >>> (CHUNK_SHIFT << 1)] = true;
+		this.chunks_stale_min_z[index >>> (CHUNK_SHIFT << 1)] |= 1L << getZBlock(index & ((CHUNK_SIZE * CHUNK_SIZE) - 1));
+		this.informChange(index);
+	}
+
+	/**
+	 * @return the minimum height of the tiles of the block (block_x, block_y): the tiles from (block_x << Z_BLOCK_SHIFT, block_y << Z_BLOCK_SHIFT) to (((block_x + 1)
+	 *         << Z_BLOCK_SHIFT) - 1, ((block_y + 1) << Z_BLOCK_SHIFT) - 1)
+	 */
+	int getMinZ(int block_x, int block_y) {
+		int chunk = ((block_y >> (CHUNK_SHIFT - Z_BLOCK_SHIFT)) << this.row_shift) | (block_x >> (CHUNK_SHIFT - Z_BLOCK_SHIFT));
+		int block = ((block_y & ((1 << (CHUNK_SHIFT - Z_BLOCK_SHIFT)) - 1)) << (CHUNK_SHIFT - Z_BLOCK_SHIFT)) | (block_x & ((1 << (CHUNK_SHIFT - Z_BLOCK_SHIFT)) - 1));
+		int[] data = this.chunks[chunk];
+
+		if (data == null)
+			data = this.loadChunk(chunk);
+		/* It is computed again only when one of the heights has changed. */
+		if ((this.chunks_stale_min_z[chunk] & (1L << block)) != 0) {
+			int min_z = 0xF, first_offset = ((block >> (CHUNK_SHIFT - Z_BLOCK_SHIFT)) << (CHUNK_SHIFT + Z_BLOCK_SHIFT))
+					| ((block & ((1 << (CHUNK_SHIFT - Z_BLOCK_SHIFT)) - 1)) << Z_BLOCK_SHIFT);
+
+			for (int y = 0; y < (1 << Z_BLOCK_SHIFT); y++) {
+				for (int x = 0, offset = first_offset + (y << CHUNK_SHIFT); x < (1 << Z_BLOCK_SHIFT); x++, offset++)
+					min_z = Math.min(min_z, (data[offset] & 0x0000F000) >>> 12);
+			}
+			this.chunks_min_z[chunk][block] = (byte) min_z;
+			this.chunks_stale_min_z[chunk] &= ~(1L << block);
+		}
+		return this.chunks_min_z[chunk][block];
+	}
+
+	/**
+	 * Informs the change listener about the tile. The engine calls it once per tile changed by {@link #setData(int, int)} when the operation is over.
+	 */
+	void informChange(int index) {
+		int chunk = index >>> (CHUNK_SHIFT << 1), offset = index & ((CHUNK_SIZE * CHUNK_SIZE) - 1);
+
+		if (this.change_listener == null)
+			return;
+		for (int i = 0; i < this.tile_user_columns; i++)
+			this.changed_columns[i] = this.chunks_columns[chunk][i][offset];
+		/* The engine may be in the middle of an operation: its marks are not part of the state. */
+		this.change_listener.tileChanged(this.getX(index) - this.tile_max_z, this.getY(index) - this.tile_max_z, this.chunks[chunk][offset] & ~Tile.TERRAFORMED,
+				this.changed_columns);
+	}
+
+	/**
+	 * Sets the whole tile state without informing the change listener.
+	 */
+	void restoreTile(int index, int data, int[] columns) {
+		int chunk = index >>> (CHUNK_SHIFT << 1), offset = index & ((CHUNK_SIZE * CHUNK_SIZE) - 1);
+
+		if (this.chunks[chunk] == null)
+			this.loadChunk(chunk);
+		this.chunks[chunk][offset] = data;
+		this.chunks_stale_min_z[chunk] |= 1L << getZBlock(offset);
+		for (int i = 0; i < this.tile_user_columns && i < columns.length; i++)
+			this.chunks_columns[chunk][i][offset] = columns[i];
+		this.chunks_modified[chunk] = true;
+	}
+
+	Tile getTile(int x, int y) {
+		return this.getTile(this.getIndex(x, y));
+	}
+
+	/**
+	 * Unless the tile objects are kept, a new handle is returned by each call.
+	 */
+	Tile getTile(int index) {
+		int chunk = index >>> (CHUNK_SHIFT << 1), offset = index & ((CHUNK_SIZE * CHUNK_SIZE) - 1);
+		Tile tile;
+
+		if (this.chunks[chunk] == null)
+			this.loadChunk(chunk);
+		if (this.chunks_tiles != null)
+			return this.chunks_tiles[chunk][offset];
+
+		tile = this.getHandlePrototype().newHandle();
+		tile.bind(this, index, this.chunks[chunk], this.chunks_columns[chunk], offset);
+		return tile;
+	}
+
+	/**
+	 * Unless the tile objects are kept, the same handle is returned by every call, so it is only valid until the next one. It is used to ask the drawer for the tile
+	 * sprites without creating objects.
+	 */
+	Tile getFlyweightTile(int index) {
+		int chunk = index >>> (CHUNK_SHIFT << 1), offset = index & ((CHUNK_SIZE * CHUNK_SIZE) - 1);
+
+		if (this.chunks[chunk] == null)
+			this.loadChunk(chunk);
+		if (this.chunks_tiles != null)
+			return this.chunks_tiles[chunk][offset];
+
+		if (this.flyweight_tile == null)
+			this.flyweight_tile = this.getHandlePrototype().newHandle();
+		this.flyweight_tile.bind(this, index, this.chunks[chunk], this.chunks_columns[chunk], offset);
+		return this.flyweight_tile;
+	}
+
+	int getNumberOfLoadedChunks() {
+		return this.n_loaded_chunks;
+	}
+
+	boolean isStreaming() {
+		return this.max_loaded_chunks > 0 || this.loader != null;
+	}
+
+	/**
+	 * Called once per frame. The area uses tiles coordinates. The chunks that are in the area are marked as used. The ones that are next to it (up to
+	 * {@code prefetch_distance} chunks in the scroll direction) are also marked and, if there is a loader, they are requested. Then, the least recently used chunks
+	 * are discarded while there are too many of them.
+	 */
+	void updateChunks(int min_x, int min_y, int max_x, int max_y, int direction_x, int direction_y, int prefetch_distance) {
+		int min_chunk_x = clampChunk(min_x >> CHUNK_SHIFT, this.n_chunks_x), max_chunk_x = clampChunk(max_x >> CHUNK_SHIFT, this.n_chunks_x);
+		int min_chunk_y = clampChunk(min_y >> CHUNK_SHIFT, this.n_chunks_y), max_chunk_y = clampChunk(max_y >> CHUNK_SHIFT, this.n_chunks_y);
+		int first_chunk_x = min_chunk_x, last_chunk_x = max_chunk_x, first_chunk_y = min_chunk_y, last_chunk_y = max_chunk_y;
+
+		this.clock++;
+		if (this.loader != null) {
+			this.loader.installChunks();
+			this.loader.clearRequests();
+		}
+
+		if (direction_x > 0)
+			last_chunk_x = clampChunk(max_chunk_x + prefetch_distance, this.n_chunks_x);
+		else if (direction_x < 0)
+			first_chunk_x = clampChunk(min_chunk_x - prefetch_distance, this.n_chunks_x);
+		if (direction_y > 0)
+			last_chunk_y = clampChunk(max_chunk_y + prefetch_distance, this.n_chunks_y);
+		else if (direction_y < 0)
+			first_chunk_y = clampChunk(min_chunk_y - prefetch_distance, this.n_chunks_y);
+
+		for (int chunk_y = first_chunk_y; chunk_y <= last_chunk_y; chunk_y++) {
+			for (int chunk_x = first_chunk_x; chunk_x <= last_chunk_x; chunk_x++) {
+				int chunk = (chunk_y << this.row_shift) | chunk_x;
+
+				this.chunks_last_use[chunk] = this.clock;
+				/* The visible chunks are loaded when they are drawn. */
+				if (this.loader != null && this.chunks[chunk] == null
+						&& (chunk_x < min_chunk_x || chunk_x > max_chunk_x || chunk_y < min_chunk_y || chunk_y > max_chunk_y))
+					this.loader.request(chunk);
+			}
+		}
+
+		if (this.max_loaded_chunks > 0) {
+			while (this.n_loaded_chunks > this.max_loaded_chunks) {
+				int least_recently_used = -1;
+
+				for (int i = 0; i < this.n_loaded_chunks; i++) {
+					int chunk = this.loaded_chunks[i];
+
+					/* The modified chunks can only be discarded if they can be saved. */
+					if (this.chunks_last_use[chunk] == this.clock || (this.chunks_modified[chunk] && this.persistence == null))
+						continue;
+					if (least_recently_used >= 0 && this.chunks_last_use[chunk] >= this.chunks_last_use[this.loaded_chunks[least_recently_used]])
+						continue;
+					if (this.loader != null && this.loader.isPending(chunk))
+						continue;
+					least_recently_used = i;
 				}
+				if (least_recently_used < 0)
+					break;
+				this.discardChunk(least_recently_used);
+			}
+		}
+	}
 
-				tile.setX(x);
-				tile.setY(y);
-				tile.setZ(0);
+	int[][] newChunkColumns() {
+		return new int[this.tile_user_columns][CHUNK_SIZE * CHUNK_SIZE];
+	}
 
-				this.tiles[y][x] = tile;
+	/**
+	 * @return an array for the tiles of a chunk or null if the tile objects are not kept
+	 */
+	Tile[] newChunkTiles() {
+		return this.chunks_tiles != null ? new Tile[CHUNK_SIZE * CHUNK_SIZE] : null;
+	}
+
+	/**
+	 * Fills the arrays with the chunk tiles. The tiles built by the factory are only kept if {@code tiles} is not null. It can be called by the loader thread, so it
+	 * does not change the map.
+	 */
+	void buildChunk(int chunk, int[] data, int[][] columns, Tile[] tiles) {
+		int first_x = (chunk & ((1 << this.row_shift) - 1)) << CHUNK_SHIFT, first_y = (chunk >>> this.row_shift) << CHUNK_SHIFT;
+		boolean loaded = this.persistence != null && this.persistence.loadChunk(first_x - this.tile_max_z, first_y - this.tile_max_z, data, columns);
+
+		/* The data of a chunk loaded by the persistence is kept, the tiles are only built to be kept. */
+		if (loaded && tiles == null)
+			return;
+
+		for (int y = first_y; y < first_y + CHUNK_SIZE; y++) {
+			for (int x = first_x; x < first_x + CHUNK_SIZE; x++) {
+				int offset = ((y - first_y) << CHUNK_SHIFT) | (x - first_x);
+				Tile tile;
+
+				/* The margins are flat and invisible. */
+				if (this.isMargin(x, y)) {
+					if (tiles != null)
+						tiles[offset] = new Tile();
+					continue;
+				}
+
+				tile = this.tile_factory.buildNewTile(x - this.tile_max_z, y - this.tile_max_z);
+				if (tiles != null)
+					tiles[offset] = tile;
+				if (loaded)
+					continue;
+				if (x == this.w + this.tile_max_z || y == this.h + this.tile_max_z)
+					tile.setVisibility(false);
+				data[offset] = tile.store[tile.offset];
+				for (int i = 0; i < this.tile_user_columns; i++)
+					columns[i][offset] = tile.getUserColumn(i);
 			}
 		}
 	}
+
+	/**
+	 * The chunk is ignored if it has already been loaded.
+	 */
+	void installChunk(int chunk, int[] data, int[][] columns, Tile[] tiles) {
+		if (this.chunks[chunk] != null)
+			return;
+
+		this.chunks[chunk] = data;
+		this.chunks_columns[chunk] = columns;
+		if (tiles != null) {
+			/* From now on, the tiles built by the factory are handles of the map data. */
+			for (int offset = 0; offset < CHUNK_SIZE * CHUNK_SIZE; offset++)
+				tiles[offset].bind(this, (chunk << (CHUNK_SHIFT << 1)) | offset, data, columns, offset);
+			this.chunks_tiles[chunk] = tiles;
+		}
+		this.chunks_modified[chunk] = false;
+		this.chunks_min_z[chunk] = new byte[1 << ((CHUNK_SHIFT - Z_BLOCK_SHIFT) << 1)];
+		this.chunks_stale_min_z[chunk] = -1L;
+		this.chunks_last_use[chunk] = this.clock;
+		if (this.n_loaded_chunks == this.loaded_chunks.length) {
+			int[] loaded_chunks = new int[this.loaded_chunks.length << 1];
+			System.arraycopy(this.loaded_chunks, 0, loaded_chunks, 0, this.n_loaded_chunks);
+			this.loaded_chunks = loaded_chunks;
+		}
+		this.loaded_chunks[this.n_loaded_chunks++] = chunk;
+	}
+
+	/**
+	 * Saves the loaded chunks that have been modified.
+	 */
+	void saveChunks() {
+		if (this.persistence == null)
+			return;
+		for (int i = 0; i < this.n_loaded_chunks; i++) {
+			if (this.chunks_modified[this.loaded_chunks[i]])
+				this.saveChunk(this.loaded_chunks[i]);
+		}
+	}
+
+	void dispose() {
+		if (this.loader != null)
+			this.loader.stop();
+	}
+
+	/* Private: */
+	private int w, h, tile_max_z, tile_user_columns, row_shift; /* Each directory row has 2^row_shift entries. */
+	private int n_chunks_x, n_chunks_y, max_loaded_chunks, n_loaded_chunks, clock;
+	private int[][] chunks; /* The chunks directory. */
+	private int[][][] chunks_columns;
+	private Tile[][] chunks_tiles; /* Only used when the tile objects are kept. */
+	private Tile handle_prototype, flyweight_tile;
+	private int[] chunks_last_use, loaded_chunks;
+	private boolean[] chunks_modified;
+	private byte[][] chunks_min_z; /* One entry per block of the chunk. See getMinZ. */
+	private long[] chunks_stale_min_z; /* One bit per block of the chunk whose entry must be computed again. */
+	private ITileFactory tile_factory;
+	private IMapChunkPersistence persistence;
+	private IMapChangeListener change_listener;
+	private int[] changed_columns; /* Reused to inform the change listener. */
+	private MapChunkLoader loader;
+
+	/* The block of the chunk that contains the tile. */
+	private static int getZBlock(int offset) {
+		return ((offset >>> (CHUNK_SHIFT + Z_BLOCK_SHIFT)) << (CHUNK_SHIFT - Z_BLOCK_SHIFT)) | ((offset & (CHUNK_SIZE - 1)) >>> Z_BLOCK_SHIFT);
+	}
+
+	private static int clampChunk(int chunk, int n_chunks) {
+		return chunk < 0 ? 0 : (chunk >= n_chunks ? n_chunks - 1 : chunk);
+	}
+
+	private boolean isMargin(int x, int y) {
+		return x > this.w + this.tile_max_z || y > this.h + this.tile_max_z || x < this.tile_max_z || y < this.tile_max_z;
+	}
+
+	private int[] loadChunk(int chunk) {
+		int[] data = new int[CHUNK_SIZE * CHUNK_SIZE];
+		int[][] columns = this.newChunkColumns();
+		Tile[] tiles = this.newChunkTiles();
+
+		this.buildChunk(chunk, data, columns, tiles);
+		this.installChunk(chunk, data, columns, tiles);
+		return data;
+	}
+
+	/* The handles are copies of a tile built by the factory, so they have the class the user expects. */
+	private Tile getHandlePrototype() {
+		if (this.handle_prototype == null)
+			this.handle_prototype = this.tile_factory.buildNewTile(0, 0);
+		return this.handle_prototype;
+	}
+
+	private void discardChunk(int i) {
+		int chunk = this.loaded_chunks[i];
+
+		if (this.chunks_modified[chunk])
+			this.saveChunk(chunk);
+		this.chunks[chunk] = null;
+		this.chunks_columns[chunk] = null;
+		if (this.chunks_tiles != null)
+			this.chunks_tiles[chunk] = null;
+		this.chunks_min_z[chunk] = null;
+		this.loaded_chunks[i] = this.loaded_chunks[--this.n_loaded_chunks];
+	}
+
+	private void saveChunk(int chunk) {
+		int first_x = (chunk & ((1 << this.row_shift) - 1)) << CHUNK_SHIFT, first_y = (chunk >>> this.row_shift) << CHUNK_SHIFT;
+
+		this.persistence.saveChunk(first_x - this.tile_max_z, first_y - this.tile_max_z, this.chunks[chunk], this.chunks_columns[chunk]);
+		this.chunks_modified[chunk] = false;
+	}
 }
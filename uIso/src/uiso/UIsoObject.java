@@ -41,13 +41,11 @@ public abstract class UIsoObject extends LinkedListElement {
 	}
 
 	public int getX() {
-		boolean sign = (this.data1 & 0x80000000) != 0;
-		return ((this.data1 & 0x7FFF0000) >>> 16) * (sign ? -1 : 1);
+		return this.x;
 	}
 
 	public int getY() {
-		boolean sign = (this.data1 & 0x00008000) != 0;
-		return (this.data1 & 0x00007FFF) * (sign ? -1 : 1);
+		return this.y;
 	}
 
 	public int getZ() {
@@ -65,21 +63,11 @@ public abstract class UIsoObject extends LinkedListElement {
 	}
 
 	public void setX(int x) {
-		boolean sign = false;
-		if (x < 0) {
-			sign = true;
-			x = -x;
-		}
-		this.data1 = ((sign ? 1 : 0) << 31) | ((x << 16) & 0x7FFF0000) | (this.data1 & 0x0000FFFF);
+		this.x = x;
 	}
 
 	public void setY(int y) {
-		boolean sign = false;
-		if (y < 0) {
-			sign = true;
-			y = -y;
-		}
-		this.data1 = ((sign ? 1 : 0) << 15) | (y & 0x00007FFF) | (this.data1 & 0xFFFF0000);
+		this.y = y;
 	}
 
 	public void setZ(int z) {
@@ -125,6 +113,12 @@ public abstract class UIsoObject extends LinkedListElement {
 	final static int INVALID_VERTEX = 4;
 
 	LinkedListElement nw_foward, nw_backward, ne_foward, ne_backward, es_foward, es_backward, ws_foward, ws_backward;
+	/* The rectangle (using real coordinates) occupied by the object when it was last placed on the objects grid. A zero width means it has not been placed. */
+	int bounds_x, bounds_y, bounds_w, bounds_h;
+	/* The objects grid cell whose list holds each vertex (null when the vertex is in no list). Used to relink only the vertices whose cell has changed. */
+	UIsoObjectsGridCell nw_cell, ne_cell, es_cell, ws_cell;
+	/* The position of the object in the sorted full viewport scene identified by the stamp. Used to sort the next scenes faster. */
+	int scene_stamp, scene_rank;
 
 	LinkedListElement getPreviousElement(int vertex) {
 		switch (vertex) {
@@ -289,11 +283,8 @@ public abstract class UIsoObject extends LinkedListElement {
 	/* Private: */
 	/* Part of the data is stored in some fields to save memory. */
 	/* The compiler allocates 4 bytes for byte, boolean, short and int types. */
-	/* Data 1: */
-	/* [31 ... 31] (1 bit): x sign */
-	/* [30 ... 16] (15 bits): x */
-	/* [15 ... 15] (1 bit): y sign */
-	/* [14 ... 0] (15 bits): y */
+	/* The x and y virtual coordinates use all the 32 bits since the map can be very large. */
+	private int x, y;
 	/* Data 2: */
 	/* [31 ... 31] (1 bit): selected - used to avoid repetitions during scene drawing */
 	/* [30 ... 30] (1 bits): visible */
@@ -310,5 +301,5 @@ public abstract class UIsoObject extends LinkedListElement {
 	/* [15 ... 15] (1 bit): z sign */
 	/* [14 ... 0] (15 bits): z */
 
-	private int data1, data2, data3;
+	private int data2, data3;
 }
@@ -19,7 +19,6 @@
 
 package uiso.interfaces;
 
-import uiso.Rectangle;
 import uiso.Sprite;
 import uiso.SpriteObject;
 import uiso.Tile;
@@ -34,7 +33,7 @@ import uiso.UIsoImage;
  * 
  * @author luis
  */
-public interface IDrawer {
+public interface IDrawer extends IObjectMetrics {
 	/* Public: */
 	/**
 	 * Called before beginning the scene drawing process.
@@ -118,18 +117,6 @@ public interface IDrawer {
 	 */
 	public void drawString(int x, int y, String s, Object font, Object color);
 
-	/**
-	 * Gets the bounds of the {@link String} informed. It does not need to be exactly but can not be smaller.
-	 * 
-	 * @param s
-	 *           the {@link String} for which the bounds will be calculated
-	 * @param bounds
-	 *           the {@link Rectangle} where the bounds will be stored
-	 * @param font
-	 *           the font that will be used to draw {@code s}. It will be null in the case of debugging information.
-	 */
-	public void getStringBounds(String s, Rectangle bounds, Object font);
-
 	/**
 	 * The last method called during a scene drawing.
 	 */
@@ -138,7 +125,8 @@ public interface IDrawer {
 	/**
 	 * Given the tile returns (using the informed array) the sprites that will be used to draw it. If it is not completed filled, the first non used position must be
 	 * filled with the {@code null} value. The number of available positions is configured using {@link UIsoConfiguration#max_sprites_per_tile}. The {@link Sprite} to be
-	 * drawn first should be in the array first position and so on.
+	 * drawn first should be in the array first position and so on. When {@link UIsoConfiguration#use_tile_handles} is true, the same {@link Tile} handle is given
+	 * for all tiles, so it must not be kept.
 	 * 
 	 * @param tile
 	 *           the tile
@@ -147,17 +135,6 @@ public interface IDrawer {
 	 */
 	public void getTileSprite(Tile tile, Sprite[] sprites);
 
-	/* TODO: Right now, it considers only the first position. */
-	/**
-	 * Returns the sprite associated with the object informed.
-	 * 
-	 * @param object
-	 *           the object for which a sprite will be returned
-	 * @param sprites
-	 *           the object sprite
-	 */
-	public void getObjectSprite(SpriteObject object, Sprite[] sprites);
-
 	/**
 	 * Copies an area delimited by a rectangle to the area defined by the second rectangle. The method should be able to deal with overlapped areas.
 	 * 
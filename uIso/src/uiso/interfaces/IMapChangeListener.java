@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso.interfaces;
+
+import uiso.Tile;
+import uiso.UIsoConfiguration;
+import uiso.UIsoEngine;
+import uiso.UIsoObject;
+
+/**
+ * Is informed about the changes of the map state: the tiles (height, slope, visibility, user data bits and user columns) and the objects that are inserted, moved and
+ * removed. It can be used to keep a journal of the changes (see {@link uiso.util.MapJournal}). The methods are called by the thread that changes the map, right after
+ * the change, so they must be fast. See {@link UIsoConfiguration#map_change_listener}.
+ * 
+ * @author luis
+ */
+public interface IMapChangeListener {
+	/* Public: */
+	/**
+	 * It is called once for each tile changed by an operation. For example, {@link UIsoEngine#setTileZ(Tile, int)} informs the tiles whose heights have been changed
+	 * and their neighbours whose slopes may have been changed.
+	 * 
+	 * @param tile_x
+	 *           the tile x-coordinate (it can be negative since the map has margins)
+	 * @param tile_y
+	 *           the tile y-coordinate
+	 * @param state
+	 *           the tile state. It must be kept as it is and given back to {@link UIsoEngine#restoreTile(int, int, int, int[])}.
+	 * @param user_columns
+	 *           the tile user columns (see {@link Tile#getUserColumn(int)}). The array is reused, so it must be copied.
+	 */
+	public abstract void tileChanged(int tile_x, int tile_y, int state, int[] user_columns);
+
+	/**
+	 * @param object
+	 *           the object inserted through {@link UIsoEngine#insertObject(UIsoObject)}
+	 */
+	public abstract void objectInserted(UIsoObject object);
+
+	/**
+	 * @param object
+	 *           the object whose motion was informed through {@link UIsoEngine#informObjectMotion(UIsoObject)}
+	 */
+	public abstract void objectMoved(UIsoObject object);
+
+	/**
+	 * @param object
+	 *           the object removed through {@link UIsoEngine#removeObject(UIsoObject)}
+	 */
+	public abstract void objectRemoved(UIsoObject object);
+}
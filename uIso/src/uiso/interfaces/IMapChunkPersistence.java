@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso.interfaces;
+
+import uiso.UIsoConfiguration;
+import uiso.UIsoConstants;
+
+/**
+ * Keeps the map chunks (squares of {@link UIsoConstants#MAP_CHUNK_SIZE} x {@link UIsoConstants#MAP_CHUNK_SIZE} tiles) that have been modified while they are not
+ * loaded (see {@link UIsoConfiguration#max_loaded_map_chunks}). The chunk data is given as arrays whose contents must be stored as they are: one integer per tile
+ * (row by row) plus one array per tile user column. When {@link UIsoConfiguration#use_map_chunk_loader} is true, the chunks are loaded by another thread while they
+ * are saved by the thread that draws, so the implementation must be thread safe.
+ * 
+ * @author luis
+ */
+public interface IMapChunkPersistence {
+	/* Public: */
+	/**
+	 * @param tile_x
+	 *           the x-coordinate of the first chunk tile (it can be negative since the map has margins)
+	 * @param tile_y
+	 *           the y-coordinate of the first chunk tile
+	 * @param data
+	 *           receives the tiles data
+	 * @param columns
+	 *           receives the tiles user columns
+	 * @return {@code false} if the chunk has never been saved. Its tiles are then built by the {@link ITileFactory}.
+	 */
+	public abstract boolean loadChunk(int tile_x, int tile_y, int[] data, int[][] columns);
+
+	/**
+	 * Called before a modified chunk is discarded.
+	 * 
+	 * @param tile_x
+	 *           the x-coordinate of the first chunk tile
+	 * @param tile_y
+	 *           the y-coordinate of the first chunk tile
+	 * @param data
+	 *           the tiles data
+	 * @param columns
+	 *           the tiles user columns
+	 */
+	public abstract void saveChunk(int tile_x, int tile_y, int[] data, int[][] columns);
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso.interfaces;
+
+import uiso.Rectangle;
+import uiso.Sprite;
+import uiso.SpriteObject;
+import uiso.UIsoConfiguration;
+import uiso.UIsoEngine;
+
+/**
+ * The methods employed by the engine to place the objects on the map: only the extents of their sprites and strings are needed. Every {@link IDrawer} is one. A
+ * headless engine (one without {@link UIsoConfiguration#drawer}) uses {@link UIsoConfiguration#object_metrics} instead.
+ *
+ * @author luis
+ */
+public interface IObjectMetrics {
+	/* Public: */
+	/**
+	 * Gets the bounds of the {@link String} informed. It does not need to be exactly but can not be smaller.
+	 * 
+	 * @param s
+	 *           the {@link String} for which the bounds will be calculated
+	 * @param bounds
+	 *           the {@link Rectangle} where the bounds will be stored
+	 * @param font
+	 *           the font that will be used to draw {@code s}. It will be null in the case of debugging information.
+	 */
+	public void getStringBounds(String s, Rectangle bounds, Object font);
+
+	/* TODO: Right now, it considers only the first position. */
+	/**
+	 * Returns the sprite associated with the object informed. The engine keeps the sprite returned until the object is moved or
+	 * {@link UIsoEngine#informObjectAppearanceChange(uiso.UIsoObject)} is called.
+	 * 
+	 * @param object
+	 *           the object for which a sprite will be returned
+	 * @param sprites
+	 *           the object sprite
+	 */
+	public void getObjectSprite(SpriteObject object, Sprite[] sprites);
+}
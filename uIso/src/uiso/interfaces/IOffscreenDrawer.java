@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso.interfaces;
+
+import uiso.UIsoConfiguration;
+import uiso.UIsoImage;
+
+/**
+ * Extension of {@link IDrawer} that is able to draw on images instead of the screen. It is required when the tile chunk cache is in use (
+ * {@link UIsoConfiguration#use_tile_chunk_cache}). The engine employs it during {@link uiso.UIsoEngine#draw()} to bake groups of tiles into images that are drawn later
+ * with {@link IDrawer#drawImage(int, int, UIsoImage)}.
+ *
+ * @author luis
+ */
+public interface IOffscreenDrawer extends IDrawer {
+	/* Public: */
+	/**
+	 * Creates an image that can be drawn on. Its pixels must support transparency.
+	 *
+	 * @param w
+	 *           the image width
+	 * @param h
+	 *           the image height
+	 * @return the new image
+	 */
+	public UIsoImage createOffscreenImage(int w, int h);
+
+	/**
+	 * Redirects the following {@link IDrawer#setClip(int, int, int, int)}, {@link IDrawer#clear(int, int, int, int)} and
+	 * {@link IDrawer#drawImage(int, int, UIsoImage)} calls to the image informed. While it is active, {@link IDrawer#clear(int, int, int, int)} must make the area
+	 * transparent.
+	 *
+	 * @param image
+	 *           an image created by {@link #createOffscreenImage(int, int)}
+	 */
+	public void beginOffscreenDrawing(UIsoImage image);
+
+	/**
+	 * Finishes the drawing started by {@link #beginOffscreenDrawing(UIsoImage)}. The drawer must return to the state it had before (including the clip rectangle).
+	 */
+	public void endOffscreenDrawing();
+
+	/**
+	 * Informs that the image will not be used anymore.
+	 *
+	 * @param image
+	 *           an image created by {@link #createOffscreenImage(int, int)}
+	 */
+	public void disposeOffscreenImage(UIsoImage image);
+}
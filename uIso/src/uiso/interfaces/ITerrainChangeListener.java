@@ -0,0 +1,44 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso.interfaces;
+
+import uiso.Tile;
+import uiso.TerrainChange;
+import uiso.UIsoConfiguration;
+import uiso.UIsoEngine;
+
+/**
+ * Is informed once per operation about all the tiles whose heights or slopes have been changed by it, so the structures that depend on the terrain (path graphs,
+ * minimaps, ...) can be updated at once. The operations are {@link UIsoEngine#setTileZ(Tile, int)} (outside terraform batches),
+ * {@link UIsoEngine#commitTerraform()} and {@link UIsoEngine#importHeightmap(int[], int)}. The {@link ISimulationLogic} is still informed about each tile. See
+ * {@link UIsoConfiguration#terrain_change_listener}.
+ * 
+ * @author luis
+ */
+public interface ITerrainChangeListener {
+	/* Public: */
+	/**
+	 * @param uiso_engine
+	 *           the engine whose terrain has been changed
+	 * @param change
+	 *           the tiles changed. It is reused by the engine, so it must not be kept.
+	 */
+	public abstract void terrainChanged(UIsoEngine uiso_engine, TerrainChange change);
+}
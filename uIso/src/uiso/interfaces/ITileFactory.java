@@ -20,8 +20,24 @@
 package uiso.interfaces;
 
 import uiso.Tile;
+import uiso.UIsoConfiguration;
 
+/**
+ * Builds the map {@link Tile}s. Each tile is built when the chunk that contains it is loaded, so the tiles are built on demand and in no particular order.
+ * When {@link UIsoConfiguration#use_tile_handles} is true, only the data of the tile built (user data bits, user columns and visibility) is copied to the map and
+ * the fields declared by {@link Tile} subclasses are lost; the {@link Tile} objects given later are handles of the same class. The tile built must only depend on its
+ * coordinates. When {@link UIsoConfiguration#use_map_chunk_loader} is true, this method is also called by the loader thread.
+ * 
+ * @author luis
+ */
 public interface ITileFactory {
 	/* Public: */
+	/**
+	 * @param tile_x
+	 *           the tile x-coordinate
+	 * @param tile_y
+	 *           the tile y-coordinate
+	 * @return a new tile
+	 */
 	public Tile buildNewTile(int tile_x, int tile_y);
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso.interfaces;
+
+import uiso.Sprite;
+import uiso.Tile;
+
+/**
+ * Extension of {@link IDrawer} that is able to draw sprites over some tiles (for example, to highlight the tile under the mouse pointer). The tiles are chosen with
+ * {@link uiso.UIsoEngine#setTileOverlay(Tile, boolean)}. The overlays are drawn after all the tiles and before the objects. Unlike a change of the tile sprites, a
+ * change of the overlays does not invalidate the tile chunk cache ({@link uiso.UIsoConfiguration#use_tile_chunk_cache}).
+ *
+ * @author luis
+ */
+public interface ITileOverlayDrawer extends IDrawer {
+	/* Public: */
+	/**
+	 * Works like {@link IDrawer#getTileSprite(Tile, Sprite[])}, but the sprites are drawn over the tile and its neighbours.
+	 *
+	 * @param tile
+	 *           a tile that has an overlay
+	 * @param sprites
+	 *           its overlay sprites
+	 */
+	public void getTileOverlaySprite(Tile tile, Sprite[] sprites);
+}
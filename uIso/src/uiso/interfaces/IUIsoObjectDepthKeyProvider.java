@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso.interfaces;
+
+import uiso.UIsoEngine;
+import uiso.UIsoObject;
+
+/**
+ * Gives a number (depth key) to each {@link UIsoObject} that decides the order in which they are drawn: objects with smaller keys are drawn first. Objects with the
+ * same key are drawn in any order. It is an alternative to {@link IUIsoObjectComparator} that allows the engine to sort the scene using O(n) operations.
+ *
+ * @author luis
+ */
+public interface IUIsoObjectDepthKeyProvider {
+	/* Public: */
+	/**
+	 * @param uiso_engine
+	 *           the engine that is drawing the object
+	 * @param object
+	 *           the object
+	 * @return the object depth key
+	 */
+	public abstract long getDepthKey(UIsoEngine uiso_engine, UIsoObject object);
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso.interfaces;
+
+import uiso.UIsoObject;
+
+/**
+ * Builds the {@link UIsoObject}s whose state is restored from a journal (see {@link uiso.util.MapJournal}). Only the position and the user data bits are kept by
+ * the journal, so the user data must be enough to decide how the object is built.
+ * 
+ * @author luis
+ */
+public interface IUIsoObjectFactory {
+	/* Public: */
+	/**
+	 * @param user_data
+	 *           the object user data (see {@link UIsoObject#getUserData()})
+	 * @return a new object. Its position and its user data are set later.
+	 */
+	public abstract UIsoObject buildNewObject(int user_data);
+}
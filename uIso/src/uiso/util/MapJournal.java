@@ -0,0 +1,520 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import uiso.UIsoConfiguration;
+import uiso.UIsoEngine;
+import uiso.UIsoObject;
+import uiso.interfaces.IMapChangeListener;
+import uiso.interfaces.IUIsoObjectFactory;
+
+/**
+ * Keeps an append-only journal of the map changes. Together with a snapshot ({@link MappedMapFile}), it allows the map to be restored after a crash: the snapshot
+ * is loaded as usual and the journal is replayed over it ({@link #recover(UIsoEngine, IUIsoObjectFactory)}). The journal must be informed as
+ * {@link UIsoConfiguration#map_change_listener} and the snapshot as {@link UIsoConfiguration#map_chunk_persistence}.
+ * <p>
+ * The records are only copied to a buffer by the thread that changes the map. A background thread writes them and forces them to the storage device at most once
+ * every flush interval, so the changes made in the last interval can be lost. The journal grows until it is compacted ({@link #compact(UIsoEngine)}): the map is
+ * saved into the snapshot and the journal is replaced by one that only inserts the current objects.
+ * <p>
+ * The tiles are kept as a whole (state and user columns). The objects are identified by the journal itself and only their position and user data bits are kept.
+ * 
+ * @author luis
+ */
+public class MapJournal implements IMapChangeListener, Runnable {
+	/* Public: */
+	public final static int MAGIC = 0x754A726E; /* "uJrn" */
+	public final static int VERSION = 1;
+
+	/**
+	 * Opens the journal (it is created if it does not exist). The records it already has are kept until {@link #recover(UIsoEngine, IUIsoObjectFactory)} is called.
+	 * 
+	 * @param flush_interval
+	 *           the minimum time (in milliseconds) between two writes
+	 * @throws IOException
+	 *            if the file can not be read or it is not a journal of a map with the same configuration
+	 * @throws IllegalArgumentException
+	 *            if the flush interval is not positive
+	 */
+	@SuppressWarnings("rawtypes")
+	public MapJournal(File file, MappedMapFile snapshot, UIsoConfiguration configuration, int flush_interval) throws IOException, IllegalArgumentException {
+		if (flush_interval <= 0)
+			throw new IllegalArgumentException("The flush interval must be positive.");
+		this.file = file;
+		this.snapshot = snapshot;
+		this.n_columns = configuration.tile_user_columns;
+		this.flush_interval = flush_interval;
+		this.pending = new int[1024];
+		this.writing = new int[1024];
+		this.object_ids = new IdentityHashMap();
+		this.tile_records = new int[1024];
+		this.tile_records_stamps = new int[1024];
+		this.tile_records_shift = 32 - 10;
+		this.stamp = 1;
+
+		this.open(true);
+		this.thread = new Thread(this, "uIso map journal writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Replays the records kept by the journal. It must be called before the map is changed (and before any object is inserted).
+	 * 
+	 * @param object_factory
+	 *           builds the objects that were in the map. When it is null, the objects records are ignored.
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	public void recover(UIsoEngine engine, IUIsoObjectFactory object_factory) {
+		Map objects = new HashMap(); /* The state (x, y, z and user data) of each object by id. */
+		int[] records = this.recovered, columns = new int[this.n_columns];
+		int i = HEADER_INTS, next_object_id = 0;
+
+		this.recovered = null;
+		if (records == null)
+			return;
+
+		this.replaying = true;
+		try {
+			while (i < records.length) {
+				int type = records[i];
+
+				if (type == TILE) {
+					System.arraycopy(records, i + 4, columns, 0, this.n_columns);
+					engine.restoreTile(records[i + 1], records[i + 2], records[i + 3], columns);
+				} else {
+					/* The ids of the objects that are not rebuilt can not be given to new objects either, or their old records would be taken as theirs. */
+					next_object_id = Math.max(next_object_id, records[i + 1] + 1);
+					if (type == OBJECT_INSERTED || type == OBJECT_MOVED) {
+						int[] state = {records[i + 2], records[i + 3], records[i + 4], records[i + 5]};
+						objects.put(Integer.valueOf(records[i + 1]), state);
+					} else {
+						objects.remove(Integer.valueOf(records[i + 1]));
+					}
+				}
+				i += this.getRecordSize(type);
+			}
+			synchronized (this) {
+				this.next_object_id = Math.max(this.next_object_id, next_object_id);
+			}
+
+			if (object_factory != null) {
+				for (Iterator it = objects.entrySet().iterator(); it.hasNext();) {
+					Map.Entry entry = (Map.Entry) it.next();
+					int id = ((Integer) entry.getKey()).intValue();
+					int[] state = (int[]) entry.getValue();
+					UIsoObject object = object_factory.buildNewObject(state[3]);
+
+					object.setX(state[0]);
+					object.setY(state[1]);
+					object.setZ(state[2]);
+					object.setUserData(state[3]);
+					synchronized (this) {
+						this.object_ids.put(object, Integer.valueOf(id));
+					}
+					engine.insertObject(object);
+				}
+			}
+		} finally {
+			this.replaying = false;
+		}
+	}
+
+	/**
+	 * Saves the map into the snapshot (see {@link UIsoEngine#saveMapChunks()}) and asks for the journal to be replaced by one that only inserts the objects that are in
+	 * the map. The files are written by the background thread.
+	 */
+	@SuppressWarnings("rawtypes")
+	public void compact(UIsoEngine engine) {
+		engine.saveMapChunks();
+
+		synchronized (this) {
+			int n = 0;
+
+			this.checkpoint = new int[this.object_ids.size() * OBJECT_RECORD_SIZE];
+			for (Iterator it = this.object_ids.entrySet().iterator(); it.hasNext();) {
+				Map.Entry entry = (Map.Entry) it.next();
+				UIsoObject object = (UIsoObject) entry.getKey();
+
+				this.checkpoint[n++] = OBJECT_INSERTED;
+				this.checkpoint[n++] = ((Integer) entry.getValue()).intValue();
+				this.checkpoint[n++] = object.getX();
+				this.checkpoint[n++] = object.getY();
+				this.checkpoint[n++] = object.getZ();
+				this.checkpoint[n++] = object.getUserData();
+			}
+			/* The records added before the compaction are still written to the old journal, so they can not be replaced anymore. */
+			this.checkpoint_position = this.n_pending;
+			this.clearTileRecords();
+			this.notify();
+		}
+	}
+
+	/**
+	 * @return the size (in bytes) of the journal, including the records that have not been written yet. It can be used to decide when to compact it.
+	 */
+	public synchronized long getSize() {
+		return this.size + ((long) this.n_pending << 2);
+	}
+
+	/**
+	 * Writes the pending records and stops the background thread.
+	 * 
+	 * @throws IOException
+	 *            if a write has failed
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			this.stopped = true;
+			this.notify();
+		}
+		try {
+			this.thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.channel.close();
+		this.random_access_file.close();
+		if (this.error != null)
+			throw this.error;
+	}
+
+	@Override
+	public synchronized void tileChanged(int tile_x, int tile_y, int state, int[] user_columns) {
+		int slot;
+
+		if (this.replaying || this.stopped)
+			return;
+
+		/* Only the last state of a tile matters, so its record is replaced while it has not been written. */
+		slot = this.findTileRecord(tile_x, tile_y);
+		if (this.tile_records_stamps[slot] == this.stamp) {
+			int position = this.tile_records[slot];
+			this.pending[position + 3] = state;
+			System.arraycopy(user_columns, 0, this.pending, position + 4, this.n_columns);
+			return;
+		}
+		if (++this.n_tile_records << 1 > this.tile_records.length) {
+			this.rehashTileRecords();
+			slot = this.findTileRecord(tile_x, tile_y);
+		}
+		this.tile_records[slot] = this.n_pending;
+		this.tile_records_stamps[slot] = this.stamp;
+
+		this.reserve(4 + this.n_columns);
+		this.pending[this.n_pending++] = TILE;
+		this.pending[this.n_pending++] = tile_x;
+		this.pending[this.n_pending++] = tile_y;
+		this.pending[this.n_pending++] = state;
+		System.arraycopy(user_columns, 0, this.pending, this.n_pending, this.n_columns);
+		this.n_pending += this.n_columns;
+	}
+
+	@Override
+	public synchronized void objectInserted(UIsoObject object) {
+		if (!this.replaying && !this.stopped)
+			this.addObjectRecord(OBJECT_INSERTED, object);
+	}
+
+	@Override
+	public synchronized void objectMoved(UIsoObject object) {
+		if (!this.replaying && !this.stopped)
+			this.addObjectRecord(OBJECT_MOVED, object);
+	}
+
+	@Override
+	public synchronized void objectRemoved(UIsoObject object) {
+		Integer id;
+
+		if (this.replaying || this.stopped)
+			return;
+		id = (Integer) this.object_ids.remove(object);
+		if (id == null)
+			return;
+		this.reserve(2);
+		this.pending[this.n_pending++] = OBJECT_REMOVED;
+		this.pending[this.n_pending++] = id.intValue();
+	}
+
+	public void run() {
+		while (true) {
+			int n, checkpoint_position;
+			int[] records, checkpoint;
+			boolean stopped;
+
+			synchronized (this) {
+				/* The records added during the flush interval are written and forced together. The thread that changes the map does not wake it up. */
+				try {
+					do {
+						if (!this.stopped && this.checkpoint == null)
+							this.wait(this.flush_interval);
+					} while (!this.stopped && this.n_pending == 0 && this.checkpoint == null);
+				} catch (InterruptedException e) {
+					return;
+				}
+				/* The buffers are swapped, so the records can be added while the others are written. */
+				records = this.pending;
+				this.pending = this.writing;
+				this.writing = records;
+				n = this.n_pending;
+				this.n_pending = 0;
+				this.clearTileRecords();
+				checkpoint = this.checkpoint;
+				checkpoint_position = this.checkpoint_position;
+				this.checkpoint = null;
+				stopped = this.stopped;
+			}
+
+			try {
+				if (checkpoint == null) {
+					this.write(records, 0, n);
+				} else {
+					this.write(records, 0, checkpoint_position);
+					this.replace(checkpoint, records, checkpoint_position, n);
+				}
+			} catch (IOException e) {
+				synchronized (this) {
+					this.error = e;
+					this.stopped = true;
+				}
+				return;
+			}
+
+			if (stopped)
+				return;
+		}
+	}
+
+	/* Private: */
+	private final static int HEADER_INTS = 3;
+	private final static int TILE = 1;
+	private final static int OBJECT_INSERTED = 2;
+	private final static int OBJECT_MOVED = 3;
+	private final static int OBJECT_REMOVED = 4;
+	private final static int OBJECT_RECORD_SIZE = 6;
+
+	private int n_columns, flush_interval, n_pending, checkpoint_position, next_object_id, n_tile_records, tile_records_shift, stamp;
+	private long size; /* Bytes written. */
+	private int[] pending, writing, checkpoint, recovered;
+	/* Open addressing (linear probing) hash table whose entries are the positions of the pending tile records. Only the entries with the current stamp are used. */
+	private int[] tile_records, tile_records_stamps;
+	private boolean replaying, stopped;
+	private IOException error;
+	private File file;
+	private MappedMapFile snapshot;
+	@SuppressWarnings("rawtypes")
+	private IdentityHashMap object_ids;
+	private RandomAccessFile random_access_file;
+	private FileChannel channel;
+	private ByteBuffer byte_buffer;
+	private Thread thread;
+
+	private int getRecordSize(int type) {
+		switch (type) {
+			case TILE:
+				return 4 + this.n_columns;
+			case OBJECT_INSERTED:
+			case OBJECT_MOVED:
+				return OBJECT_RECORD_SIZE;
+			case OBJECT_REMOVED:
+				return 2;
+			default:
+				return -1;
+		}
+	}
+
+	/* Opens the journal file. The existing records are read (and kept to be replayed) and an incomplete last record (the write was interrupted) is discarded. */
+	private void open(boolean read_records) throws IOException {
+		int[] records;
+		int i = HEADER_INTS;
+
+		this.random_access_file = new RandomAccessFile(this.file, "rw");
+		this.channel = this.random_access_file.getChannel();
+		try {
+			if (this.channel.size() < HEADER_INTS << 2) {
+				this.channel.truncate(0);
+				this.write(new int[] {MAGIC, VERSION, this.n_columns}, 0, HEADER_INTS);
+				return;
+			}
+
+			records = new int[(int) (this.channel.size() >> 2)];
+			this.read(records);
+			if (records[0] != MAGIC || records[1] != VERSION)
+				throw new IOException("It is not a map journal.");
+			if (records[2] != this.n_columns)
+				throw new IOException("The map journal was created with a different configuration.");
+
+			while (i < records.length) {
+				int record_size = this.getRecordSize(records[i]);
+
+				if (record_size < 0 || i + record_size > records.length)
+					break;
+				i += record_size;
+			}
+			this.size = (long) i << 2;
+			this.channel.truncate(this.size);
+			this.channel.position(this.size);
+			if (read_records && i > HEADER_INTS) {
+				this.recovered = new int[i];
+				System.arraycopy(records, 0, this.recovered, 0, i);
+			}
+		} catch (IOException e) {
+			this.channel.close();
+			this.random_access_file.close();
+			throw e;
+		}
+	}
+
+	private void read(int[] records) throws IOException {
+		ByteBuffer byte_buffer = ByteBuffer.allocate(records.length << 2);
+
+		this.channel.position(0);
+		while (byte_buffer.hasRemaining() && this.channel.read(byte_buffer) >= 0)
+			;
+		byte_buffer.flip();
+		byte_buffer.asIntBuffer().get(records);
+	}
+
+	/* Appends the records and forces them to the storage device. */
+	private void write(int[] records, int begin, int end) throws IOException {
+		IntBuffer int_buffer;
+
+		if (begin == end)
+			return;
+		if (this.byte_buffer == null || this.byte_buffer.capacity() < (end - begin) << 2)
+			this.byte_buffer = ByteBuffer.allocateDirect(Math.max((end - begin) << 2, 4096));
+		this.byte_buffer.clear();
+		int_buffer = this.byte_buffer.asIntBuffer();
+		int_buffer.put(records, begin, end - begin);
+		this.byte_buffer.limit((end - begin) << 2);
+		while (this.byte_buffer.hasRemaining())
+			this.channel.write(this.byte_buffer);
+		this.channel.force(false);
+		synchronized (this) {
+			this.size += (end - begin) << 2;
+		}
+	}
+
+	/*
+	 * Replaces the journal by a new one with the checkpoint records (the objects inserts) followed by the records added after the compaction. The snapshot is forced
+	 * first, so the old journal is only lost when it is not needed anymore.
+	 */
+	private void replace(int[] checkpoint, int[] records, int begin, int end) throws IOException {
+		File new_file = new File(this.file.getPath() + ".new");
+
+		this.snapshot.flush();
+
+		this.channel.close();
+		this.random_access_file.close();
+		this.random_access_file = new RandomAccessFile(new_file, "rw");
+		this.channel = this.random_access_file.getChannel();
+		this.channel.truncate(0);
+		synchronized (this) {
+			this.size = 0;
+		}
+		this.write(new int[] {MAGIC, VERSION, this.n_columns}, 0, HEADER_INTS);
+		this.write(checkpoint, 0, checkpoint.length);
+		this.write(records, begin, end);
+		this.channel.close();
+		this.random_access_file.close();
+
+		if (!new_file.renameTo(this.file))
+			throw new IOException("The map journal could not be replaced.");
+		this.open(false);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addObjectRecord(int type, UIsoObject object) {
+		Integer id = (Integer) this.object_ids.get(object);
+
+		if (id == null) {
+			id = Integer.valueOf(this.next_object_id++);
+			this.object_ids.put(object, id);
+			type = OBJECT_INSERTED;
+		}
+		this.reserve(OBJECT_RECORD_SIZE);
+		this.pending[this.n_pending++] = type;
+		this.pending[this.n_pending++] = id.intValue();
+		this.pending[this.n_pending++] = object.getX();
+		this.pending[this.n_pending++] = object.getY();
+		this.pending[this.n_pending++] = object.getZ();
+		this.pending[this.n_pending++] = object.getUserData();
+	}
+
+	private int findTileRecord(int tile_x, int tile_y) {
+		int mask = this.tile_records.length - 1, i = (((tile_y << 16) ^ tile_x) * 0x9E3779B9) >>> this.tile_records_shift;
+
+		while (this.tile_records_stamps[i] == this.stamp) {
+			int position = this.tile_records[i];
+
+			if (this.pending[position + 1] == tile_x && this.pending[position + 2] == tile_y)
+				break;
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void rehashTileRecords() {
+		int[] tile_records = this.tile_records, tile_records_stamps = this.tile_records_stamps;
+
+		this.tile_records = new int[tile_records.length << 1];
+		this.tile_records_stamps = new int[tile_records.length << 1];
+		this.tile_records_shift--;
+		for (int i = 0; i < tile_records.length; i++) {
+			if (tile_records_stamps[i] == this.stamp) {
+				int position = tile_records[i], slot = this.findTileRecord(this.pending[position + 1], this.pending[position + 2]);
+
+				this.tile_records[slot] = position;
+				this.tile_records_stamps[slot] = this.stamp;
+			}
+		}
+	}
+
+	private void clearTileRecords() {
+		/* Changing the stamp is enough, so the table is not filled with zeros while the lock is held. */
+		if (this.n_tile_records > 0) {
+			if (++this.stamp == 0) {
+				Arrays.fill(this.tile_records_stamps, 0);
+				this.stamp = 1;
+			}
+			this.n_tile_records = 0;
+		}
+	}
+
+	private void reserve(int n) {
+		if (this.n_pending + n > this.pending.length) {
+			int[] pending = new int[Math.max(this.pending.length << 1, this.n_pending + n)];
+			System.arraycopy(this.pending, 0, pending, 0, this.n_pending);
+			this.pending = pending;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import uiso.UIsoConfiguration;
+import uiso.UIsoConstants;
+import uiso.UIsoEngine;
+import uiso.interfaces.IMapChunkPersistence;
+
+/**
+ * Keeps the map chunks in a memory mapped file. The file has a header (magic number, version, w, h, tile_max_z, tile_user_columns, chunk size and number of chunks
+ * in each direction), one integer per chunk telling whether it has been saved, and then one slot per chunk (row by row) with the tiles data (one integer per tile,
+ * using the {@link uiso.Tile} layout, so the slopes are kept) followed by the user columns. The chunks that have never been saved are built by the
+ * {@link uiso.interfaces.ITileFactory}. Loading a chunk is a bulk copy from the mapped buffer.
+ * <p>
+ * It must be informed as {@link UIsoConfiguration#map_chunk_persistence}. The whole map is written by {@link UIsoEngine#saveMapChunks()}.
+ * 
+ * @author luis
+ */
+public class MappedMapFile implements IMapChunkPersistence {
+	/* Public: */
+	public final static int MAGIC = 0x7549736F; /* "uIso" */
+	public final static int VERSION = 1;
+
+	/**
+	 * Opens the file (it is created if it does not exist). An existing file must have been created with the same map configuration.
+	 * 
+	 * @throws IOException
+	 *            if the file can not be mapped or its header does not match the configuration
+	 */
+	public MappedMapFile(File file, UIsoConfiguration configuration) throws IOException {
+		long size;
+		boolean exists = file.exists() && file.length() > 0;
+
+		this.tile_max_z = configuration.tile_max_z;
+		this.n_columns = configuration.tile_user_columns;
+		this.n_chunks_x = (configuration.w + (configuration.tile_max_z << 1) + UIsoConstants.MAP_CHUNK_SIZE) / UIsoConstants.MAP_CHUNK_SIZE;
+		this.n_chunks_y = (configuration.h + (configuration.tile_max_z << 1) + UIsoConstants.MAP_CHUNK_SIZE) / UIsoConstants.MAP_CHUNK_SIZE;
+		this.chunk_ints = UIsoConstants.MAP_CHUNK_SIZE * UIsoConstants.MAP_CHUNK_SIZE;
+
+		size = 4L * (HEADER_INTS + (long) this.n_chunks_x * this.n_chunks_y * (1 + (long) this.chunk_ints * (1 + this.n_columns)));
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("The map is too big to be kept in one mapped file.");
+
+		this.file = new RandomAccessFile(file, "rw");
+		try {
+			this.channel = this.file.getChannel();
+			this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			this.ints = this.buffer.asIntBuffer();
+
+			if (exists) {
+				if (this.ints.get(0) != MAGIC || this.ints.get(1) != VERSION)
+					throw new IOException("It is not a map file.");
+				if (this.ints.get(2) != configuration.w || this.ints.get(3) != configuration.h || this.ints.get(4) != this.tile_max_z
+						|| this.ints.get(5) != this.n_columns || this.ints.get(6) != UIsoConstants.MAP_CHUNK_SIZE)
+					throw new IOException("The map file was created with a different configuration.");
+			} else {
+				this.ints.put(0, MAGIC);
+				this.ints.put(1, VERSION);
+				this.ints.put(2, configuration.w);
+				this.ints.put(3, configuration.h);
+				this.ints.put(4, this.tile_max_z);
+				this.ints.put(5, this.n_columns);
+				this.ints.put(6, UIsoConstants.MAP_CHUNK_SIZE);
+				this.ints.put(7, this.n_chunks_x);
+				this.ints.put(8, this.n_chunks_y);
+			}
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public synchronized boolean loadChunk(int tile_x, int tile_y, int[] data, int[][] columns) {
+		int chunk = this.getChunk(tile_x, tile_y);
+
+		if (this.ints.get(HEADER_INTS + chunk) == 0)
+			return false;
+
+		this.ints.position(this.getSlot(chunk));
+		this.ints.get(data, 0, this.chunk_ints);
+		for (int i = 0; i < this.n_columns; i++)
+			this.ints.get(columns[i], 0, this.chunk_ints);
+		return true;
+	}
+
+	@Override
+	public synchronized void saveChunk(int tile_x, int tile_y, int[] data, int[][] columns) {
+		int chunk = this.getChunk(tile_x, tile_y);
+
+		this.ints.position(this.getSlot(chunk));
+		this.ints.put(data, 0, this.chunk_ints);
+		for (int i = 0; i < this.n_columns; i++)
+			this.ints.put(columns[i], 0, this.chunk_ints);
+		this.ints.put(HEADER_INTS + chunk, 1);
+	}
+
+	/**
+	 * Writes the changes to the storage device.
+	 */
+	public synchronized void flush() {
+		this.buffer.force();
+	}
+
+	public synchronized void close() throws IOException {
+		this.buffer.force();
+		this.channel.close();
+		this.file.close();
+	}
+
+	/* Private: */
+	private final static int HEADER_INTS = 9;
+
+	private int tile_max_z, n_columns, n_chunks_x, n_chunks_y, chunk_ints;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private IntBuffer ints;
+
+	private int getChunk(int tile_x, int tile_y) {
+		return ((tile_y + this.tile_max_z) / UIsoConstants.MAP_CHUNK_SIZE) * this.n_chunks_x + (tile_x + this.tile_max_z) / UIsoConstants.MAP_CHUNK_SIZE;
+	}
+
+	private int getSlot(int chunk) {
+		return HEADER_INTS + this.n_chunks_x * this.n_chunks_y + chunk * this.chunk_ints * (1 + this.n_columns);
+	}
+}
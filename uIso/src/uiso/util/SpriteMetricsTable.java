@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso.util;
+
+import uiso.Rectangle;
+import uiso.Sprite;
+import uiso.SpriteObject;
+import uiso.UIsoConfiguration;
+import uiso.UIsoImage;
+import uiso.interfaces.IObjectMetrics;
+
+/**
+ * Keeps the width, the height and the anchor of the sprite of each sprite key, so the objects can be placed without loading any image. It is meant to be the
+ * {@link UIsoConfiguration#object_metrics} of headless engines: the table can be filled once from the sprites of a drawer ({@link #put(int, Sprite)}) and shared
+ * by all the engines, since they only read it. The sprite key of an object is its user data, unless {@link #getSpriteKey(SpriteObject)} is overridden. The strings
+ * are measured as if all the characters had the same size.
+ *
+ * @author luis
+ */
+public class SpriteMetricsTable implements IObjectMetrics {
+	/* Public: */
+	public SpriteMetricsTable(int char_w, int char_h) {
+		this.char_w = char_w;
+		this.char_h = char_h;
+		this.sprites = new Sprite[16];
+	}
+
+	/**
+	 * Sets the metrics of a sprite key. It must not be called while the table is used by an engine.
+	 * 
+	 * @throws IllegalArgumentException
+	 *            if the key or the dimensions are negative
+	 */
+	public void put(int key, int w, int h, int anchor_x, int anchor_y) throws IllegalArgumentException {
+		Sprite sprite = new Sprite();
+
+		if (key < 0 || w < 0 || h < 0)
+			throw new IllegalArgumentException("The sprite metrics are invalid.");
+		while (key >= this.sprites.length) {
+			Sprite[] sprites = new Sprite[this.sprites.length << 1];
+
+			System.arraycopy(this.sprites, 0, sprites, 0, this.sprites.length);
+			this.sprites = sprites;
+		}
+		sprite.setImage(new Extents(w, h));
+		sprite.setAnchorX(anchor_x);
+		sprite.setAnchorY(anchor_y);
+		this.sprites[key] = sprite;
+	}
+
+	/**
+	 * Copies the metrics of a sprite.
+	 */
+	public void put(int key, Sprite sprite) throws IllegalArgumentException {
+		this.put(key, sprite.getImage().getW(), sprite.getImage().getH(), sprite.getAnchorX(), sprite.getAnchorY());
+	}
+
+	/**
+	 * @return the sprite key of the object. Objects whose keys have not been informed are not placed (as objects without sprites).
+	 */
+	public int getSpriteKey(SpriteObject object) {
+		return object.getUserData();
+	}
+
+	public void getObjectSprite(SpriteObject object, Sprite[] sprites) {
+		int key = this.getSpriteKey(object);
+
+		sprites[0] = (0 <= key && key < this.sprites.length) ? this.sprites[key] : null;
+		if (sprites.length > 1)
+			sprites[1] = null;
+	}
+
+	public void getStringBounds(String s, Rectangle bounds, Object font) {
+		bounds.w = (s == null ? 0 : s.length()) * this.char_w;
+		bounds.h = this.char_h;
+	}
+
+	/* Private: */
+	private int char_w, char_h;
+	private Sprite[] sprites; /* Indexed by the sprite key. */
+
+	/* An image that only has dimensions. */
+	private static class Extents extends UIsoImage {
+		Extents(int w, int h) {
+			this.w = w;
+			this.h = h;
+		}
+
+		public int getW() {
+			return this.w;
+		}
+
+		public int getH() {
+			return this.h;
+		}
+
+		private int w, h;
+	}
+}
@@ -19,10 +19,12 @@
 
 package uiso_awt_demo.drawer;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -34,7 +36,8 @@ import uiso.SpriteObject;
 import uiso.Tile;
 import uiso.UIsoEngine;
 import uiso.UIsoImage;
-import uiso.interfaces.IDrawer;
+import uiso.interfaces.IOffscreenDrawer;
+import uiso.interfaces.ITileOverlayDrawer;
 import uiso.util.sprite_loader.SimpleSpriteLoader;
 import uiso_awt_demo.image.JavaSEImage;
 import uiso_awt_demo.image.JavaSEImageManipulator;
@@ -44,7 +47,7 @@ import uiso_awt_demo.object.Common;
 import uiso_awt_demo.object.MySpriteObject;
 import uiso_awt_demo.simulation.SimulationConstants;
 
-public class JavaSEDrawer implements IDrawer {
+public class JavaSEDrawer implements IOffscreenDrawer, ITileOverlayDrawer {
 
 	/* Public: */
 	@SuppressWarnings("unchecked")
@@ -154,7 +157,7 @@ public class JavaSEDrawer implements IDrawer {
 
 	@Override
 	public void drawString(int x, int y, String s) {
-		drawString(this.g2, x, y, s, SimulationConstants.DEFAULT_FONT, SimulationConstants.DEFAULT_TEXT_COLOR, SimulationConstants.CLEAR_COLOR);
+		this.text_image_cache.drawString(this.g2, x, y, s, SimulationConstants.DEFAULT_FONT, SimulationConstants.DEFAULT_TEXT_COLOR, SimulationConstants.CLEAR_COLOR);
 	}
 
 	@Override
@@ -182,12 +185,16 @@ public class JavaSEDrawer implements IDrawer {
 				sprites[0] = this.castle_floor.get(myTile.getKey());
 			break;
 		}
+		sprites[1] = null;
+	}
 
-		if (tile == this.selected_tile && myTile.getTileType() != TileType.BARE_GROUND) {
-			sprites[1] = this.selection_sprites.get(tile_index);
-			sprites[2] = null;
-		} else
+	@Override
+	public void getTileOverlaySprite(Tile tile, Sprite[] sprites) {
+		if (((MyTile) tile).getTileType() != TileType.BARE_GROUND) {
+			sprites[0] = this.selection_sprites.get(tile.getSlopeIndex());
 			sprites[1] = null;
+		} else
+			sprites[0] = null;
 	}
 
 	@Override
@@ -212,21 +219,43 @@ public class JavaSEDrawer implements IDrawer {
 
 	@Override
 	public void clear(int x, int y, int w, int h) {
-		this.g2.setColor(SimulationConstants.CLEAR_COLOR);
-		this.g2.fillRect(x, y, w, h);
+		if (this.screen_g2 != null) {
+			/* Offscreen images must become transparent. */
+			this.g2.setComposite(AlphaComposite.Clear);
+			this.g2.fillRect(x, y, w, h);
+			this.g2.setComposite(AlphaComposite.SrcOver);
+		} else {
+			this.g2.setColor(SimulationConstants.CLEAR_COLOR);
+			this.g2.fillRect(x, y, w, h);
+		}
 	}
 
 	@Override
-	public void drawString(int x, int y, String s, Object font, Object color) {
-		drawString(this.g2, x, y, s, (Font) font, (Color) color, SimulationConstants.CLEAR_COLOR);
+	public UIsoImage createOffscreenImage(int w, int h) {
+		return new JavaSEImage(new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB));
 	}
 
-	public void setSelectedTile(Tile tile) {
-		this.selected_tile = tile;
+	@Override
+	public void beginOffscreenDrawing(UIsoImage image) {
+		this.screen_g2 = this.g2;
+		this.g2 = ((JavaSEImage) image).getBufferedImage().createGraphics();
 	}
 
-	public Tile getSelectedTile() {
-		return this.selected_tile;
+	@Override
+	public void endOffscreenDrawing() {
+		this.g2.dispose();
+		this.g2 = this.screen_g2;
+		this.screen_g2 = null;
+	}
+
+	@Override
+	public void disposeOffscreenImage(UIsoImage image) {
+		((JavaSEImage) image).getBufferedImage().flush();
+	}
+
+	@Override
+	public void drawString(int x, int y, String s, Object font, Object color) {
+		this.text_image_cache.drawString(this.g2, x, y, s, (Font) font, (Color) color, SimulationConstants.CLEAR_COLOR);
 	}
 
 	/* Package: */
@@ -236,9 +265,9 @@ public class JavaSEDrawer implements IDrawer {
 
 	private Map<Integer, Sprite> grass_sprites = new HashMap<Integer, Sprite>(), selection_sprites = new HashMap<Integer, Sprite>(),
 			bare_land = new HashMap<Integer, Sprite>(), castle_floor = new HashMap<Integer, Sprite>();
-	private Graphics2D g2;
+	private Graphics2D g2, screen_g2; /* The second one is valid while drawing on an offscreen image. */
 	private Sprite wall;
-	private Tile selected_tile;
+	private TextImageCache text_image_cache = new TextImageCache(SimulationConstants.TEXT_IMAGE_CACHE_MAX_BYTES);
 	private int canvas_w, canvas_h;
 
 	private static FontMetrics getFontMetrics(Graphics2D g2, Font font) {
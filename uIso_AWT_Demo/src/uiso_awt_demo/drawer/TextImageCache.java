@@ -0,0 +1,225 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso_awt_demo.drawer;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import uiso.Rectangle;
+import uiso_awt_demo.simulation.SimulationConstants;
+
+/**
+ * Keeps strings drawn into images so that drawing them again is a single {@link Graphics2D#drawImage(java.awt.Image, int, int, java.awt.image.ImageObserver)}.
+ * The images are identified by the string, font, color and background color. The least recently used ones are discarded when their total size is above the
+ * budget. The rendering hints of the {@link Graphics2D} used when the image is created are kept.
+ */
+public class TextImageCache {
+	/* Public: */
+	public TextImageCache(long max_bytes) {
+		this.max_bytes = max_bytes;
+	}
+
+	public void drawString(Graphics2D g2, int x, int y, String s, Font font, Color color, Color background_color) {
+		Entry entry;
+
+		if (s == null)
+			return;
+
+		this.lookup_key.set(s, font, color, background_color);
+		entry = this.entries.get(this.lookup_key);
+		if (entry != null) {
+			this.hits++;
+		} else {
+			this.misses++;
+			entry = this.createEntry(g2, s, font, color, background_color);
+			if (entry == null) {
+				/* It is empty, invisible or bigger than the whole budget. */
+				JavaSEDrawer.drawString(g2, x, y, s, font, color, background_color);
+				return;
+			}
+			this.entries.put(new Key(s, font, color, background_color), entry);
+			this.bytes += entry.bytes;
+			this.discardLeastRecentlyUsedEntries();
+		}
+
+		g2.drawImage(entry.image, x + entry.x, y + entry.y, null);
+	}
+
+	public void clear() {
+		for (Entry entry : this.entries.values())
+			entry.image.flush();
+		this.entries.clear();
+		this.bytes = 0;
+	}
+
+	public long getHits() {
+		return this.hits;
+	}
+
+	public long getMisses() {
+		return this.misses;
+	}
+
+	public long getBytes() {
+		return this.bytes;
+	}
+
+	public int getSize() {
+		return this.entries.size();
+	}
+
+	/* Private: */
+	private static final class Key {
+		String s;
+		Font font;
+		Color color, background_color;
+
+		Key() {
+		}
+
+		Key(String s, Font font, Color color, Color background_color) {
+			this.set(s, font, color, background_color);
+		}
+
+		void set(String s, Font font, Color color, Color background_color) {
+			this.s = s;
+			this.font = font;
+			this.color = color;
+			this.background_color = background_color;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = this.s.hashCode();
+			hash = hash * 31 + (this.font == null ? 0 : this.font.hashCode());
+			hash = hash * 31 + (this.color == null ? 0 : this.color.hashCode());
+			return hash * 31 + (this.background_color == null ? 0 : this.background_color.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key key = (Key) o;
+			return this.s.equals(key.s) && equals(this.font, key.font) && equals(this.color, key.color) && equals(this.background_color, key.background_color);
+		}
+
+		private static boolean equals(Object a, Object b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	private static final class Entry {
+		BufferedImage image;
+		int x, y; /* The image position relative to the point where the string is drawn. */
+		long bytes;
+	}
+
+	private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private final Key lookup_key = new Key();
+	private final Rectangle string_bounds = new Rectangle();
+	private final long max_bytes;
+	private long bytes, hits, misses;
+
+	private Entry createEntry(Graphics2D g2, String s, Font font, Color color, Color background_color) {
+		Font f = font == null ? SimulationConstants.DEFAULT_FONT : font;
+		int margin = (f.getSize() + 1) >> 1, w, h, min_x, min_y, max_x = -1, max_y = -1, transparency = Transparency.OPAQUE;
+		int[] pixels;
+		BufferedImage image;
+		Graphics2D image_g2;
+		Entry entry;
+
+		JavaSEDrawer.getStringBounds(g2, s, this.string_bounds, f);
+		if (this.string_bounds.w <= 0 || this.string_bounds.h <= 0)
+			return null;
+
+		/* The string is drawn with a margin because the glyphs may be drawn outside its bounds (italic ones, for example). */
+		w = this.string_bounds.w + 2 * margin;
+		h = this.string_bounds.h + 2 * margin;
+		if (4L * w * h > this.max_bytes)
+			return null;
+		image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		image_g2 = image.createGraphics();
+		image_g2.setRenderingHints(g2.getRenderingHints());
+		JavaSEDrawer.drawString(image_g2, margin, margin, s, font, color, background_color);
+		image_g2.dispose();
+
+		/* Then, only the pixels that were drawn are kept. The image is read directly from its raster (one row after the other) instead of one pixel per call. */
+		pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		min_x = w;
+		min_y = h;
+		for (int y = 0; y < h; y++) {
+			for (int x = 0, i = y * w; x < w; x++, i++) {
+				if ((pixels[i] >>> 24) != 0) {
+					min_x = Math.min(min_x, x);
+					max_x = Math.max(max_x, x);
+					min_y = Math.min(min_y, y);
+					max_y = y;
+				}
+			}
+		}
+		if (max_x < 0)
+			return null;
+
+		/* Strings drawn with a background usually have only opaque (or fully transparent) pixels. Such images are copied faster. */
+		for (int y = min_y; y <= max_y && transparency != Transparency.TRANSLUCENT; y++) {
+			for (int x = min_x, i = y * w + min_x; x <= max_x; x++, i++) {
+				int alpha = pixels[i] >>> 24;
+				if (alpha == 0) {
+					transparency = Transparency.BITMASK;
+				} else if (alpha != 0xFF) {
+					transparency = Transparency.TRANSLUCENT;
+					break;
+				}
+			}
+		}
+
+		entry = new Entry();
+		entry.x = min_x - margin;
+		entry.y = min_y - margin;
+		entry.image = g2.getDeviceConfiguration().createCompatibleImage(max_x - min_x + 1, max_y - min_y + 1, transparency);
+		entry.bytes = 4L * entry.image.getWidth() * entry.image.getHeight();
+		image_g2 = entry.image.createGraphics();
+		image_g2.setComposite(AlphaComposite.Src);
+		image_g2.drawImage(image, -min_x, -min_y, null);
+		image_g2.dispose();
+		image.flush();
+		return entry;
+	}
+
+	private void discardLeastRecentlyUsedEntries() {
+		Iterator<Entry> iterator = this.entries.values().iterator();
+
+		while (this.bytes > this.max_bytes && iterator.hasNext()) {
+			Entry entry = iterator.next();
+			this.bytes -= entry.bytes;
+			entry.image.flush();
+			iterator.remove();
+		}
+	}
+}
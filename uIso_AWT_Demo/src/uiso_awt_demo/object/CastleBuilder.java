@@ -70,14 +70,24 @@ public class CastleBuilder {
 	}
 
 	public void build(UIsoEngine uiso_engine) {
-		for (int x = 0; x < this.w; x++) {
-			for (int y = 0; y < this.h; y++) {
-				char c = this.blue_prints[x].charAt(y);
-				MyTile tile = (MyTile) uiso_engine.getTile(x + this.base_x, y + this.base_y);
-
-				this.createWalls(x, y, c, uiso_engine, tile);
+		/* The castle floor is flattened in a single terraform batch. */
+		uiso_engine.beginTerraform();
+		boolean completed = false;
+		try {
+			for (int x = 0; x < this.w; x++) {
+				for (int y = 0; y < this.h; y++) {
+					char c = this.blue_prints[x].charAt(y);
+					MyTile tile = (MyTile) uiso_engine.getTile(x + this.base_x, y + this.base_y);
+
+					this.createWalls(x, y, c, uiso_engine, tile);
+				}
 			}
+			completed = true;
+		} finally {
+			if (!completed)
+				uiso_engine.abortTerraform();
 		}
+		uiso_engine.commitTerraform();
 
 		this.especial_positions = Collections.unmodifiableMap(this.especial_positions);
 	}
@@ -164,6 +174,7 @@ public class CastleBuilder {
 				tile.setTileType(TileType.CASTLE_FLOOR_SE);
 			}
 		}
+		uiso_engine.invalidateTile(tile);
 	}
 
 	private char safeGetChar(int x, int y) {
@@ -100,6 +100,7 @@ public class Minotaur extends MySpriteObjectWithDirection {
 						} else {
 							this.stopped_state_index = 0;
 							this.setSpriteIndex(STOPPED_STATE_SPRITE_INDEX[this.stopped_state_index]);
+							uiso_engine.informObjectAppearanceChange(this);
 							this.state = State.STOPPED;
 							compute_delta = false;
 						}
@@ -127,6 +128,7 @@ public class Minotaur extends MySpriteObjectWithDirection {
 					this.stopped_state_index = 0;
 				}
 				this.setSpriteIndex(STOPPED_STATE_SPRITE_INDEX[this.stopped_state_index]);
+				uiso_engine.informObjectAppearanceChange(this);
 			}
 		}
 
@@ -152,6 +154,8 @@ public class Minotaur extends MySpriteObjectWithDirection {
 		} else {
 			this.state = State.STOPPED;
 		}
+		/* The state is part of the sprite key. */
+		uiso_engine.informObjectAppearanceChange(this);
 	}
 
 	public State getState() {
@@ -57,6 +57,7 @@ public class SimulationConstants {
 	public static final Color FPS_TEXT_COLOR = Color.WHITE;
 	public static final Font INFO_TEXT_FONT = new Font("monospaced", Font.BOLD, 25);
 	public static final Font ANIMATED_TEXT_FONT = new Font("serif", Font.BOLD, 25);
+	public static final long TEXT_IMAGE_CACHE_MAX_BYTES = 4 << 20;
 
 	public static final float FRAME_TIME = 1000.f / 30.f; /* mi1liseconds. */
 
@@ -77,6 +78,7 @@ public class SimulationConstants {
 	static {
 		UISO_CONFIGURATION = new UIsoConfiguration();
 		UISO_CONFIGURATION.use_dirty_rectangle = false;
+		UISO_CONFIGURATION.use_tile_chunk_cache = true;
 		UISO_CONFIGURATION.max_objects_in_the_scene = 200;
 		UISO_CONFIGURATION.tile_h = 32;
 		UISO_CONFIGURATION.tile_w = 64;
@@ -87,6 +89,7 @@ public class SimulationConstants {
 		UISO_CONFIGURATION.tile_factory = new MyTileFactory();
 
 		UISO_CONFIGURATION.sprite_object_comparator = new SimulationLogic.MySpriteObjectComparator();
+		UISO_CONFIGURATION.sprite_object_depth_key_provider = new SimulationLogic.MySpriteObjectDepthKeyProvider();
 		UISO_CONFIGURATION.string_object_comparator = new SimulationLogic.MyStringObjectComparator();
 
 		/* Loads castle blueprint. */
@@ -340,6 +340,7 @@ public class SimulationCoordinator implements Runnable, MouseListener, MouseMoti
 
 	private void drawSimulationFPS(Graphics2D g2, float fps) {
 		String fps_string = String.format("%06.3f", fps);
+		/* It changes almost every frame, so caching its image would only fill the text image cache. */
 		JavaSEDrawer.drawString(g2, 0, 0, fps_string, SimulationConstants.DEFAULT_FONT, SimulationConstants.FPS_TEXT_COLOR, null);
 	}
 
@@ -32,6 +32,7 @@ import uiso.UIsoEngine;
 import uiso.UIsoObject;
 import uiso.interfaces.ISimulationLogic;
 import uiso.interfaces.IUIsoObjectComparator;
+import uiso.interfaces.IUIsoObjectDepthKeyProvider;
 import uiso_awt_demo.drawer.JavaSEDrawer;
 import uiso_awt_demo.gui.DebugInformationPanel;
 import uiso_awt_demo.map.MyTile;
@@ -131,6 +132,14 @@ class SimulationLogic implements ISimulationLogic {
 		}
 	};
 
+	/* The same order given by MySpriteObjectComparator. */
+	static class MySpriteObjectDepthKeyProvider implements IUIsoObjectDepthKeyProvider {
+		@Override
+		public long getDepthKey(UIsoEngine uiso_engine, UIsoObject object) {
+			return ((long) uiso_engine.getTileX(object) << 32) + ((long) uiso_engine.getTileY(object) << 1) + (object instanceof Minotaur ? 0 : 1);
+		}
+	};
+
 	static class MyStringObjectComparator implements IUIsoObjectComparator {
 		@Override
 		public boolean doesBMustBeDrawnBeforeA(UIsoEngine uiso_engine, UIsoObject a, UIsoObject b) {
@@ -140,7 +149,7 @@ class SimulationLogic implements ISimulationLogic {
 
 	/* Private: */
 	private Point viewport_move_delta = new Point(), mouse_event = new Point(), fine_coordinates = new Point();
-	private Tile tile_under_mouse_pointer, tile_under_terraform_icon;
+	private Tile tile_under_mouse_pointer, tile_under_terraform_icon, selected_tile;
 	private SimulationState simulation_state;
 
 	private void doScroll(UIsoEngine uiso_engine, JavaSEDrawer drawer) {
@@ -270,17 +279,28 @@ class SimulationLogic implements ISimulationLogic {
 		int tile_x = uiso_engine.getTileX(this.tile_under_mouse_pointer), tile_y = uiso_engine.getTileY(this.tile_under_mouse_pointer);
 		if (SimulationConstants.EDITABLE_AREA.contains(tile_x, tile_y) && uiso_engine.tile_position_relative_map_polygon == UIsoConstants.INSIDE_POLYGON) {
 			this.updateTerraformIconPosition(uiso_engine, drawer);
-			drawer.setSelectedTile(this.tile_under_mouse_pointer);
+			this.setSelectedTile(uiso_engine, drawer, this.tile_under_mouse_pointer);
 		} else {
 			uiso_engine.removeObject(TerraformIcon.terraform_icon);
 			if (SimulationConstants.CASTLE_LAND_AREA.contains(tile_x, tile_y) && uiso_engine.tile_position_relative_map_polygon == UIsoConstants.INSIDE_POLYGON) {
-				drawer.setSelectedTile(this.tile_under_mouse_pointer);
+				this.setSelectedTile(uiso_engine, drawer, this.tile_under_mouse_pointer);
 			} else {
-				drawer.setSelectedTile(null);
+				this.setSelectedTile(uiso_engine, drawer, null);
 			}
 		}
 	}
 
+	/* The selected tile is highlighted by an overlay, so the tiles do not have to be drawn again. */
+	private void setSelectedTile(UIsoEngine uiso_engine, JavaSEDrawer drawer, Tile tile) {
+		if (tile == null ? this.selected_tile == null : tile.equals(this.selected_tile))
+			return;
+		if (this.selected_tile != null)
+			uiso_engine.setTileOverlay(this.selected_tile, false);
+		this.selected_tile = tile;
+		if (tile != null)
+			uiso_engine.setTileOverlay(tile, true);
+	}
+
 	private void updateTileUnderMousePointer(UIsoEngine uiso_engine, JavaSEDrawer drawer) {
 		this.tile_under_mouse_pointer = uiso_engine.getTileFromRealCoordinates(this.mouse_event, this.fine_coordinates);
 	}
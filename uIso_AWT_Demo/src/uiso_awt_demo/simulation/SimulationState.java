@@ -53,23 +53,32 @@ class SimulationState {
 		{
 			Point p = new Point();
 
-			for (int y = SimulationConstants.CASTLE_LAND_AREA.y; y <= SimulationConstants.CASTLE_LAND_AREA.height; y++) {
-				int x_center =
-						(int) Math.round(Math.sin((y + SimulationConstants.CASTLE_LAND_AREA.height * 2.5f) / (SimulationConstants.CASTLE_LAND_AREA.height * 2f) * Math.PI)
-								* SimulationConstants.CASTLE_LAND_AREA.width + SimulationConstants.CASTLE_LAND_AREA.x + SimulationConstants.CASTLE_LAND_AREA.width);
-
-				if (y % SimulationConstants.MOUNTAINS_INTERVAL == 0) {
-					int z =
-							SimulationConstants.MOUNTAINS_MIN_Z
-									+ this.random.nextInt(SimulationConstants.UISO_CONFIGURATION.tile_max_z - SimulationConstants.MOUNTAINS_MIN_Z + 1);
+			uiso_engine.beginTerraform();
+			boolean completed = false;
+			try {
+				for (int y = SimulationConstants.CASTLE_LAND_AREA.y; y <= SimulationConstants.CASTLE_LAND_AREA.height; y++) {
+					int x_center =
+							(int) Math.round(Math.sin((y + SimulationConstants.CASTLE_LAND_AREA.height * 2.5f) / (SimulationConstants.CASTLE_LAND_AREA.height * 2f) * Math.PI)
+									* SimulationConstants.CASTLE_LAND_AREA.width + SimulationConstants.CASTLE_LAND_AREA.x + SimulationConstants.CASTLE_LAND_AREA.width);
+
+					if (y % SimulationConstants.MOUNTAINS_INTERVAL == 0) {
+						int z =
+								SimulationConstants.MOUNTAINS_MIN_Z
+										+ this.random.nextInt(SimulationConstants.UISO_CONFIGURATION.tile_max_z - SimulationConstants.MOUNTAINS_MIN_Z + 1);
+
+						RandomUtils.randomPointInsideCircle(x_center, y, SimulationConstants.MOUNTAINS_CIRCLE_RADIOUS, this.random, p);
+						p.x = UIsoEngine.clamp(0, SimulationConstants.MAP_W, p.x);
+						p.y = UIsoEngine.clamp(0, SimulationConstants.MAP_H, p.y);
+						uiso_engine.setTileZ(uiso_engine.getTile(p), z);
+					}
 
-					RandomUtils.randomPointInsideCircle(x_center, y, SimulationConstants.MOUNTAINS_CIRCLE_RADIOUS, this.random, p);
-					p.x = UIsoEngine.clamp(0, SimulationConstants.MAP_W, p.x);
-					p.y = UIsoEngine.clamp(0, SimulationConstants.MAP_H, p.y);
-					uiso_engine.setTileZ(uiso_engine.getTile(p), z);
 				}
-
+				completed = true;
+			} finally {
+				if (!completed)
+					uiso_engine.abortTerraform();
 			}
+			uiso_engine.commitTerraform();
 
 			/* Make some tiles, behind the mountains, invisible. */
 			List<Tile> tiles = new ArrayList<Tile>();
@@ -94,7 +103,7 @@ class SimulationState {
 					/* Is it before a mountain ? */
 					if (first_mountain_tile.getSlope() != Tile.FLAT) {
 						for (Tile tile : tiles) {
-							tile.setVisibility(false);
+							uiso_engine.setTileVisibility(tile, false);
 						}
 					}
 				}
@@ -19,6 +19,8 @@
 
 package uiso_awt_demo.util;
 
+import java.awt.image.BufferedImage;
+
 import uiso.Tile;
 import uiso.UIsoEngine;
 import uiso_awt_demo.map.MyTile;
@@ -33,26 +35,60 @@ public class TerraformUtils {
 
 		tile_z += Tile.min_z_difference_relative_to_tile_z[slope_index];
 
-		//@formatter:off
-		setTileHeight(uiso_engine, tile
-				, tile_z + Tile.corner_n_z_relative_to_min_z[slope_index] + delta);
-		setTileHeight(uiso_engine, uiso_engine.getTile(tile_x + 0, tile_y + 1)
-				, tile_z + Tile.corner_e_z_relative_to_min_z[slope_index] + delta);
-		setTileHeight(uiso_engine, uiso_engine.getTile(tile_x + 1, tile_y + 0)
-				, tile_z + Tile.corner_w_z_relative_to_min_z[slope_index] + delta);
-		setTileHeight(uiso_engine, uiso_engine.getTile(tile_x + 1, tile_y + 1)
-				, tile_z + Tile.corner_s_z_relative_to_min_z[slope_index] + delta);
-		//@formatter:on
+		uiso_engine.beginTerraform();
+		boolean completed = false;
+		try {
+			//@formatter:off
+			setTileHeight(uiso_engine, tile
+					, tile_z + Tile.corner_n_z_relative_to_min_z[slope_index] + delta);
+			setTileHeight(uiso_engine, uiso_engine.getTile(tile_x + 0, tile_y + 1)
+					, tile_z + Tile.corner_e_z_relative_to_min_z[slope_index] + delta);
+			setTileHeight(uiso_engine, uiso_engine.getTile(tile_x + 1, tile_y + 0)
+					, tile_z + Tile.corner_w_z_relative_to_min_z[slope_index] + delta);
+			setTileHeight(uiso_engine, uiso_engine.getTile(tile_x + 1, tile_y + 1)
+					, tile_z + Tile.corner_s_z_relative_to_min_z[slope_index] + delta);
+			//@formatter:on
+			completed = true;
+		} finally {
+			if (!completed)
+				uiso_engine.abortTerraform();
+		}
+		uiso_engine.commitTerraform();
 	}
 
 	public static void setAllTileCornersZ(int tile_z, UIsoEngine uiso_engine, MyTile tile) {
 		int tile_x = uiso_engine.getTileX(tile);
 		int tile_y = uiso_engine.getTileY(tile);
 
-		setTileHeight(uiso_engine, tile, tile_z);
-		setTileHeight(uiso_engine, uiso_engine.getTile(tile_x + 0, tile_y + 1), tile_z);
-		setTileHeight(uiso_engine, uiso_engine.getTile(tile_x + 1, tile_y + 0), tile_z);
-		setTileHeight(uiso_engine, uiso_engine.getTile(tile_x + 1, tile_y + 1), tile_z);
+		uiso_engine.beginTerraform();
+		boolean completed = false;
+		try {
+			setTileHeight(uiso_engine, tile, tile_z);
+			setTileHeight(uiso_engine, uiso_engine.getTile(tile_x + 0, tile_y + 1), tile_z);
+			setTileHeight(uiso_engine, uiso_engine.getTile(tile_x + 1, tile_y + 0), tile_z);
+			setTileHeight(uiso_engine, uiso_engine.getTile(tile_x + 1, tile_y + 1), tile_z);
+			completed = true;
+		} finally {
+			if (!completed)
+				uiso_engine.abortTerraform();
+		}
+		uiso_engine.commitTerraform();
+	}
+
+	/* The image brightness gives the tile heights: black is 0 and white is tile_max_z. */
+	public static void importGrayscaleHeightmap(UIsoEngine uiso_engine, BufferedImage image) {
+		int w = SimulationConstants.UISO_CONFIGURATION.w, h = SimulationConstants.UISO_CONFIGURATION.h;
+		int[] heights = new int[w * h];
+
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int rgb = image.getRGB(x * image.getWidth() / w, y * image.getHeight() / h);
+				int gray = (((rgb >> 16) & 0xFF) * 77 + ((rgb >> 8) & 0xFF) * 150 + (rgb & 0xFF) * 29) >> 8;
+
+				heights[y * w + x] = gray * (SimulationConstants.UISO_CONFIGURATION.tile_max_z + 1) >> 8;
+			}
+		}
+		uiso_engine.importHeightmap(heights, Runtime.getRuntime().availableProcessors());
 	}
 
 	public static void setTileHeight(UIsoEngine uiso_engine, Tile tile, int tile_z) {
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso_bench;
+
+import java.util.Random;
+
+import uiso.Point;
+import uiso.Tile;
+import uiso.UIsoConfiguration;
+import uiso.UIsoEngine;
+import uiso.UIsoObject;
+import uiso.interfaces.IUIsoObjectComparator;
+import uiso.util.SimpleSimulationLogic;
+import uiso.util.SimpleTileFactory;
+
+/**
+ * Builds the engines shared by the benchmarks and stress tests of this folder. They are plain {@code main} programs: run them against a build of the engine
+ * and compare the numbers printed before and after a change.
+ * 
+ * @author luis
+ */
+public class BenchEngines {
+	/* Public: */
+	public static final int VIEWPORT_W = 800, VIEWPORT_H = 530, TILE_MAX_Z = 15;
+	/** The virtual size of a tile: a quarter of {@link UIsoConfiguration#tile_w}. */
+	public static final int VIRTUAL_WORLD_TILE_SIZE = 16;
+
+	/**
+	 * Orders objects by tile and then by {@link BenchObject#getId()}, so the drawing order never depends on the insertion order.
+	 */
+	public static final IUIsoObjectComparator COMPARATOR = new IUIsoObjectComparator() {
+		@Override
+		public boolean doesBMustBeDrawnBeforeA(UIsoEngine uiso_engine, UIsoObject a, UIsoObject b) {
+			int a_x = uiso_engine.getTileX(a), b_x = uiso_engine.getTileX(b), a_y = uiso_engine.getTileY(a), b_y = uiso_engine.getTileY(b);
+			if (a_x == b_x) {
+				if (a_y == b_y) {
+					return ((BenchObject) a).getId() > ((BenchObject) b).getId();
+				}
+				return a_y > b_y;
+			}
+			return a_x > b_x;
+		}
+	};
+
+	/**
+	 * @param drawer
+	 *           the drawer of the engine. It may be null for a headless configuration, which then measures its objects with a {@link CountingDrawer}.
+	 * @param w
+	 *           the map width in tiles
+	 * @param h
+	 *           the map height in tiles
+	 * @return a configuration whose optional features are all disabled. The caller switches on what it wants to measure.
+	 */
+	public static UIsoConfiguration newConfiguration(CountingDrawer drawer, int w, int h) {
+		UIsoConfiguration configuration = new UIsoConfiguration();
+		configuration.max_objects_in_the_scene = 5000;
+		configuration.tile_w = 64;
+		configuration.tile_h = 32;
+		configuration.slope_height = 8;
+		configuration.w = w;
+		configuration.h = h;
+		configuration.tile_max_z = TILE_MAX_Z;
+		configuration.viewport_w = VIEWPORT_W;
+		configuration.viewport_h = VIEWPORT_H;
+		configuration.tile_factory = new SimpleTileFactory();
+		configuration.simulation_logic = new SimpleSimulationLogic();
+		configuration.sprite_object_comparator = COMPARATOR;
+		configuration.string_object_comparator = COMPARATOR;
+		if (drawer != null) {
+			configuration.drawer = drawer;
+		} else {
+			configuration.object_metrics = new CountingDrawer();
+		}
+		return configuration;
+	}
+
+	/**
+	 * Raises and lowers random tiles. The engine keeps only the changes that respect the slope rules.
+	 */
+	public static void buildRandomTerrain(UIsoEngine uiso_engine, int w, int h, Random random, int n_changes) {
+		for (int i = 0; i < n_changes; i++) {
+			Tile tile = uiso_engine.getTile(random.nextInt(w + 1), random.nextInt(h + 1));
+			int z = random.nextInt(TILE_MAX_Z + 1);
+			if (uiso_engine.canSetTileZ(tile, z)) {
+				uiso_engine.setTileZ(tile, z);
+			}
+		}
+	}
+
+	/**
+	 * Inserts {@code n} objects spread over the whole map.
+	 * 
+	 * @return the objects inserted. Their ids are their positions in the array.
+	 */
+	public static BenchObject[] insertRandomObjects(UIsoEngine uiso_engine, int w, int h, Random random, int n) {
+		BenchObject objects[] = new BenchObject[n];
+		int virtual_w = w * VIRTUAL_WORLD_TILE_SIZE, virtual_h = h * VIRTUAL_WORLD_TILE_SIZE;
+		for (int i = 0; i < n; i++) {
+			objects[i] = new BenchObject(i);
+			objects[i].setX(random.nextInt(virtual_w));
+			objects[i].setY(random.nextInt(virtual_h));
+			objects[i].setZ(random.nextInt(100));
+			uiso_engine.insertObject(objects[i]);
+		}
+		return objects;
+	}
+
+	/**
+	 * Calls {@link UIsoEngine#scrollToVirtualCoordinates(Point)} and computes the viewport offset it sets, which is not public: the real coordinates of the
+	 * viewport corner. The result is checked against {@link UIsoEngine#getVirtualViewportCenterCoordinates(Point)}.
+	 */
+	public static void scrollToVirtualCoordinates(UIsoEngine uiso_engine, UIsoConfiguration configuration, int x, int y, Point viewport_offset) {
+		int size = configuration.tile_w >> 2, margin = configuration.tile_max_z * size;
+		uiso_engine.scrollToVirtualCoordinates(new Point(x, y, 0));
+
+		/* The same steps as the engine: to real coordinates and back, clamped to the map, and to real coordinates again. */
+		int real_x = (y - x) << 1, real_y = x + y + (margin << 1);
+		int virtual_x = (real_y >> 1) - (real_x >> 2);
+		int center_x = UIsoEngine.clamp(margin, margin + configuration.w * size - 1, virtual_x);
+		int center_y = UIsoEngine.clamp(margin, margin + configuration.h * size - 1, virtual_x + (real_x >> 1));
+		viewport_offset.x = ((center_y - center_x) << 1) - (configuration.viewport_w >> 1);
+		viewport_offset.y = center_x + center_y - (configuration.viewport_h >> 1);
+
+		Point engine_center = new Point();
+		uiso_engine.getVirtualViewportCenterCoordinates(engine_center);
+		if (engine_center.x != center_x - margin || engine_center.y != center_y - margin)
+			throw new IllegalStateException("The viewport offset does not match the engine.");
+	}
+
+	/**
+	 * @return nanoseconds as milliseconds with two decimal places
+	 */
+	public static String toMilliseconds(long nanoseconds) {
+		return String.format("%.2f ms", nanoseconds / 1e6);
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso_bench;
+
+import uiso.UIsoImage;
+
+/**
+ * An image that has only its extents and a number that identifies it: the benchmarks never show anything.
+ * 
+ * @author luis
+ */
+public class BenchImage extends UIsoImage {
+	/* Public: */
+	public BenchImage(int w, int h, int id) {
+		this.w = w;
+		this.h = h;
+		this.id = id;
+	}
+
+	@Override
+	public int getW() {
+		return this.w;
+	}
+
+	@Override
+	public int getH() {
+		return this.h;
+	}
+
+	public int getId() {
+		return this.id;
+	}
+
+	/* Private: */
+	private final int w, h, id;
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso_bench;
+
+import uiso.Rectangle;
+import uiso.Sprite;
+import uiso.SpriteObject;
+import uiso.Tile;
+import uiso.UIsoEngine;
+import uiso.UIsoImage;
+import uiso.interfaces.IDrawer;
+
+/**
+ * A drawer that paints nothing. It counts the calls made by the engine and hashes every image that lands inside the clip, so two frames can be compared
+ * without looking at pixels.
+ * 
+ * @author luis
+ */
+public class CountingDrawer implements IDrawer {
+	/* Public: */
+	public static final int SPRITE_W = 64, SPRITE_H = 40, OBJECT_SPRITE_W = 40, OBJECT_SPRITE_H = 90;
+
+	public CountingDrawer() {
+		for (int i = 0; i < Tile.N_SLOPES; i++) {
+			this.tile_sprites[i] = new Sprite();
+			this.tile_sprites[i].setImage(new BenchImage(SPRITE_W, SPRITE_H, i));
+			this.tile_sprites[i].setAnchorX(SPRITE_W / 2);
+			this.tile_sprites[i].setAnchorY(8);
+		}
+		this.object_sprite.setImage(new BenchImage(OBJECT_SPRITE_W, OBJECT_SPRITE_H, Tile.N_SLOPES));
+		this.object_sprite.setAnchorX(OBJECT_SPRITE_W / 2);
+		this.object_sprite.setAnchorY(OBJECT_SPRITE_H - 10);
+	}
+
+	/**
+	 * Zeroes the hash and the counters. It is called before every frame that will be measured.
+	 */
+	public void reset() {
+		this.hash = 1;
+		this.draw_image_calls = 0;
+		this.clipped_draw_image_calls = 0;
+		this.tile_sprite_calls = 0;
+		this.object_sprite_calls = 0;
+	}
+
+	public long getHash() {
+		return this.hash;
+	}
+
+	public int getDrawImageCalls() {
+		return this.draw_image_calls;
+	}
+
+	/**
+	 * @return the calls to {@link #drawImage(int, int, UIsoImage)} whose image was entirely outside the clip
+	 */
+	public int getClippedDrawImageCalls() {
+		return this.clipped_draw_image_calls;
+	}
+
+	public int getTileSpriteCalls() {
+		return this.tile_sprite_calls;
+	}
+
+	public int getObjectSpriteCalls() {
+		return this.object_sprite_calls;
+	}
+
+	@Override
+	public void beginDrawing(UIsoEngine uiso_engine) {
+	}
+
+	@Override
+	public void clear() {
+		this.mix(7);
+	}
+
+	@Override
+	public void clear(int x, int y, int w, int h) {
+		this.mix(x);
+		this.mix(y);
+		this.mix(w);
+		this.mix(h);
+	}
+
+	@Override
+	public void drawImage(int x, int y, UIsoImage image) {
+		this.draw_image_calls++;
+		if (x + image.getW() <= this.clip_x || y + image.getH() <= this.clip_y || x >= this.clip_x + this.clip_w || y >= this.clip_y + this.clip_h) {
+			this.clipped_draw_image_calls++;
+			return;
+		}
+		this.mix(x);
+		this.mix(y);
+		this.mix(((BenchImage) image).getId());
+	}
+
+	@Override
+	public void drawLine(int x1, int y1, int x2, int y2) {
+	}
+
+	@Override
+	public void drawString(int x, int y, String s) {
+	}
+
+	@Override
+	public void drawString(int x, int y, String s, Object font, Object color) {
+		this.mix(x);
+		this.mix(y);
+		this.mix(s.hashCode());
+	}
+
+	@Override
+	public void endDrawing() {
+	}
+
+	@Override
+	public void getTileSprite(Tile tile, Sprite[] sprites) {
+		this.tile_sprite_calls++;
+		sprites[0] = this.tile_sprites[tile.getSlopeIndex()];
+		sprites[1] = null;
+	}
+
+	@Override
+	public void copyArea(int origin_x, int origin_y, int w, int h, int delta_x, int delta_y) {
+	}
+
+	@Override
+	public void setClip(int x, int y, int w, int h) {
+		this.clip_x = x;
+		this.clip_y = y;
+		this.clip_w = w;
+		this.clip_h = h;
+	}
+
+	@Override
+	public void getStringBounds(String s, Rectangle bounds, Object font) {
+		bounds.w = s.length() * 10;
+		bounds.h = 20;
+	}
+
+	@Override
+	public void getObjectSprite(SpriteObject object, Sprite[] sprites) {
+		this.object_sprite_calls++;
+		sprites[0] = this.object_sprite;
+		sprites[1] = null;
+	}
+
+	/* Private: */
+	private final Sprite tile_sprites[] = new Sprite[Tile.N_SLOPES];
+	private final Sprite object_sprite = new Sprite();
+	private long hash = 1;
+	private int draw_image_calls, clipped_draw_image_calls, tile_sprite_calls, object_sprite_calls;
+	private int clip_x, clip_y, clip_w, clip_h;
+
+	private void mix(long value) {
+		this.hash = this.hash * 1000003L + value;
+	}
+}
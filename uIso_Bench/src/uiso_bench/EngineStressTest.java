@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso_bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import uiso.Point;
+import uiso.Tile;
+import uiso.UIsoEngine;
+
+/**
+ * Runs many engines at the same time and checks that each one gives the same results it gives when it runs alone. An engine must not share mutable state
+ * with the others, so any mismatch means that state leaks between instances.
+ * <p>
+ * Arguments: [sessions] [rounds] [steps]. It exits with status 1 if any session mismatches.
+ * 
+ * @author luis
+ */
+public class EngineStressTest {
+	/* Public: */
+	public static void main(String args[]) throws Exception {
+		int n_sessions = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int n_rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		final int n_steps = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+		long expected[] = new long[n_sessions];
+		for (int i = 0; i < n_sessions; i++) {
+			expected[i] = runSession(i, n_steps);
+		}
+
+		/* One thread per session, so they interleave even on a single processor. */
+		ExecutorService executor = Executors.newFixedThreadPool(n_sessions);
+		int mismatches = 0;
+		try {
+			for (int round = 0; round < n_rounds; round++) {
+				List<Future<Long>> results = new ArrayList<Future<Long>>();
+				for (int i = 0; i < n_sessions; i++) {
+					final int seed = i;
+					results.add(executor.submit(new Callable<Long>() {
+						@Override
+						public Long call() {
+							return runSession(seed, n_steps);
+						}
+					}));
+				}
+				for (int i = 0; i < n_sessions; i++) {
+					if (results.get(i).get().longValue() != expected[i]) {
+						System.out.println("round " + round + ": session " + i + " mismatches");
+						mismatches++;
+					}
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		System.out.println(n_sessions + " sessions, " + n_rounds + " rounds, " + n_steps + " steps: " + mismatches + " mismatches");
+		if (mismatches != 0) {
+			System.exit(1);
+		}
+	}
+
+	/* Private: */
+	private static final int MAP_W = 120, MAP_H = 100;
+
+	/**
+	 * Edits the terrain, scrolls, picks and draws in an order given by {@code seed}.
+	 * 
+	 * @return a hash of everything the engine answered
+	 */
+	private static long runSession(int seed, int n_steps) {
+		CountingDrawer drawer = new CountingDrawer();
+		UIsoEngine uiso_engine = new UIsoEngine(BenchEngines.newConfiguration(drawer, MAP_W, MAP_H));
+		Random random = new Random(seed);
+		Point real_coordinates = new Point(), fine_coordinates = new Point(), delta = new Point();
+		long hash = 1;
+
+		for (int step = 0; step < n_steps; step++) {
+			int operation = random.nextInt(100);
+			if (operation < 5) {
+				uiso_engine.setTileZ(uiso_engine.getTile(random.nextInt(MAP_W), random.nextInt(MAP_H)), random.nextInt(BenchEngines.TILE_MAX_Z + 1));
+			} else if (operation < 90) {
+				/* Large deltas clamp the viewport center often. */
+				delta.x = random.nextInt(4001) - 2000;
+				delta.y = random.nextInt(4001) - 2000;
+				uiso_engine.scrollViewportCenterWithRealCoordinatesDelta(delta);
+				real_coordinates.x = BenchEngines.VIEWPORT_W / 2;
+				real_coordinates.y = BenchEngines.VIEWPORT_H / 2;
+				Tile center = uiso_engine.getTileFromRealCoordinates(real_coordinates, null);
+				hash = hash * 31 + uiso_engine.getTileX(center) * 7 + uiso_engine.getTileY(center);
+			} else if (operation < 99) {
+				for (int i = 0; i < 50; i++) {
+					real_coordinates.x = random.nextInt(BenchEngines.VIEWPORT_W + 200) - 100;
+					real_coordinates.y = random.nextInt(BenchEngines.VIEWPORT_H + 200) - 100;
+					Tile tile = uiso_engine.getTileFromRealCoordinates(real_coordinates, fine_coordinates);
+					hash = hash * 31 + uiso_engine.getTileX(tile) * 131 + uiso_engine.getTileY(tile) * 17 + uiso_engine.tile_position_relative_map_polygon
+							+ fine_coordinates.x + fine_coordinates.y + fine_coordinates.z;
+				}
+			} else {
+				drawer.reset();
+				uiso_engine.draw();
+				hash = hash * 31 + drawer.getHash();
+			}
+		}
+		uiso_engine.dispose();
+		return hash;
+	}
+}
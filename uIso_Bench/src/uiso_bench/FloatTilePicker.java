@@ -0,0 +1,408 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso_bench;
+
+import uiso.Tile;
+import uiso.UIsoConstants;
+import uiso.UIsoEngine;
+import uiso.util.MathUtils;
+
+/**
+ * The tile picking of the engine before the picking index: it walks from the tile at z = 0, tests the slope polygons with float line equations and computes
+ * the fine coordinates with float formulas. It is kept only as the reference of {@link PickingFuzzTest} and reads a copy of the terrain made through the public API.
+ * 
+ * @author luis
+ */
+public class FloatTilePicker {
+	/* Public: */
+	/** The answer of the last {@link #pick(int, int)}, in the coordinates of {@link UIsoEngine#getTile(int, int)}. */
+	public int tile_x, tile_y, position;
+	/** The fine coordinates of the last {@link #pick(int, int)} and the values they were rounded from. */
+	public int fine_x, fine_y, fine_z;
+	public float raw_fine_x, raw_fine_y, raw_fine_z;
+
+	public FloatTilePicker(UIsoEngine uiso_engine, int w, int h, int tile_w, int tile_h, int slope_height, int tile_max_z) {
+		this.uiso_engine = uiso_engine;
+		this.w = w;
+		this.h = h;
+		this.tile_w = tile_w;
+		this.tile_h = tile_h;
+		this.slope_height = slope_height;
+		this.tile_max_z = tile_max_z;
+		this.virtual_world_tile_size = tile_w >> 2;
+		this.real_w = w + (tile_max_z << 1) - 1;
+		this.real_h = h + (tile_max_z << 1) - 1;
+		this.terrain = new int[(this.real_w + 1) * (this.real_h + 1)];
+
+		/* The corners N, E, S and W relative to the rectangle around the tile. */
+		int corner_x[] = {tile_h, tile_w, tile_h, 0};
+		for (int i = 0; i < Tile.N_SLOPES; i++) {
+			int corner_y[] = {-Tile.corner_n_z_relative_to_min_z[i] * slope_height, -Tile.corner_e_z_relative_to_min_z[i] * slope_height + this.virtual_world_tile_size,
+					-Tile.corner_s_z_relative_to_min_z[i] * slope_height + (this.virtual_world_tile_size << 1),
+					-Tile.corner_w_z_relative_to_min_z[i] * slope_height + this.virtual_world_tile_size};
+			for (int j = 0; j < 4; j++) {
+				int a = LINE_CORNERS[j][0], b = LINE_CORNERS[j][1];
+				this.a[i][j] = (float) (corner_y[a] - corner_y[b]) / (float) (corner_x[a] - corner_x[b]);
+				this.b[i][j] = corner_y[b] - this.a[i][j] * corner_x[b];
+			}
+		}
+	}
+
+	/**
+	 * Copies the terrain of the engine. It must be called after the terrain changes. The margins of the map can not be read through the public API, so they are
+	 * taken as flat at z = 0: the terrain must not be raised near the borders.
+	 */
+	public void readTerrain() {
+		for (int map_y = 0; map_y <= this.real_h; map_y++) {
+			for (int map_x = 0; map_x <= this.real_w; map_x++) {
+				int x = map_x - this.tile_max_z, y = map_y - this.tile_max_z, data = Tile.FLAT_INDEX;
+				if (this.uiso_engine.isValidTileCoordinates(x, y)) {
+					Tile tile = this.uiso_engine.getTile(x, y);
+					data = (this.uiso_engine.getTileZ(tile) << 8) | tile.getSlopeIndex();
+				}
+				this.terrain[map_y * (this.real_w + 1) + map_x] = data;
+			}
+		}
+	}
+
+	/**
+	 * Picks the tile under a point as {@link UIsoEngine#getTileFromRealCoordinates(uiso.Point, uiso.Point)} did.
+	 * 
+	 * @param x
+	 *           the point x plus the viewport offset x
+	 * @param y
+	 *           the point y plus the viewport offset y
+	 */
+	public void pick(int x, int y) {
+		int map_x, map_y, rest_x, rest_y, min_z, slope_index, position, c = 0;
+
+		x += (this.tile_w >> 1);
+		if (x < 0) {
+			map_x = -((-(x + 1)) / this.tile_w + 1);
+			rest_x = (this.tile_w - 1) - (-(x + 1)) % this.tile_w;
+		} else {
+			map_x = x / this.tile_w;
+			rest_x = x % this.tile_w;
+		}
+		if (y < 0) {
+			map_y = -((-(y + 1)) / this.tile_h + 1);
+			rest_y = (this.tile_h - 1) - (-(y + 1)) % this.tile_h;
+		} else {
+			map_y = y / this.tile_h;
+			rest_y = y % this.tile_h;
+		}
+
+		/* Rotate the axis. */
+		map_y = map_x + map_y;
+		map_x = map_y - (map_x << 1);
+
+		do {
+			if (c++ > 30)
+				throw new IllegalStateException("The walk has not stabilized.");
+
+			int data = this.getData(map_x, map_y);
+			slope_index = data & 0xFF;
+			min_z = (data >> 8) + Tile.min_z_difference_relative_to_tile_z[slope_index];
+			position = this.getPositionRelativeToSlopePolygon(rest_x, rest_y + min_z * this.slope_height, slope_index, 0);
+
+			switch (position) {
+				case UIsoConstants.ABOVE_NE_LINE:
+					map_x--;
+					rest_x -= this.tile_w >> 1;
+					rest_y += this.tile_h >> 1;
+				break;
+				case UIsoConstants.BELOW_ES_LINE:
+					map_y++;
+					rest_x -= this.tile_w >> 1;
+					rest_y -= this.tile_h >> 1;
+				break;
+				case UIsoConstants.BELOW_SW_LINE:
+					map_x++;
+					rest_x += this.tile_w >> 1;
+					rest_y -= this.tile_h >> 1;
+				break;
+				case UIsoConstants.ABOVE_WN_LINE:
+					map_y--;
+					rest_x += this.tile_w >> 1;
+					rest_y += this.tile_h >> 1;
+				break;
+			}
+		} while (position != UIsoConstants.INSIDE_POLYGON);
+
+		/* The walk may leave the map and the public method clamps twice: first to the map with its margins and then to the map itself. */
+		this.position = UIsoConstants.INSIDE_POLYGON;
+		if (map_x < 0) {
+			map_x = 0;
+			this.position |= UIsoConstants.ABOVE_NE_LINE;
+		} else if (map_x > this.real_w) {
+			map_x = this.real_w;
+			this.position |= UIsoConstants.BELOW_SW_LINE;
+		}
+		if (map_y < 0) {
+			map_y = 0;
+			this.position |= UIsoConstants.ABOVE_WN_LINE;
+		} else if (map_y > this.real_h) {
+			map_y = this.real_h;
+			this.position |= UIsoConstants.BELOW_ES_LINE;
+		}
+
+		this.fine_x = this.fine_y = this.fine_z = -1;
+		if (this.position == UIsoConstants.INSIDE_POLYGON) {
+			this.computeFineCoordinates(rest_x - (this.tile_w >> 1), rest_y + (min_z + Tile.corner_n_z_relative_to_min_z[slope_index]) * this.slope_height,
+					this.getData(map_x, map_y) & 0xFF);
+		}
+
+		if (map_y < this.tile_max_z) {
+			map_y = this.tile_max_z;
+			this.position |= UIsoConstants.ABOVE_WN_LINE;
+		} else if (map_y > this.h + this.tile_max_z - 1) {
+			map_y = this.h + this.tile_max_z - 1;
+			this.position |= UIsoConstants.BELOW_ES_LINE;
+		}
+		if (map_x < this.tile_max_z) {
+			map_x = this.tile_max_z;
+			this.position |= UIsoConstants.ABOVE_NE_LINE;
+		} else if (map_x > this.w + this.tile_max_z - 1) {
+			map_x = this.w + this.tile_max_z - 1;
+			this.position |= UIsoConstants.BELOW_SW_LINE;
+		}
+		this.tile_x = map_x - this.tile_max_z;
+		this.tile_y = map_y - this.tile_max_z;
+	}
+
+	/**
+	 * Tells whether a point lies inside the slope polygon of a tile or less than {@code tolerance} pixels away from it. A point on the edge shared by two tiles
+	 * lies inside both polygons.
+	 * 
+	 * @param x
+	 *           the point x plus the viewport offset x
+	 * @param y
+	 *           the point y plus the viewport offset y
+	 */
+	public boolean isInsideTilePolygon(int tile_x, int tile_y, int x, int y, float tolerance) {
+		int map_x = tile_x + this.tile_max_z, map_y = tile_y + this.tile_max_z;
+		int data = this.getData(map_x, map_y), slope_index = data & 0xFF;
+		int min_z = (data >> 8) + Tile.min_z_difference_relative_to_tile_z[slope_index];
+		/* The inverse of the rotation done by pick: (map_y - map_x) / 2 columns and (map_x + map_y) / 2 rows of tile rectangles. */
+		int rest_x = x + (this.tile_w >> 1) - (map_y - map_x) * (this.tile_w >> 1);
+		int rest_y = y - (map_x + map_y) * (this.tile_h >> 1);
+		return this.getPositionRelativeToSlopePolygon(rest_x, rest_y + min_z * this.slope_height, slope_index, tolerance) == UIsoConstants.INSIDE_POLYGON;
+	}
+
+	/* Private: */
+	/*
+	 *              N
+	 *    WN      /   \     NE
+	 *          /       \
+	 *       W/           \E
+	 *        \           /
+	 *    SW    \       /   ES
+	 *            \   /
+	 *              S
+	 */
+	private final static int NE_LINE = 0, ES_LINE = 1, SW_LINE = 2, WN_LINE = 3;
+	private final static int LINE_CORNERS[][] = {{0, 1}, {1, 2}, {2, 3}, {3, 0}};
+
+	private final UIsoEngine uiso_engine;
+	private final int w, h, tile_w, tile_h, slope_height, tile_max_z, virtual_world_tile_size, real_w, real_h;
+	private final float a[][] = new float[Tile.N_SLOPES][4], b[][] = new float[Tile.N_SLOPES][4];
+	private final int terrain[];
+
+	/**
+	 * @return the slope index in the lowest byte and the tile z above it
+	 */
+	private int getData(int map_x, int map_y) {
+		if (0 > map_x || 0 > map_y || map_x > this.real_w || map_y > this.real_h) {
+			return Tile.FLAT_INDEX;
+		}
+		return this.terrain[map_y * (this.real_w + 1) + map_x];
+	}
+
+	private float getPointPositionRelativeLine(int x, int y, int slope_index, int line) {
+		return this.b[slope_index][line] + this.a[slope_index][line] * x - y;
+	}
+
+	private int getPositionRelativeToSlopePolygon(int x, int y, int slope_index, float tolerance) {
+		if (this.getPointPositionRelativeLine(x, y, slope_index, NE_LINE) > tolerance)
+			return UIsoConstants.ABOVE_NE_LINE;
+		if (this.getPointPositionRelativeLine(x, y, slope_index, ES_LINE) < -tolerance)
+			return UIsoConstants.BELOW_ES_LINE;
+		if (this.getPointPositionRelativeLine(x, y, slope_index, SW_LINE) <= -tolerance)
+			return UIsoConstants.BELOW_SW_LINE;
+		if (this.getPointPositionRelativeLine(x, y, slope_index, WN_LINE) > tolerance)
+			return UIsoConstants.ABOVE_WN_LINE;
+		return UIsoConstants.INSIDE_POLYGON;
+	}
+
+	private void computeFineCoordinates(int r_x, int r_y, int slope_index) {
+		float f_v_x = 0, f_v_y = 0, f_v_z = 0;
+		float h = this.slope_height;
+		float l = this.virtual_world_tile_size;
+		float a = l / h;
+
+		switch (SLOPES[slope_index]) {
+			case Tile.FLAT:
+				f_v_x = (2 * r_y - r_x) / 4;
+				f_v_y = (r_x + (f_v_x * 2)) / 2;
+			break;
+			case Tile.NE:
+				f_v_x = (2 * r_y - r_x) / ((4 * a + 2) / a);
+				f_v_y = (r_x + (f_v_x * 2)) / 2;
+				f_v_z = h - f_v_x / a;
+			break;
+			case Tile.SW:
+				f_v_x = (2 * r_y - r_x) / ((4 * a - 2) / a);
+				f_v_y = (r_x + (f_v_x * 2)) / 2;
+				f_v_z = f_v_x / a;
+			break;
+			case Tile.ES:
+				f_v_y = (2 * r_y + r_x) / ((4 * a - 2) / a);
+				f_v_x = (-r_x + (f_v_y * 2)) / 2;
+				f_v_z = f_v_y / a;
+			break;
+			case Tile.WN:
+				f_v_y = (2 * r_y + r_x) / ((4 * a + 2) / a);
+				f_v_x = (-r_x + (f_v_y * 2)) / 2;
+				f_v_z = h - f_v_y / a;
+			break;
+			case Tile.N:
+				if (r_y >= h + l) {
+					r_y -= h;
+					f_v_x = (2 * r_y - r_x) / 4;
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+				} else {
+					f_v_x = (2 * l * r_y - l * r_x - h * r_x) / (4 * (l + h));
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = ((l * h - f_v_x * h - h * f_v_y) / l);
+				}
+			break;
+			case Tile.S:
+				if (r_y >= l) {
+					r_y -= l / 2;
+					f_v_x = (2 * l * r_y - l * r_x + h * r_x) / (4 * (l - h));
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = ((l * h - f_v_x * h - h * f_v_y) / -l);
+				} else {
+					f_v_x = (2 * r_y - r_x) / 4;
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+				}
+			break;
+			case Tile.W:
+				if (r_x >= 0) {
+					f_v_x = (2 * r_y - r_x) / 4;
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+				} else {
+					f_v_x = (2 * l * r_y - l * r_x - h * r_x) / (4 * l);
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = (h * f_v_x - h * f_v_y) / l;
+				}
+			break;
+			case Tile.E:
+				if (r_x <= 0) {
+					f_v_x = (2 * r_y - r_x) / 4;
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+				} else {
+					f_v_x = (2 * l * r_y - l * r_x + h * r_x) / (4 * l);
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = (h * f_v_y - h * f_v_x) / l;
+				}
+			break;
+			case Tile.WE:
+				if (r_y > h) {
+					r_y += l;
+					f_v_x = (2 * l * r_y - l * r_x - h * r_x) / (4 * (l + h));
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = (h * f_v_x + h * f_v_y - 2 * h * l) / -l;
+				} else {
+					f_v_x = (2 * l * r_y - l * r_x + h * r_x) / (4 * (l - h));
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = (h * f_v_x + h * f_v_y) / l;
+				}
+			break;
+			case Tile.NS:
+				if (r_x <= 0) {
+					f_v_x = (2 * l * r_y - l * r_x + h * r_x) / (4 * l);
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = (l * h - h * f_v_x + h * f_v_y) / l;
+				} else {
+					f_v_x = (2 * l * r_y - l * r_x - h * r_x) / (4 * l);
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = (-l * h + h * f_v_y - h * f_v_x) / -l;
+				}
+			break;
+			case Tile.NES:
+				if (r_x < 0) {
+					f_v_x = (2 * l * r_y - l * r_x + h * r_x) / (4 * l);
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = (l * h - h * f_v_x + h * f_v_y) / l;
+				} else {
+					f_v_x = (2 * r_y - r_x) / 4;
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = h;
+				}
+			break;
+			case Tile.SWN:
+				if (r_x <= 0) {
+					f_v_x = (2 * r_y - r_x) / 4;
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = h;
+				} else {
+					f_v_x = (2 * l * r_y - l * r_x - h * r_x) / (4 * l);
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = (-l * h + h * f_v_y - h * f_v_x) / -l;
+				}
+			break;
+			case Tile.ESW:
+				if (r_y >= h) {
+					r_y += h;
+					f_v_x = (2 * r_y - r_x) / 4;
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = h;
+				} else {
+					f_v_x = (2 * l * r_y - l * r_x + h * r_x) / (4 * (l - h));
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = (h * f_v_x + h * f_v_y) / l;
+				}
+			break;
+			case Tile.WNE:
+				if (r_y <= l) {
+					f_v_x = (2 * r_y - r_x) / 4;
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = h;
+				} else {
+					r_y += h;
+					f_v_x = (2 * l * r_y - l * r_x - h * r_x) / (4 * (l + h));
+					f_v_y = (r_x + (f_v_x * 2)) / 2;
+					f_v_z = (h * f_v_x + h * f_v_y - 2 * h * l) / -l;
+				}
+			break;
+		}
+		this.raw_fine_x = f_v_x;
+		this.raw_fine_y = f_v_y;
+		this.raw_fine_z = f_v_z;
+		this.fine_x = UIsoEngine.clamp(0, this.virtual_world_tile_size - 1, MathUtils.round(f_v_x));
+		this.fine_y = UIsoEngine.clamp(0, this.virtual_world_tile_size - 1, MathUtils.round(f_v_y));
+		this.fine_z = UIsoEngine.clamp(0, this.slope_height, MathUtils.round(f_v_z));
+	}
+
+	/* The slope of each slope index. */
+	private final static int SLOPES[] = {Tile.FLAT, Tile.N, Tile.S, Tile.E, Tile.W, Tile.NE, Tile.ES, Tile.SW, Tile.WN, Tile.NS, Tile.WE, Tile.NES, Tile.ESW,
+			Tile.WNE, Tile.SWN};
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso_bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import uiso.Tile;
+import uiso.UIsoConfiguration;
+import uiso.UIsoEngine;
+import uiso.UIsoObject;
+import uiso.interfaces.IUIsoObjectFactory;
+import uiso.util.MapJournal;
+import uiso.util.MappedMapFile;
+
+/**
+ * Simulates crashes of a map kept in a {@link MappedMapFile} snapshot with a {@link MapJournal}, and checks that the map is recovered. A crash is an engine that
+ * is dropped without saving its chunks: only the journal (closed, so its records are on the file) and the snapshot of the last compaction survive it.
+ * <p>
+ * The sessions, each one recovered from the files left by the previous one:
+ * <ol>
+ * <li>changes the terrain and the objects, compacts the journal halfway and crashes;</li>
+ * <li>recovers without an object factory, inserts one object and crashes;</li>
+ * <li>recovers with a factory: the terrain and every object of both sessions must be back;</li>
+ * <li>compacts right after recovering and crashes; a last recovery must give the same map again.</li>
+ * </ol>
+ * Arguments: [steps]. It exits with status 1 if a recovered map differs.
+ *
+ * @author luis
+ */
+public class MapJournalRecoveryTest {
+	/* Public: */
+	public static void main(String args[]) throws Exception {
+		int n_steps = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		File snapshot_file = File.createTempFile("uiso_bench", ".map"), journal_file = File.createTempFile("uiso_bench", ".journal");
+		snapshot_file.deleteOnExit();
+		journal_file.deleteOnExit();
+		/* Empty files are taken as new. */
+		snapshot_file.delete();
+		journal_file.delete();
+
+		Random random = new Random(42);
+		Map<Integer, String> expected_objects = new TreeMap<Integer, String>();
+		int failures = 0;
+
+		/* 1: */
+		Session session = new Session(snapshot_file, journal_file, null);
+		List<BenchObject> objects = new ArrayList<BenchObject>();
+		for (int step = 0; step < n_steps; step++) {
+			if (step == n_steps / 2)
+				session.journal.compact(session.uiso_engine);
+			changeMap(session.uiso_engine, random, objects);
+		}
+		for (BenchObject object : objects)
+			expected_objects.put(Integer.valueOf(object.getId()), describe(object));
+		long expected_terrain = hashTerrain(session.uiso_engine);
+		session.crash();
+
+		/* 2: */
+		session = new Session(snapshot_file, journal_file, null);
+		failures += check("recovered without objects", hashTerrain(session.uiso_engine), expected_terrain, null, null);
+		BenchObject object = new BenchObject(next_id++);
+		placeObject(object, random);
+		session.uiso_engine.insertObject(object);
+		expected_objects.put(Integer.valueOf(object.getId()), describe(object));
+		session.crash();
+
+		/* 3: */
+		RecordingFactory factory = new RecordingFactory();
+		session = new Session(snapshot_file, journal_file, factory);
+		failures += check("recovered", hashTerrain(session.uiso_engine), expected_terrain, factory.getObjects(), expected_objects);
+		session.journal.compact(session.uiso_engine);
+		session.crash();
+
+		/* 4: */
+		factory = new RecordingFactory();
+		session = new Session(snapshot_file, journal_file, factory);
+		failures += check("recovered after compaction", hashTerrain(session.uiso_engine), expected_terrain, factory.getObjects(), expected_objects);
+		session.crash();
+
+		System.out.println(n_steps + " steps, " + expected_objects.size() + " objects, journal of " + journal_file.length() + " bytes after compaction: " + failures
+				+ " failures");
+		if (failures != 0) {
+			System.exit(1);
+		}
+	}
+
+	/* Private: */
+	private static final int MAP_W = 120, MAP_H = 100;
+	/* The ids keep growing, so an object removed is never confused with a new one. */
+	private static int next_id;
+
+	/**
+	 * An engine whose map is kept by a snapshot and a journal. The journal is recovered when it is built.
+	 */
+	private static class Session {
+		Session(File snapshot_file, File journal_file, IUIsoObjectFactory object_factory) throws IOException {
+			UIsoConfiguration configuration = BenchEngines.newConfiguration(null, MAP_W, MAP_H);
+			configuration.tile_user_columns = 1;
+			this.snapshot = new MappedMapFile(snapshot_file, configuration);
+			this.journal = new MapJournal(journal_file, this.snapshot, configuration, 50);
+			configuration.map_chunk_persistence = this.snapshot;
+			configuration.map_change_listener = this.journal;
+			this.uiso_engine = new UIsoEngine(configuration);
+			this.journal.recover(this.uiso_engine, object_factory);
+		}
+
+		/**
+		 * Drops the engine without saving its chunks. The journal is closed, so the files are left as they are after the last flush.
+		 */
+		void crash() throws IOException {
+			this.journal.close();
+			this.snapshot.close();
+			this.uiso_engine.dispose();
+		}
+
+		final MappedMapFile snapshot;
+		final MapJournal journal;
+		final UIsoEngine uiso_engine;
+	}
+
+	/**
+	 * Rebuilds the objects from their user data, which is their id.
+	 */
+	private static class RecordingFactory implements IUIsoObjectFactory {
+		@Override
+		public UIsoObject buildNewObject(int user_data) {
+			BenchObject object = new BenchObject(user_data);
+			this.objects.put(Integer.valueOf(user_data), object);
+			return object;
+		}
+
+		/**
+		 * @return the description of each object built, by id. It is read after the objects have been placed.
+		 */
+		Map<Integer, String> getObjects() {
+			Map<Integer, String> objects = new TreeMap<Integer, String>();
+			for (Map.Entry<Integer, BenchObject> entry : this.objects.entrySet())
+				objects.put(entry.getKey(), describe(entry.getValue()));
+			return objects;
+		}
+
+		private final Map<Integer, BenchObject> objects = new TreeMap<Integer, BenchObject>();
+	}
+
+	private static void changeMap(UIsoEngine uiso_engine, Random random, List<BenchObject> objects) {
+		int operation = random.nextInt(100);
+		if (operation < 40) {
+			Tile tile = uiso_engine.getTile(random.nextInt(MAP_W + 1), random.nextInt(MAP_H + 1));
+			int z = random.nextInt(BenchEngines.TILE_MAX_Z + 1);
+			if (uiso_engine.canSetTileZ(tile, z))
+				uiso_engine.setTileZ(tile, z);
+		} else if (operation < 60) {
+			uiso_engine.getTile(random.nextInt(MAP_W), random.nextInt(MAP_H)).setUserColumn(0, random.nextInt());
+		} else if (operation < 75 || objects.isEmpty()) {
+			BenchObject object = new BenchObject(next_id++);
+			placeObject(object, random);
+			uiso_engine.insertObject(object);
+			objects.add(object);
+		} else if (operation < 95) {
+			BenchObject object = objects.get(random.nextInt(objects.size()));
+			placeObject(object, random);
+			uiso_engine.informObjectMotion(object);
+		} else {
+			uiso_engine.removeObject(objects.remove(random.nextInt(objects.size())));
+		}
+	}
+
+	private static void placeObject(BenchObject object, Random random) {
+		object.setX(random.nextInt(MAP_W * BenchEngines.VIRTUAL_WORLD_TILE_SIZE));
+		object.setY(random.nextInt(MAP_H * BenchEngines.VIRTUAL_WORLD_TILE_SIZE));
+		object.setZ(random.nextInt(100));
+		object.setUserData(object.getId());
+	}
+
+	private static String describe(UIsoObject object) {
+		return object.getX() + "," + object.getY() + "," + object.getZ() + "," + object.getUserData();
+	}
+
+	private static long hashTerrain(UIsoEngine uiso_engine) {
+		long hash = 1;
+		for (int y = 0; y <= MAP_H; y++) {
+			for (int x = 0; x <= MAP_W; x++) {
+				Tile tile = uiso_engine.getTile(x, y);
+				hash = hash * 31 + uiso_engine.getTileZ(tile) * 17 + tile.getSlope();
+				hash = hash * 31 + tile.getUserColumn(0);
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @return 1 if the terrain or the objects (when informed) differ
+	 */
+	private static int check(String name, long terrain, long expected_terrain, Map<Integer, String> objects, Map<Integer, String> expected_objects) {
+		if (terrain != expected_terrain) {
+			System.out.println(name + ": the terrain differs");
+			return 1;
+		}
+		if (objects != null && !objects.equals(expected_objects)) {
+			System.out.println(name + ": " + objects.size() + " objects instead of " + expected_objects.size() + " or in other positions");
+			return 1;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso_bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import uiso.Tile;
+import uiso.UIsoConfiguration;
+import uiso.UIsoConstants;
+import uiso.UIsoEngine;
+import uiso.interfaces.IMapChunkPersistence;
+import uiso.util.MappedMapFile;
+
+/**
+ * Compares three ways of getting the same terrain into an engine, each followed by a read of every tile:
+ * <ul>
+ * <li>procedural: raising hills with {@link UIsoEngine#setTileZ(Tile, int)}, as the demo does on every start;</li>
+ * <li>mapped: loading the chunks from a {@link MappedMapFile};</li>
+ * <li>stream: reading the chunks from a {@link DataInputStream}, one integer at a time, into arrays that the engine copies.</li>
+ * </ul>
+ * The three maps must be equal. The files are temporary.
+ * <p>
+ * Arguments: [w] [h] [rounds].
+ * 
+ * @author luis
+ */
+public class MapLoadingBench {
+	/* Public: */
+	public static void main(String args[]) throws IOException {
+		int w = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int h = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int n_rounds = args.length > 2 ? Integer.parseInt(args[2]) : 15;
+		UIsoConfiguration configuration = BenchEngines.newConfiguration(null, w, h);
+
+		File mapped_file = File.createTempFile("uiso_bench", ".map"), stream_file = File.createTempFile("uiso_bench", ".stream");
+		mapped_file.deleteOnExit();
+		stream_file.deleteOnExit();
+		/* An empty file is taken as new by MappedMapFile. */
+		mapped_file.delete();
+
+		MappedMapFile mapped_map_file = new MappedMapFile(mapped_file, configuration);
+		UIsoEngine uiso_engine = newEngine(configuration, mapped_map_file);
+		buildHills(uiso_engine, w, h);
+		long expected = readEveryTile(uiso_engine, w, h);
+		uiso_engine.saveMapChunks();
+		writeStream(mapped_map_file, configuration, stream_file);
+		mapped_map_file.close();
+
+		long times[][] = new long[3][n_rounds];
+		for (int round = 0; round < n_rounds; round++) {
+			long start = System.nanoTime();
+			uiso_engine = newEngine(configuration, null);
+			buildHills(uiso_engine, w, h);
+			long procedural = readEveryTile(uiso_engine, w, h);
+			times[0][round] = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			mapped_map_file = new MappedMapFile(mapped_file, configuration);
+			long mapped = readEveryTile(newEngine(configuration, mapped_map_file), w, h);
+			mapped_map_file.close();
+			times[1][round] = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long stream = readEveryTile(newEngine(configuration, new StreamedChunks(stream_file, configuration)), w, h);
+			times[2][round] = System.nanoTime() - start;
+
+			if (procedural != expected || mapped != expected || stream != expected)
+				throw new IllegalStateException("The maps differ.");
+		}
+
+		for (int i = 0; i < times.length; i++)
+			Arrays.sort(times[i]);
+		System.out.println(w + "x" + h + " map, median of " + n_rounds + " rounds (the terrain is ready and every tile has been read):");
+		System.out.println("  procedural: " + BenchEngines.toMilliseconds(times[0][n_rounds / 2]));
+		System.out.println("  mapped file: " + BenchEngines.toMilliseconds(times[1][n_rounds / 2]) + " (" + mapped_file.length() + " bytes)");
+		System.out.println("  stream: " + BenchEngines.toMilliseconds(times[2][n_rounds / 2]) + " (" + stream_file.length() + " bytes)");
+	}
+
+	/* Private: */
+	private static final int CHUNK_INTS = UIsoConstants.MAP_CHUNK_SIZE * UIsoConstants.MAP_CHUNK_SIZE;
+
+	/**
+	 * Reads every chunk of the stream file in its constructor. It assumes that there are no user columns.
+	 */
+	private static class StreamedChunks implements IMapChunkPersistence {
+		StreamedChunks(File file, UIsoConfiguration configuration) throws IOException {
+			this.tile_max_z = configuration.tile_max_z;
+			this.n_chunks_x = getNumberOfChunks(configuration.w, configuration.tile_max_z);
+			this.chunks = new int[this.n_chunks_x * getNumberOfChunks(configuration.h, configuration.tile_max_z)][];
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				for (int i = 0; i < this.chunks.length; i++) {
+					if (in.readBoolean()) {
+						this.chunks[i] = new int[CHUNK_INTS];
+						for (int j = 0; j < CHUNK_INTS; j++)
+							this.chunks[i][j] = in.readInt();
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		@Override
+		public boolean loadChunk(int tile_x, int tile_y, int[] data, int[][] columns) {
+			int chunk[] = this.chunks[((tile_y + this.tile_max_z) / UIsoConstants.MAP_CHUNK_SIZE) * this.n_chunks_x + (tile_x + this.tile_max_z)
+					/ UIsoConstants.MAP_CHUNK_SIZE];
+			if (chunk == null)
+				return false;
+			System.arraycopy(chunk, 0, data, 0, CHUNK_INTS);
+			return true;
+		}
+
+		@Override
+		public void saveChunk(int tile_x, int tile_y, int[] data, int[][] columns) {
+		}
+
+		private final int tile_max_z, n_chunks_x;
+		private final int chunks[][];
+	}
+
+	private static int getNumberOfChunks(int size, int tile_max_z) {
+		return (size + (tile_max_z << 1) + UIsoConstants.MAP_CHUNK_SIZE) / UIsoConstants.MAP_CHUNK_SIZE;
+	}
+
+	private static UIsoEngine newEngine(UIsoConfiguration configuration, IMapChunkPersistence persistence) {
+		UIsoConfiguration engine_configuration = BenchEngines.newConfiguration(null, configuration.w, configuration.h);
+		engine_configuration.map_chunk_persistence = persistence;
+		return new UIsoEngine(engine_configuration);
+	}
+
+	/**
+	 * Raises one pyramid shaped hill for every 200 tiles, always at the same places.
+	 */
+	private static void buildHills(UIsoEngine uiso_engine, int w, int h) {
+		Random random = new Random(42);
+		for (int i = 0; i < w * h / 200; i++) {
+			int center_x = random.nextInt(w), center_y = random.nextInt(h), top = 4 + random.nextInt(8);
+			for (int y = Math.max(0, center_y - 5); y < Math.min(h, center_y + 5); y++) {
+				for (int x = Math.max(0, center_x - 5); x < Math.min(w, center_x + 5); x++) {
+					Tile tile = uiso_engine.getTile(x, y);
+					int z = top - Math.max(Math.abs(x - center_x), Math.abs(y - center_y));
+					if (z > uiso_engine.getTileZ(tile))
+						uiso_engine.setTileZ(tile, z);
+				}
+			}
+		}
+	}
+
+	private static long readEveryTile(UIsoEngine uiso_engine, int w, int h) {
+		long hash = 1;
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				Tile tile = uiso_engine.getTile(x, y);
+				hash = hash * 31 + uiso_engine.getTileZ(tile) * 17 + tile.getSlope();
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Writes, for every chunk, whether it was saved and then its tiles data.
+	 */
+	private static void writeStream(MappedMapFile mapped_map_file, UIsoConfiguration configuration, File file) throws IOException {
+		int data[] = new int[CHUNK_INTS], columns[][] = new int[0][];
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			for (int chunk_y = 0; chunk_y < getNumberOfChunks(configuration.h, configuration.tile_max_z); chunk_y++) {
+				for (int chunk_x = 0; chunk_x < getNumberOfChunks(configuration.w, configuration.tile_max_z); chunk_x++) {
+					boolean saved =
+							mapped_map_file.loadChunk(chunk_x * UIsoConstants.MAP_CHUNK_SIZE - configuration.tile_max_z, chunk_y * UIsoConstants.MAP_CHUNK_SIZE
+									- configuration.tile_max_z, data, columns);
+					out.writeBoolean(saved);
+					if (saved) {
+						for (int i = 0; i < CHUNK_INTS; i++)
+							out.writeInt(data[i]);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
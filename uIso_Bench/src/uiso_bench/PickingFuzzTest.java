@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso_bench;
+
+import java.util.Random;
+
+import uiso.Point;
+import uiso.Tile;
+import uiso.UIsoConfiguration;
+import uiso.UIsoConstants;
+import uiso.UIsoEngine;
+
+/**
+ * Compares {@link UIsoEngine#getTileFromRealCoordinates(Point, Point)} with {@link FloatTilePicker}, the walk it replaced, over random terrains and random
+ * points. Every difference must be one of the two known kinds:
+ * <ul>
+ * <li>edge: the point is on the edge shared by two tiles, so it lies inside both polygons and each implementation may return either tile;</li>
+ * <li>tie: the tile is the same but a fine coordinate is exactly k + 0.5, which the float formulas rounded to either side.</li>
+ * </ul>
+ * Any other difference is printed and makes it exit with status 1.
+ * <p>
+ * Arguments: [points per configuration] [seed].
+ * 
+ * @author luis
+ */
+public class PickingFuzzTest {
+	/* Public: */
+	public static void main(String args[]) {
+		int n_points = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 11;
+		int n_other = 0;
+
+		for (int i = 0; i < CONFIGURATIONS.length; i++) {
+			n_other += fuzz(CONFIGURATIONS[i][0], CONFIGURATIONS[i][1], CONFIGURATIONS[i][2], n_points, new Random(seed + i));
+		}
+		if (n_other != 0) {
+			System.out.println(n_other + " unexpected differences");
+			System.exit(1);
+		}
+	}
+
+	/* Private: */
+	/* tile_w, slope_height and tile_max_z. They cover l / slope_height with and without an integer result and a map without heights. */
+	private static final int CONFIGURATIONS[][] = { {64, 8, 15}, {64, 13, 15}, {48, 8, 15}, {128, 16, 15}, {36, 4, 10}, {64, 8, 0}, {80, 5, 7}, {64, 15, 15}};
+	private static final int MAP_W = 60, MAP_H = 50, N_VIEWPORTS = 6;
+	private static final float EDGE_TOLERANCE = 0.01f, TIE_TOLERANCE = 0.001f;
+
+	/**
+	 * @return the number of unexpected differences
+	 */
+	private static int fuzz(int tile_w, int slope_height, int tile_max_z, int n_points, Random random) {
+		UIsoConfiguration configuration = BenchEngines.newConfiguration(null, MAP_W, MAP_H);
+		configuration.tile_w = tile_w;
+		configuration.tile_h = tile_w >> 1;
+		configuration.slope_height = slope_height;
+		configuration.tile_max_z = tile_max_z;
+		UIsoEngine uiso_engine = new UIsoEngine(configuration);
+		FloatTilePicker reference = new FloatTilePicker(uiso_engine, MAP_W, MAP_H, tile_w, tile_w >> 1, slope_height, tile_max_z);
+
+		/* A tile raised to z raises its neighbours up to z - 1 tiles away: keep that inside the map, whose margins the reference takes as flat. */
+		for (int i = 0; i < 400; i++) {
+			int z = random.nextInt(tile_max_z + 1);
+			uiso_engine.setTileZ(uiso_engine.getTile(z + 1 + random.nextInt(MAP_W - 2 * z - 1), z + 1 + random.nextInt(MAP_H - 2 * z - 1)), z);
+		}
+		reference.readTerrain();
+
+		int real_x[] = new int[n_points], real_y[] = new int[n_points];
+		for (int i = 0; i < n_points; i++) {
+			real_x[i] = random.nextInt(configuration.viewport_w + 200) - 100;
+			real_y[i] = random.nextInt(configuration.viewport_h + 200) - 100;
+		}
+
+		Point real_coordinates = new Point(), fine_coordinates = new Point(), viewport_offset = new Point();
+		int n_same = 0, n_edges = 0, n_ties = 0, n_other = 0;
+		for (int v = 0; v < N_VIEWPORTS; v++) {
+			int size = tile_w >> 2;
+			BenchEngines.scrollToVirtualCoordinates(uiso_engine, configuration, random.nextInt(MAP_W * size), random.nextInt(MAP_H * size), viewport_offset);
+
+			for (int i = 0; i < n_points; i++) {
+				int x = real_x[i] + viewport_offset.x, y = real_y[i] + viewport_offset.y;
+				real_coordinates.x = real_x[i];
+				real_coordinates.y = real_y[i];
+				fine_coordinates.x = fine_coordinates.y = fine_coordinates.z = -1;
+				Tile tile = uiso_engine.getTileFromRealCoordinates(real_coordinates, fine_coordinates);
+				int tile_x = uiso_engine.getTileX(tile), tile_y = uiso_engine.getTileY(tile), position = uiso_engine.tile_position_relative_map_polygon;
+				reference.pick(x, y);
+
+				boolean inside = position == UIsoConstants.INSIDE_POLYGON && reference.position == UIsoConstants.INSIDE_POLYGON;
+				if (tile_x == reference.tile_x && tile_y == reference.tile_y && position == reference.position
+						&& (!inside || (fine_coordinates.x == reference.fine_x && fine_coordinates.y == reference.fine_y && fine_coordinates.z == reference.fine_z))) {
+					n_same++;
+				} else if (inside && (tile_x != reference.tile_x || tile_y != reference.tile_y)
+						&& reference.isInsideTilePolygon(tile_x, tile_y, x, y, EDGE_TOLERANCE)) {
+					n_edges++;
+				} else if (inside && tile_x == reference.tile_x && tile_y == reference.tile_y && isTie(fine_coordinates.x, reference.fine_x, reference.raw_fine_x)
+						&& isTie(fine_coordinates.y, reference.fine_y, reference.raw_fine_y) && isTie(fine_coordinates.z, reference.fine_z, reference.raw_fine_z)) {
+					n_ties++;
+				} else {
+					if (n_other++ < 10) {
+						System.out.println("  unexpected at (" + x + "," + y + "): tile " + tile_x + "," + tile_y + " " + fine_coordinates + " position " + position
+								+ ", reference " + reference.tile_x + "," + reference.tile_y + " (" + reference.fine_x + "," + reference.fine_y + "," + reference.fine_z
+								+ ") position " + reference.position);
+					}
+				}
+			}
+		}
+
+		int n_picks = n_points * N_VIEWPORTS;
+		System.out.println("tile_w " + tile_w + " slope_height " + slope_height + " tile_max_z " + tile_max_z + ": " + n_picks + " picks, " + n_same + " same, "
+				+ n_edges + " shared edges, " + n_ties + " rounding ties, " + n_other + " unexpected");
+		return n_other;
+	}
+
+	/**
+	 * @return whether {@code value} equals {@code reference} or both are the roundings of a value that is exactly k + 0.5
+	 */
+	private static boolean isTie(int value, int reference, float raw_reference) {
+		if (value == reference)
+			return true;
+		float fraction = raw_reference - (float) Math.floor(raw_reference);
+		return Math.abs(value - reference) == 1 && Math.abs(fraction - 0.5f) < TIE_TOLERANCE;
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso_bench;
+
+import java.util.Random;
+
+import uiso.Point;
+import uiso.UIsoConfiguration;
+import uiso.UIsoEngine;
+import uiso.UIsoObject;
+import uiso.interfaces.IUIsoObjectComparator;
+import uiso.interfaces.IUIsoObjectDepthKeyProvider;
+
+/**
+ * Measures the sort of the scene objects at 200, 2000 and 20000 visible objects, using {@link BenchEngines#COMPARATOR} and then a depth key provider that gives
+ * the same order. The whole map is visible, so every object is in the scene. It reports the first frame, when every object is new to the scene, and the
+ * following frames, in which a tenth of the objects move. Both orders must produce the same frames.
+ * <p>
+ * The selection sort used before the depth keys made n * (n - 1) / 2 comparator calls in every frame; that number is printed as a reference.
+ * <p>
+ * Arguments: [frames] [seed].
+ * 
+ * @author luis
+ */
+public class SceneSortBench {
+	/* Public: */
+	public static void main(String args[]) {
+		int n_frames = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 5;
+
+		/* Warm up both paths. */
+		run(2000, n_frames, seed, false, false);
+		run(2000, n_frames, seed, true, false);
+
+		for (int i = 0; i < N_OBJECTS.length; i++) {
+			System.out.println(N_OBJECTS[i] + " objects (the selection sort made " + (long) N_OBJECTS[i] * (N_OBJECTS[i] - 1) / 2 + " comparator calls per frame):");
+			long comparator_hash = run(N_OBJECTS[i], n_frames, seed, false, true), keys_hash = run(N_OBJECTS[i], n_frames, seed, true, true);
+			if (comparator_hash != keys_hash) {
+				System.out.println("  the frames differ");
+				System.exit(1);
+			}
+		}
+	}
+
+	/* Private: */
+	private static final int N_OBJECTS[] = {200, 2000, 20000};
+	/* Small enough to be entirely inside the viewport. */
+	private static final int MAP_W = 10, MAP_H = 10;
+
+	private static final IUIsoObjectDepthKeyProvider DEPTH_KEY_PROVIDER = new IUIsoObjectDepthKeyProvider() {
+		/* The same order given by BenchEngines.COMPARATOR. */
+		@Override
+		public long getDepthKey(UIsoEngine uiso_engine, UIsoObject object) {
+			return ((long) uiso_engine.getTileX(object) << 42) + ((long) uiso_engine.getTileY(object) << 21) + ((BenchObject) object).getId();
+		}
+	};
+
+	private static long comparator_calls;
+
+	private static final IUIsoObjectComparator COUNTING_COMPARATOR = new IUIsoObjectComparator() {
+		@Override
+		public boolean doesBMustBeDrawnBeforeA(UIsoEngine uiso_engine, UIsoObject a, UIsoObject b) {
+			comparator_calls++;
+			return BenchEngines.COMPARATOR.doesBMustBeDrawnBeforeA(uiso_engine, a, b);
+		}
+	};
+
+	/**
+	 * @return a hash of every frame drawn
+	 */
+	private static long run(int n_objects, int n_frames, long seed, boolean depth_keys, boolean print) {
+		Random random = new Random(seed);
+		CountingDrawer drawer = new CountingDrawer();
+		UIsoConfiguration configuration = BenchEngines.newConfiguration(drawer, MAP_W, MAP_H);
+		configuration.max_objects_in_the_scene = n_objects;
+		if (depth_keys) {
+			configuration.sprite_object_comparator = null;
+			configuration.sprite_object_depth_key_provider = DEPTH_KEY_PROVIDER;
+		} else {
+			configuration.sprite_object_comparator = COUNTING_COMPARATOR;
+		}
+		UIsoEngine uiso_engine = new UIsoEngine(configuration);
+		BenchObject objects[] = BenchEngines.insertRandomObjects(uiso_engine, MAP_W, MAP_H, random, n_objects);
+		int virtual_w = MAP_W * BenchEngines.VIRTUAL_WORLD_TILE_SIZE, virtual_h = MAP_H * BenchEngines.VIRTUAL_WORLD_TILE_SIZE;
+		uiso_engine.scrollToVirtualCoordinates(new Point(virtual_w / 2, virtual_h / 2, 0));
+
+		comparator_calls = 0;
+		drawer.reset();
+		long start = System.nanoTime();
+		uiso_engine.draw();
+		long first_frame_time = System.nanoTime() - start, first_frame_calls = comparator_calls, hash = drawer.getHash();
+
+		long time = 0;
+		comparator_calls = 0;
+		for (int frame = 0; frame < n_frames; frame++) {
+			for (int i = 0; i < n_objects / 10; i++) {
+				BenchObject object = objects[random.nextInt(n_objects)];
+				object.setX(Math.min(virtual_w - 1, Math.max(0, object.getX() + random.nextInt(9) - 4)));
+				object.setY(Math.min(virtual_h - 1, Math.max(0, object.getY() + random.nextInt(9) - 4)));
+				uiso_engine.informObjectMotion(object);
+			}
+			drawer.reset();
+			start = System.nanoTime();
+			uiso_engine.draw();
+			time += System.nanoTime() - start;
+			hash = hash * 31 + drawer.getHash();
+		}
+
+		if (uiso_engine.getSpriteObjectsInTheSceneHighWaterMark() != n_objects)
+			throw new IllegalStateException("Only " + uiso_engine.getSpriteObjectsInTheSceneHighWaterMark() + " objects were in the scene.");
+
+		if (print && depth_keys) {
+			System.out.println("  depth keys: first frame " + BenchEngines.toMilliseconds(first_frame_time) + ", next frames "
+					+ BenchEngines.toMilliseconds(time / n_frames));
+		} else if (print) {
+			System.out.println("  comparator: first frame " + BenchEngines.toMilliseconds(first_frame_time) + " (" + first_frame_calls + " calls), next frames "
+					+ BenchEngines.toMilliseconds(time / n_frames) + " (" + comparator_calls / n_frames + " calls)");
+		}
+		return hash;
+	}
+}
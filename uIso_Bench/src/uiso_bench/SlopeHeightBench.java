@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso_bench;
+
+import java.util.Random;
+
+import uiso.Tile;
+import uiso.UIsoConfiguration;
+import uiso.UIsoEngine;
+import uiso.util.MathUtils;
+
+/**
+ * Compares the slope height tables of the engine with the float formulas they replaced. First, every point of every slope must give the same height for several
+ * tile sizes and slope heights, otherwise it exits with status 1. Then it times random height queries on a random terrain: the float formulas and the tables
+ * when the tile is known, and the tables one point at a time and {@link UIsoEngine#getAbsoluteHeightsOfPointsInSlopeSurface(int[], int[], int[], int)} when
+ * only the virtual coordinates are.
+ * <p>
+ * There is no JMH in the tree, so the rounds are timed with {@link System#nanoTime()} and the first third of them is only a warm up.
+ * <p>
+ * Arguments: [points] [rounds].
+ * 
+ * @author luis
+ */
+public class SlopeHeightBench {
+	/* Public: */
+	public static void main(String args[]) {
+		int n_points = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 16;
+		int n_rounds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+
+		int n_mismatches = 0;
+		for (int i = 0; i < CONFIGURATIONS.length; i++)
+			n_mismatches += compareEveryPoint(CONFIGURATIONS[i][0], CONFIGURATIONS[i][1]);
+		if (n_mismatches != 0) {
+			System.out.println(n_mismatches + " heights differ from the float formulas");
+			System.exit(1);
+		}
+
+		Random random = new Random(3);
+		UIsoConfiguration configuration = BenchEngines.newConfiguration(null, MAP_W, MAP_H);
+		UIsoEngine uiso_engine = new UIsoEngine(configuration);
+		BenchEngines.buildRandomTerrain(uiso_engine, MAP_W, MAP_H, random, 3000);
+		int size = BenchEngines.VIRTUAL_WORLD_TILE_SIZE, slope_height = configuration.slope_height;
+		int x[] = new int[n_points], y[] = new int[n_points], z[] = new int[n_points], fine_x[] = new int[n_points], fine_y[] = new int[n_points];
+		Tile tiles[] = new Tile[n_points];
+		for (int i = 0; i < n_points; i++) {
+			x[i] = random.nextInt(MAP_W * size);
+			y[i] = random.nextInt(MAP_H * size);
+			tiles[i] = uiso_engine.getTile(x[i] / size, y[i] / size);
+			fine_x[i] = x[i] % size;
+			fine_y[i] = y[i] % size;
+		}
+
+		/* Given a tile: the float formulas and the tables. Given virtual coordinates: one tile lookup and query per point, and the batch. */
+		long times[] = new long[4];
+		for (int round = 0; round < n_rounds; round++) {
+			long sums[] = new long[4], stamps[] = new long[5];
+
+			stamps[0] = System.nanoTime();
+			for (int i = 0; i < n_points; i++)
+				sums[0] += getRelativeHeight(tiles[i].getSlope(), fine_x[i], fine_y[i], size, slope_height) + uiso_engine.getTileMinZ(tiles[i]) * slope_height;
+			stamps[1] = System.nanoTime();
+			for (int i = 0; i < n_points; i++)
+				sums[1] += uiso_engine.getAbsoluteHeightOfPointInTileSlopeSurface(tiles[i], fine_x[i], fine_y[i]);
+			stamps[2] = System.nanoTime();
+			for (int i = 0; i < n_points; i++)
+				sums[2] += uiso_engine.getAbsoluteHeightOfPointInTileSlopeSurface(uiso_engine.getTile(x[i] / size, y[i] / size), x[i] % size, y[i] % size);
+			stamps[3] = System.nanoTime();
+			uiso_engine.getAbsoluteHeightsOfPointsInSlopeSurface(x, y, z, n_points);
+			stamps[4] = System.nanoTime();
+			for (int i = 0; i < n_points; i++)
+				sums[3] += z[i];
+
+			if (sums[0] != sums[1] || sums[0] != sums[2] || sums[0] != sums[3])
+				throw new IllegalStateException("The heights differ.");
+			/* The first rounds only warm up. */
+			if (round >= n_rounds / 3) {
+				for (int i = 0; i < times.length; i++)
+					times[i] += stamps[i + 1] - stamps[i];
+			}
+		}
+
+		double n_queries = (double) n_points * (n_rounds - n_rounds / 3);
+		System.out.println(MAP_W + "x" + MAP_H + " random terrain, " + n_points + " random points:");
+		System.out.println(String.format("  given the tile, float formulas: %.1f ns/point", times[0] / n_queries));
+		System.out.println(String.format("  given the tile, tables: %.1f ns/point", times[1] / n_queries));
+		System.out.println(String.format("  given virtual coordinates, getTile and tables: %.1f ns/point", times[2] / n_queries));
+		System.out.println(String.format("  given virtual coordinates, batch: %.1f ns/point", times[3] / n_queries));
+	}
+
+	/* Private: */
+	/* tile_w and slope_height. */
+	private static final int CONFIGURATIONS[][] = { {64, 8}, {64, 13}, {48, 8}, {128, 16}, {36, 4}, {80, 5}};
+	private static final int SLOPES[] = {Tile.FLAT, Tile.N, Tile.S, Tile.E, Tile.W, Tile.NE, Tile.ES, Tile.SW, Tile.WN, Tile.NS, Tile.WE, Tile.NES, Tile.ESW,
+			Tile.WNE, Tile.SWN};
+	private static final int MAP_W = 200, MAP_H = 200;
+
+	/**
+	 * @return the number of points whose heights differ
+	 */
+	private static int compareEveryPoint(int tile_w, int slope_height) {
+		UIsoConfiguration configuration = BenchEngines.newConfiguration(null, 10, 10);
+		configuration.tile_w = tile_w;
+		configuration.tile_h = tile_w >> 1;
+		configuration.slope_height = slope_height;
+		UIsoEngine uiso_engine = new UIsoEngine(configuration);
+		int size = tile_w >> 2, n_mismatches = 0;
+
+		for (int i = 0; i < SLOPES.length; i++) {
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					int expected = getRelativeHeight(SLOPES[i], x, y, size, slope_height), height = uiso_engine.getRelativeHeightOfPointInSlopeSurface(SLOPES[i], x, y);
+					if (height != expected && n_mismatches++ < 10)
+						System.out.println("tile_w " + tile_w + " slope_height " + slope_height + " slope " + SLOPES[i] + " at (" + x + "," + y + "): " + height
+								+ " instead of " + expected);
+				}
+			}
+		}
+		return n_mismatches;
+	}
+
+	/**
+	 * The height of a point relative to the minimum slope height as the engine computed it before the tables.
+	 */
+	private static int getRelativeHeight(int slope, int x, int y, int size, int slope_height) {
+		float h = slope_height;
+		float l = size;
+		float a = l / h;
+		switch (slope) {
+			case Tile.NE:
+				return MathUtils.round(h - x / a);
+			case Tile.SW:
+				return MathUtils.round(x / a);
+			case Tile.ES:
+				return MathUtils.round(y / a);
+			case Tile.WN:
+				return MathUtils.round(h - y / a);
+			case Tile.N:
+				return MathUtils.round(x + y >= l ? 0 : (l * h - x * h - h * y) / l);
+			case Tile.S:
+				return MathUtils.round(x + y <= l ? 0 : (l * h - x * h - h * y) / -l);
+			case Tile.W:
+				return MathUtils.round(x - y < 0 ? 0 : (h * x - h * y) / l);
+			case Tile.E:
+				return MathUtils.round(x - y > 0 ? 0 : (h * x - h * y) / -l);
+			case Tile.WE:
+				return MathUtils.round(x + y >= l ? (h * x + h * y - 2 * h * l) / -l : (h * x + h * y) / l);
+			case Tile.NS:
+				return MathUtils.round(x - y < 0 ? (l * h - h * y + h * x) / l : (l * h - h * x + h * y) / l);
+			case Tile.NES:
+				return MathUtils.round(x - y <= 0 ? h : (l * h - h * x + h * y) / l);
+			case Tile.SWN:
+				return MathUtils.round(x - y >= 0 ? h : (l * h - h * y + h * x) / l);
+			case Tile.ESW:
+				return MathUtils.round(x + y <= l ? (h * x + h * y) / l : h);
+			case Tile.WNE:
+				return MathUtils.round(x + y <= l ? h : (h * x + h * y - 2 * h * l) / -l);
+			default:
+				return 0;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012, 2015 Luis Henrique O. Rios
+ *
+ * This file is part of uIsometric Engine.
+ *
+ * uIsometric Engine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * uIsometric Engine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with uIsometric Engine.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uiso_bench;
+
+import java.util.Random;
+
+import uiso.Point;
+import uiso.UIsoConfiguration;
+import uiso.UIsoEngine;
+
+/**
+ * Counts the tiles projected by {@link UIsoEngine#draw()} per frame. Every projected tile costs a {@link CountingDrawer#getTileSprite(uiso.Tile, uiso.Sprite[])}
+ * call. The count is compared with the tiles of the rotated box that the engine walked before it iterated per-row spans, computed for the same viewport, and
+ * with the tiles whose sprite really reaches the viewport.
+ * <p>
+ * Arguments: [frames] [seed].
+ * 
+ * @author luis
+ */
+public class TileSpanBench {
+	/* Public: */
+	public static void main(String args[]) {
+		int n_frames = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		Random random = new Random(args.length > 1 ? Long.parseLong(args[1]) : 42);
+
+		CountingDrawer drawer = new CountingDrawer();
+		UIsoConfiguration configuration = BenchEngines.newConfiguration(drawer, MAP_W, MAP_H);
+		UIsoEngine uiso_engine = new UIsoEngine(configuration);
+		BenchEngines.buildRandomTerrain(uiso_engine, MAP_W, MAP_H, random, 3000);
+
+		Point viewport_offset = new Point();
+		long tile_sprite_calls = 0, drawn = 0, reaching = 0, box = 0, time = 0;
+		for (int frame = -WARM_UP_FRAMES; frame < n_frames; frame++) {
+			BenchEngines.scrollToVirtualCoordinates(uiso_engine, configuration, random.nextInt(MAP_W * BenchEngines.VIRTUAL_WORLD_TILE_SIZE),
+					random.nextInt(MAP_H * BenchEngines.VIRTUAL_WORLD_TILE_SIZE), viewport_offset);
+			drawer.reset();
+			long start = System.nanoTime();
+			uiso_engine.draw();
+			if (frame >= 0) {
+				time += System.nanoTime() - start;
+				tile_sprite_calls += drawer.getTileSpriteCalls();
+				drawn += drawer.getDrawImageCalls();
+				reaching += drawer.getDrawImageCalls() - drawer.getClippedDrawImageCalls();
+				box += countRotatedBoxTiles(configuration, viewport_offset);
+			}
+		}
+
+		System.out.println(MAP_W + "x" + MAP_H + " map, " + configuration.viewport_w + "x" + configuration.viewport_h + " viewport, " + n_frames + " frames");
+		System.out.println("tiles projected per frame (per-row spans): " + tile_sprite_calls / n_frames + " (" + drawn / n_frames + " drawImage calls)");
+		System.out.println("tiles in the rotated box per frame: " + box / n_frames);
+		System.out.println("tiles reaching the viewport per frame: " + reaching / n_frames);
+		System.out.println("draw: " + BenchEngines.toMilliseconds(time / n_frames) + " per frame");
+	}
+
+	/* Private: */
+	private static final int MAP_W = 120, MAP_H = 100, WARM_UP_FRAMES = 50;
+
+	/**
+	 * The rectangle in tile space walked before the per-row spans: the limits of d = y - x and s = x + y of the tiles whose sprites can reach the viewport,
+	 * turned into x and y limits. The sprite extents are those of {@link CountingDrawer}.
+	 */
+	private static int countRotatedBoxTiles(UIsoConfiguration configuration, Point viewport_offset) {
+		int size = configuration.tile_w >> 2;
+		int max_left = CountingDrawer.SPRITE_W / 2, max_right = CountingDrawer.SPRITE_W - max_left, max_up = 8, max_down = CountingDrawer.SPRITE_H - max_up;
+		int min_d = Math.floorDiv(viewport_offset.x - max_right, size << 1);
+		int max_d = Math.floorDiv(viewport_offset.x + configuration.viewport_w + max_left, size << 1) + 1;
+		int min_s = Math.floorDiv(viewport_offset.y - max_down, size);
+		int max_s = Math.floorDiv(viewport_offset.y + configuration.viewport_h + max_up + configuration.tile_max_z * configuration.slope_height, size) + 1;
+
+		int min_x = Math.max((min_s - max_d) >> 1, configuration.tile_max_z);
+		int max_x = Math.min(((max_s - min_d) >> 1) + 1, configuration.w + configuration.tile_max_z - 1);
+		int min_y = Math.max((min_s + min_d) >> 1, configuration.tile_max_z);
+		int max_y = Math.min(((max_s + max_d) >> 1) + 1, configuration.h + configuration.tile_max_z - 1);
+		return Math.max(0, max_x - min_x + 1) * Math.max(0, max_y - min_y + 1);
+	}
+}